@@ -0,0 +1,116 @@
+package umm3601;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Keeps a few expensive queries from tying up all of the server's
+ * request threads.
+ * <p>
+ * Each request is given an estimated cost before it runs. Cheap requests
+ * run right away on the request thread as usual. Expensive ones are
+ * handed off to a small, separate pool of threads with a bounded queue.
+ * If that queue is full we reject the request straight away with a
+ * 503 (Service Unavailable) and a `Retry-After` header, rather than
+ * letting it wait and slow everything else down.
+ */
+public class AdmissionController {
+
+  private long maxCheapCost;
+  private int retryAfterSeconds;
+  private ThreadPoolExecutor expensiveQueries;
+  private LongAdder deferred = new LongAdder();
+  private LongAdder rejected = new LongAdder();
+
+  /**
+   * Construct an admission controller.
+   *
+   * @param maxCheapCost      requests with an estimated cost above this are
+   *                          run on the expensive query pool
+   * @param threads           the number of threads for expensive queries
+   * @param queueCapacity     the number of expensive queries that can wait
+   *                          for a thread before we start rejecting them
+   * @param retryAfterSeconds how long rejected clients are told to wait
+   */
+  public AdmissionController(long maxCheapCost, int threads, int queueCapacity, int retryAfterSeconds) {
+    this.maxCheapCost = maxCheapCost;
+    this.retryAfterSeconds = retryAfterSeconds;
+    this.expensiveQueries = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+          // Don't let these threads keep the server running on their own
+          Thread thread = new Thread(runnable, "expensive-query");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Wrap a handler so that its requests go through admission control.
+   *
+   * @param handler       the handler for the requests
+   * @param costEstimator estimates the cost of a request from its context
+   * @return a handler that runs cheap requests directly and expensive ones
+   *         on the expensive query pool
+   */
+  public Handler admit(Handler handler, ToLongFunction<Context> costEstimator) {
+    return ctx -> {
+      if (costEstimator.applyAsLong(ctx) <= maxCheapCost) {
+        handler.handle(ctx);
+      } else {
+        runExpensive(handler, ctx);
+      }
+    };
+  }
+
+  private void runExpensive(Handler handler, Context ctx) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    try {
+      expensiveQueries.execute(() -> {
+        try {
+          handler.handle(ctx);
+          result.complete(null);
+        } catch (Throwable e) {
+          // Even an `Error` has to complete the result, or the request
+          // would never get a response
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.increment();
+      ctx.header(Header.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+      throw new ServiceUnavailableResponse("The server is too busy to run this query right now");
+    }
+    deferred.increment();
+    // Javalin will finish the response once the handler has run
+    ctx.future(() -> result);
+  }
+
+  /**
+   * Get the number of requests that were run on the expensive query pool.
+   *
+   * @return the number of expensive requests that were accepted
+   */
+  public long getDeferred() {
+    return deferred.sum();
+  }
+
+  /**
+   * Get the number of requests that were rejected because the expensive
+   * query pool was full.
+   *
+   * @return the number of rejected requests
+   */
+  public long getRejected() {
+    return rejected.sum();
+  }
+}
@@ -0,0 +1,291 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import umm3601.todo.Todo;
+import umm3601.todo.TodoSerializer;
+import umm3601.todo.TodoWithOwner;
+import umm3601.todo.TodoWithOwnerSerializer;
+import umm3601.user.User;
+import umm3601.user.UserSerializer;
+
+/**
+ * Sends responses in the format, and with the fields, that the client
+ * asked for.
+ * <p>
+ * Browsers get JSON as always. Other services that would rather not pay
+ * for writing and parsing JSON text can ask for Smile, Jackson's compact
+ * binary encoding of the same data, with
+ * `Accept: application/x-jackson-smile`.
+ * <p>
+ * Clients that only need some of the fields can list them in a `fields`
+ * query parameter, e.g., `fields=_id,owner,status`, and only those fields
+ * will be written. This is done by the hand-written serializers (see
+ * `RecordsModule`), built to write just those fields, in a writer that
+ * is built once per combination of type, fields, and format and then
+ * reused.
+ */
+public final class ContentNegotiation {
+
+  public static final String SMILE = "application/x-jackson-smile";
+  // A request header with which a cluster router (see `ClusterRouter`)
+  // asks a node to send each record of a list with its ordering key
+  public static final String ORDERING_KEYS = "X-Ordering-Keys";
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper().registerModule(new RecordsModule());
+  private static final ObjectMapper SMILE_MAPPER = new SmileMapper().registerModule(new RecordsModule());
+  private static final Set<String> JSON_WILDCARDS = Set.of("application/*", "*/*");
+  // The fields of each type that `RecordsModule` can write a projection of
+  private static final Map<Class<?>, List<String>> PROJECTED_FIELDS = Map.of(
+      Todo.class, TodoSerializer.FIELDS,
+      TodoWithOwner.class, TodoWithOwnerSerializer.FIELDS,
+      User.class, UserSerializer.FIELDS);
+
+  // Writers for projections we've already seen, keyed by a description
+  // of the type, fields, and format they write
+  private static Map<String, ObjectWriter> projectionWriters = new ConcurrentHashMap<>();
+
+  private ContentNegotiation() {
+  }
+
+  /**
+   * Send the given value as the body of the response, encoded as Smile if
+   * the client accepts it and as JSON otherwise, and with only the
+   * requested fields if the client asked for some.
+   * <p>
+   * This is recorded as a "serialize" `QueryStageEvent`. Note that plain
+   * JSON is written by Javalin as the response is sent, so in that case
+   * the event only covers handing the value over to Javalin.
+   *
+   * @param ctx   a Javalin HTTP context
+   * @param value the value to send (a record or an array of records)
+   */
+  public static void respond(Context ctx, Object value) {
+    QueryStageEvent event = QueryStageEvent.beginIfEnabled();
+    boolean smile = acceptsSmile(ctx);
+    // The same URL gets a different body depending on the Accept header,
+    // so caches mustn't hand one client's format to another
+    ctx.header(Header.VARY, Header.ACCEPT);
+    List<String> fieldsParam = ctx.queryParamMap().get("fields");
+    if (fieldsParam != null) {
+      ctx.contentType(smile ? SMILE : ContentType.JSON);
+      ctx.result(write(projectionWriter(value, fieldsParam.get(0), smile), value));
+    } else if (smile) {
+      ctx.contentType(SMILE);
+      ctx.result(write(SMILE_MAPPER.writer(), value));
+    } else {
+      ctx.json(value);
+    }
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        int rows = value.getClass().isArray() ? Array.getLength(value) : 1;
+        event.kind = QueryPlan.SERIALIZE;
+        event.stage = "respond";
+        event.access = (smile ? "smile" : "json") + (fieldsParam != null ? " projection" : "");
+        event.shape = String.join(",", new TreeSet<>(ctx.queryParamMap().keySet()));
+        event.rowsExamined = rows;
+        event.rowsProduced = rows;
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * Send a value that `encode` has already encoded for this request (or
+   * for another one that accepts the same format) as the body of the
+   * response.
+   *
+   * @param ctx  a Javalin HTTP context
+   * @param body the encoded value
+   */
+  public static void respondEncoded(Context ctx, byte[] body) {
+    ctx.header(Header.VARY, Header.ACCEPT);
+    ctx.contentType(acceptsSmile(ctx) ? SMILE : ContentType.JSON);
+    ctx.result(body);
+  }
+
+  /**
+   * Check whether the client asked for Smile rather than JSON.
+   * <p>
+   * The Accept header is read as a list of media ranges, each with an
+   * optional quality (`q`) between 0 and 1. Smile is sent if the client
+   * names it, with a quality above 0 and at least as high as the best
+   * range that matches JSON (`application/json` or a wildcard like
+   * `application/*`). Other parameters of a range are ignored, and wildcards
+   * alone never choose Smile.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the response should be encoded as Smile
+   */
+  public static boolean acceptsSmile(Context ctx) {
+    String accept = ctx.header(Header.ACCEPT);
+    if (accept == null) {
+      return false;
+    }
+    double smileQuality = 0;
+    double jsonQuality = 0;
+    for (String range : accept.split(",")) {
+      String[] parts = range.split(";");
+      String mediaType = parts[0].trim().toLowerCase(Locale.ROOT);
+      double quality = quality(parts);
+      if (mediaType.equals(SMILE)) {
+        smileQuality = Math.max(smileQuality, quality);
+      } else if (mediaType.equals(ContentType.JSON) || JSON_WILDCARDS.contains(mediaType)) {
+        jsonQuality = Math.max(jsonQuality, quality);
+      }
+    }
+    return smileQuality > 0 && smileQuality >= jsonQuality;
+  }
+
+  /**
+   * Get the quality of a media range from its parameters (`parts[1..]`),
+   * which is 1 if it has no `q` parameter and 0 if that isn't a number.
+   */
+  private static double quality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String[] parameter = parts[i].split("=", 2);
+      if (parameter.length == 2 && parameter[0].trim().equalsIgnoreCase("q")) {
+        try {
+          return Double.parseDouble(parameter[1].trim());
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Encode the given value the way `respond` would, but without sending
+   * it, e.g., to time how long that takes or to share it between
+   * requests (see `respondEncoded`).
+   *
+   * @param ctx   a Javalin HTTP context
+   * @param value the value to encode (a record or an array of records)
+   * @return the encoded value
+   */
+  public static byte[] encode(Context ctx, Object value) {
+    List<String> fieldsParam = ctx.queryParamMap().get("fields");
+    return encode(value, fieldsParam == null ? null : fieldsParam.get(0), acceptsSmile(ctx));
+  }
+
+  /**
+   * Encode the given value in the given format, with just the given
+   * fields.
+   *
+   * @param value  the value to encode (a record or an array of records)
+   * @param fields a comma-separated list of the fields to write, or null
+   *               for all of them
+   * @param smile  true to encode the value as Smile, false for JSON
+   * @return the encoded value
+   */
+  public static byte[] encode(Object value, String fields, boolean smile) {
+    if (fields != null) {
+      return write(projectionWriter(value, fields, smile), value);
+    }
+    return write(smile ? SMILE_MAPPER.writer() : JSON_MAPPER.writer(), value);
+  }
+
+  /**
+   * Check whether the client (a cluster router) asked for each record of
+   * a list to come with its ordering key (see `encodeKeyed`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the records should be sent with their keys
+   */
+  public static boolean wantsOrderingKeys(Context ctx) {
+    return ctx.header(ORDERING_KEYS) != null;
+  }
+
+  /**
+   * Encode the given records the way `encode` would, except that each
+   * record is sent in a pair with its ordering key, as `[key, record]`,
+   * so that a cluster router can merge lists from several nodes one
+   * record at a time.
+   *
+   * @param ctx     a Javalin HTTP context
+   * @param records the records to encode
+   * @param keys    the ordering key of each record
+   * @return the encoded pairs
+   */
+  public static byte[] encodeKeyed(Context ctx, Object[] records, long[] keys) {
+    boolean smile = acceptsSmile(ctx);
+    List<String> fieldsParam = ctx.queryParamMap().get("fields");
+    ObjectWriter writer = (fieldsParam != null
+        ? projectionWriter(records, fieldsParam.get(0), smile)
+        : (smile ? SMILE_MAPPER : JSON_MAPPER).writer())
+        // The generator is flushed once, when it's closed, not after every record
+        .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = writer.createGenerator(out)) {
+      generator.writeStartArray();
+      for (int i = 0; i < records.length; i++) {
+        generator.writeStartArray();
+        generator.writeNumber(keys[i]);
+        writer.writeValue(generator, records[i]);
+        generator.writeEndArray();
+      }
+      generator.writeEndArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] write(ObjectWriter writer, Object value) {
+    try {
+      return writer.writeValueAsBytes(value);
+    } catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Get a writer that writes only the given fields of the records in the
+   * given value, building it if this is a new projection.
+   */
+  private static ObjectWriter projectionWriter(Object value, String fieldsParam, boolean smile) {
+    Class<?> type = value.getClass().isArray() ? value.getClass().getComponentType() : value.getClass();
+    // Sort the fields so that, e.g., "owner,_id" and "_id,owner" share a writer
+    Set<String> fields = new TreeSet<>(Arrays.asList(fieldsParam.split(",")));
+    String key = type.getName() + fields + (smile ? SMILE : ContentType.JSON);
+    ObjectWriter writer = projectionWriters.get(key);
+    if (writer != null) {
+      return writer;
+    }
+    // Only check the fields the first time we see them, and never cache
+    // a writer for fields that aren't there
+    List<String> typeFields = PROJECTED_FIELDS.get(type);
+    for (String field : fields) {
+      if (typeFields == null || !typeFields.contains(field)) {
+        throw new BadRequestResponse("Specified field '" + field + "' is an invalid field");
+      }
+    }
+    return projectionWriters.computeIfAbsent(key, x -> {
+      ObjectMapper mapper = smile ? new SmileMapper() : new ObjectMapper();
+      return mapper.registerModule(new RecordsModule(type, fields)).writer();
+    });
+  }
+}
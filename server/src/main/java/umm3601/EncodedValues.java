@@ -0,0 +1,48 @@
+package umm3601;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * A cache of the encoded (quoted and escaped) forms of the values of a
+ * field that only takes a few different values, like a todo's owner or
+ * category, so each value is only encoded once however many records we
+ * write.
+ * <p>
+ * Only the first `MAX_VALUES` different values are cached, so a field
+ * with more values than we expected just gets written the usual way.
+ */
+public class EncodedValues {
+
+  static final int MAX_VALUES = 1024;
+
+  private Map<String, SerializedString> encoded = new ConcurrentHashMap<>();
+
+  /**
+   * Write the given value as a string, using its cached encoding if
+   * there is one.
+   *
+   * @param gen   the generator to write to
+   * @param value the value to write (may be null)
+   * @throws IOException if there are problems writing
+   */
+  public void write(JsonGenerator gen, String value) throws IOException {
+    if (value == null) {
+      gen.writeNull();
+      return;
+    }
+    SerializedString encodedValue = encoded.get(value);
+    if (encodedValue == null && encoded.size() < MAX_VALUES) {
+      encodedValue = encoded.computeIfAbsent(value, SerializedString::new);
+    }
+    if (encodedValue != null) {
+      gen.writeString(encodedValue);
+    } else {
+      gen.writeString(value);
+    }
+  }
+}
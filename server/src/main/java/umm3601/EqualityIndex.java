@@ -0,0 +1,77 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of the exact values of one field (like a todo's category or a
+ * user's age), with a posting list of the records having each value.
+ * <p>
+ * Looking up several values at once gives the union of their posting
+ * lists, which is how we answer a query like `owner=Fry&owner=Blanche`
+ * without going through the records once per value.
+ *
+ * @param <K> the type of the indexed values
+ */
+public class EqualityIndex<K> {
+
+  private static final int[] NO_MATCHES = new int[0];
+
+  private Map<K, int[]> postings = new HashMap<>();
+
+  /**
+   * Build an index of the given values.
+   *
+   * @param values the value of the field for each record, where
+   *               `values.get(i)` belongs to the record with ordinal `i`
+   */
+  public EqualityIndex(List<K> values) {
+    Map<K, List<Integer>> ordinalsByValue = new HashMap<>();
+    for (int i = 0; i < values.size(); i++) {
+      ordinalsByValue.computeIfAbsent(values.get(i), x -> new ArrayList<>()).add(i);
+    }
+    ordinalsByValue.forEach((value, ordinals) ->
+        postings.put(value, ordinals.stream().mapToInt(Integer::intValue).toArray()));
+  }
+
+  /**
+   * Get the number of distinct values in the index.
+   *
+   * @return the number of values
+   */
+  public int size() {
+    return postings.size();
+  }
+
+  /**
+   * Count the records whose value is any one of the given values, without
+   * building their posting list (e.g., to estimate the cost of a query).
+   *
+   * @param targets the values to look for
+   * @return the number of matching records, or more if the same value is
+   *         given twice
+   */
+  public long count(List<K> targets) {
+    return targets.stream().mapToLong(target -> postings.getOrDefault(target, NO_MATCHES).length).sum();
+  }
+
+  /**
+   * Find the records whose value is any one of the given values.
+   * <p>
+   * For a single value this is the index's own posting list rather than
+   * a copy, so callers must not modify the returned array.
+   *
+   * @param targets the values to look for
+   * @return the sorted ordinals of the matching records (read-only)
+   */
+  public int[] matches(List<K> targets) {
+    if (targets.size() == 1) {
+      return postings.getOrDefault(targets.get(0), NO_MATCHES);
+    }
+    return PostingLists.union(targets.stream()
+        .map(target -> postings.getOrDefault(target, NO_MATCHES))
+        .toArray(int[][]::new));
+  }
+}
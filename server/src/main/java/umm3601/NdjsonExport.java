@@ -0,0 +1,197 @@
+package umm3601;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import io.javalin.http.Context;
+
+/**
+ * Sends every record in a "database" as newline-delimited JSON (NDJSON),
+ * one record per line, so that clients can stream a bulk export rather
+ * than parsing one giant JSON array.
+ * <p>
+ * The first export writes the records to a snapshot file. Every export
+ * after that, until the records change (i.e., until the "database" has a
+ * new version number), copies that file straight to the response with
+ * `FileChannel.transferTo` instead of encoding every record again.
+ * Exports of the same version wait for the one writing its snapshot, but
+ * exports of different versions don't wait for each other.
+ * <p>
+ * Each new snapshot file replaces the ones for earlier versions, which
+ * are deleted then if they can be. (On some platforms a file can't be deleted while an export
+ * is still sending it, so that's tried again with each new snapshot, and
+ * whatever is left is deleted when the server exits.)
+ */
+public class NdjsonExport {
+
+  public static final String NDJSON = "application/x-ndjson";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new RecordsModule());
+  // The generator is flushed once, when it's closed, not after every record
+  private static final ObjectWriter WRITER = MAPPER.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+  // Every export's snapshot files that haven't been deleted yet. (Unlike
+  // `File.deleteOnExit`, which remembers every file it's ever given,
+  // this forgets each file once it's deleted.)
+  private static final Set<Path> UNDELETED_FILES = ConcurrentHashMap.newKeySet();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> UNDELETED_FILES.forEach(NdjsonExport::delete)));
+  }
+
+  private String name;
+  // The snapshot file of each version that's being written or still in
+  // use, by version number
+  private ConcurrentHashMap<Long, CompletableFuture<Path>> snapshots = new ConcurrentHashMap<>();
+  // Earlier snapshot files that couldn't be deleted yet
+  private Queue<Path> oldFiles = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Construct an export whose snapshot files are named after the given
+   * kind of record.
+   *
+   * @param name what the records are, e.g., "todos"
+   */
+  public NdjsonExport(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Send the records as the body of the response, one per line.
+   *
+   * @param ctx     a Javalin HTTP context
+   * @param version the version number of the "database" the records are
+   *                from, which changes whenever the records do
+   * @param records gets all the records to export, from that same
+   *                version, if there isn't a snapshot of them already
+   * @throws IOException if there are problems writing the snapshot or
+   *                     sending it
+   */
+  public void send(Context ctx, long version, Supplier<Object[]> records) throws IOException {
+    ctx.contentType(NDJSON);
+    transferTo(version, records, Channels.newChannel(ctx.outputStream()));
+  }
+
+  /**
+   * Write the records to the given channel, one per line.
+   *
+   * @param version the version number of the "database" the records are
+   *                from, which changes whenever the records do
+   * @param records gets all the records to export, from that same
+   *                version, if there isn't a snapshot of them already
+   * @param target  the channel to write them to
+   * @throws IOException if there are problems writing the snapshot or
+   *                     copying it to the channel
+   */
+  public void transferTo(long version, Supplier<Object[]> records, WritableByteChannel target) throws IOException {
+    try (FileChannel snapshot = openSnapshot(version, records)) {
+      long size = snapshot.size();
+      long position = 0;
+      while (position < size) {
+        position += snapshot.transferTo(position, size - position, target);
+      }
+    }
+  }
+
+  /**
+   * Open the snapshot file holding the records, writing a new one first
+   * if there isn't one for this version.
+   */
+  private FileChannel openSnapshot(long version, Supplier<Object[]> records) throws IOException {
+    while (true) {
+      try {
+        return FileChannel.open(snapshotFile(version, records), StandardOpenOption.READ);
+      } catch (NoSuchFileException e) {
+        // A newer version's snapshot replaced (and deleted) this one
+        // between our finding it and opening it, so write it again
+      }
+    }
+  }
+
+  /**
+   * Get the snapshot file for the given version, writing it if no other
+   * export has, or waiting for another export that's writing it.
+   */
+  private Path snapshotFile(long version, Supplier<Object[]> records) throws IOException {
+    CompletableFuture<Path> written = new CompletableFuture<>();
+    CompletableFuture<Path> snapshot = snapshots.putIfAbsent(version, written);
+    if (snapshot == null) {
+      try {
+        written.complete(write(records.get()));
+      } catch (IOException | RuntimeException e) {
+        // Let the next export of this version try again
+        snapshots.remove(version, written);
+        written.completeExceptionally(e);
+        throw e;
+      }
+      retireBefore(version);
+      return written.join();
+    }
+    try {
+      return snapshot.join();
+    } catch (CompletionException e) {
+      throw new IOException("Another export failed to write the snapshot of version " + version, e.getCause());
+    }
+  }
+
+  private Path write(Object[] records) throws IOException {
+    Path file = Files.createTempFile(name, ".ndjson");
+    UNDELETED_FILES.add(file);
+    try (JsonGenerator generator = MAPPER.createGenerator(Files.newOutputStream(file))) {
+      // We write our own newline after each record instead
+      generator.setRootValueSeparator(null);
+      for (Object record : records) {
+        WRITER.writeValue(generator, record);
+        generator.writeRaw('\n');
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Forget the (finished) snapshots of versions before the given one, and
+   * delete their files if we can. Exports still sending those files have
+   * them open, so they can keep reading them.
+   */
+  private void retireBefore(long version) {
+    snapshots.forEach((oldVersion, snapshot) -> {
+      if (oldVersion < version && snapshot.isDone() && snapshots.remove(oldVersion, snapshot)
+          && !snapshot.isCompletedExceptionally()) {
+        oldFiles.add(snapshot.join());
+      }
+    });
+    oldFiles.removeIf(NdjsonExport::delete);
+  }
+
+  /**
+   * Try to delete the given snapshot file.
+   *
+   * @return true if the file is gone
+   */
+  private static boolean delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      return false;
+    }
+    UNDELETED_FILES.remove(file);
+    return true;
+  }
+}
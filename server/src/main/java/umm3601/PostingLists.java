@@ -0,0 +1,105 @@
+package umm3601;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for working with posting lists: sorted arrays of the ordinals
+ * (positions in a "database" array) of the records that match something.
+ */
+public final class PostingLists {
+
+  private PostingLists() {
+  }
+
+  /**
+   * Keep just the candidate ordinals that are also in the given posting
+   * list, e.g., as each filter of a query is applied in turn.
+   *
+   * @param candidates the ordinals still in the running, or null if
+   *                   nothing has been filtered out yet
+   * @param matches    the ordinals matching the next filter
+   * @return the ordinals in both (which is `matches` itself if
+   *         `candidates` is null)
+   */
+  public static int[] narrow(int[] candidates, int[] matches) {
+    return candidates == null ? matches : intersect(candidates, matches);
+  }
+
+  /**
+   * Get the ordinals that are in both of the given posting lists.
+   *
+   * @param a a sorted posting list
+   * @param b another sorted posting list
+   * @return a sorted posting list of the ordinals in both lists
+   */
+  public static int[] intersect(int[] a, int[] b) {
+    int[] both = new int[Math.min(a.length, b.length)];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        both[count++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return Arrays.copyOf(both, count);
+  }
+
+  /**
+   * Get the ordinals that are in any of the given posting lists.
+   *
+   * @param lists sorted posting lists
+   * @return a sorted posting list (without duplicates) of the ordinals in
+   *         any of the lists
+   */
+  public static int[] union(int[]... lists) {
+    int total = 0;
+    for (int[] list : lists) {
+      total += list.length;
+    }
+    int[] all = new int[total];
+    int position = 0;
+    for (int[] list : lists) {
+      System.arraycopy(list, 0, all, position, list.length);
+      position += list.length;
+    }
+    Arrays.sort(all);
+    // Squeeze out any ordinals that were in more than one list
+    int count = 0;
+    for (int i = 0; i < all.length; i++) {
+      if (count == 0 || all[i] != all[count - 1]) {
+        all[count++] = all[i];
+      }
+    }
+    return Arrays.copyOf(all, count);
+  }
+
+  /**
+   * Get the ordinals that are in the first posting list but not the
+   * second.
+   *
+   * @param a a sorted posting list
+   * @param b a sorted posting list of the ordinals to leave out
+   * @return a sorted posting list of the ordinals in `a` but not in `b`
+   */
+  public static int[] difference(int[] a, int[] b) {
+    int[] left = new int[a.length];
+    int count = 0;
+    int j = 0;
+    for (int ordinal : a) {
+      while (j < b.length && b[j] < ordinal) {
+        j++;
+      }
+      if (j == b.length || b[j] != ordinal) {
+        left[count++] = ordinal;
+      }
+    }
+    return Arrays.copyOf(left, count);
+  }
+}
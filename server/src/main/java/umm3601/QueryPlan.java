@@ -0,0 +1,190 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * A record of how a query was answered: the stages it went through in
+ * order, how each one got at the records (through an index or by
+ * scanning them), how many records went into and came out of each
+ * stage, and how long each stage took.
+ * <p>
+ * The databases fill in a plan as they answer a query. It is sent back
+ * to the client in place of the results for `explain=true` requests, and
+ * written to the slow-query log (see `SlowQueryLog`) for queries that
+ * take too long. Each stage is also written to any running Java Flight
+ * Recorder recording as a `QueryStageEvent`.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class QueryPlan {
+
+  // The kinds of stages
+  public static final String PARSE = "parse";
+  public static final String FILTER = "filter";
+  public static final String SORT = "sort";
+  public static final String LIMIT = "limit";
+  public static final String JOIN = "join";
+  public static final String MERGE = "merge";
+  public static final String SERIALIZE = "serialize";
+
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * One step in answering a query.
+   */
+  @SuppressWarnings({"VisibilityModifier"})
+  public static class Stage {
+    public String kind;
+    // What the stage does, e.g., "owner" or "orderBy body"
+    public String name;
+    // How the stage gets at the records, e.g., "owner index" or "scan"
+    public String access;
+    public int rowsExamined;
+    public int rowsProduced;
+    public double millis;
+
+    @Override
+    public String toString() {
+      return String.format("%s (%s) %d -> %d rows in %.3f ms", name, access, rowsExamined, rowsProduced, millis);
+    }
+  }
+
+  // The query, with its parameters and their values in sorted order
+  public Map<String, List<String>> query;
+  public List<Stage> stages = new ArrayList<>();
+  public double totalMillis;
+
+  private long startNanos;
+  private long lapNanos;
+  // The flight recorder event for the stage that's running now, or null
+  // if no recording is taking them
+  private QueryStageEvent event;
+
+  /**
+   * Start timing a query.
+   *
+   * @param queryParams map of key-value pairs for the query
+   */
+  public QueryPlan(Map<String, List<String>> queryParams) {
+    query = normalize(queryParams);
+    startNanos = System.nanoTime();
+    lapNanos = startNanos;
+    beginEvent();
+  }
+
+  private void beginEvent() {
+    event = QueryStageEvent.beginIfEnabled();
+  }
+
+  /**
+   * Check whether a query asks to have its plan explained (with
+   * `explain=true`) rather than its results sent back.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return true if the query asks for its plan
+   */
+  public static boolean isExplain(Map<String, List<String>> queryParams) {
+    if (!queryParams.containsKey("explain")) {
+      return false;
+    }
+    String explain = queryParams.get("explain").get(0);
+    if (!explain.equals("true") && !explain.equals("false")) {
+      throw new BadRequestResponse("Specified value to explain '" + explain + "' is an invalid value");
+    }
+    return explain.equals("true");
+  }
+
+  /**
+   * Put the parameters of a query, and the values of each parameter, in
+   * sorted order, so that the same query always looks the same in the
+   * slow-query log.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the sorted parameters and values
+   */
+  public static Map<String, List<String>> normalize(Map<String, List<String>> queryParams) {
+    Map<String, List<String>> normalized = new TreeMap<>();
+    queryParams.forEach((key, values) -> normalized.put(key, values.stream().sorted().collect(Collectors.toList())));
+    return normalized;
+  }
+
+  /**
+   * Put the parameters of a query in sorted order, so that two queries
+   * with the same results always look the same, e.g., to share their
+   * results. Only the values of the given parameters, which are matched
+   * in any order (e.g., any of several owners), are sorted. The other
+   * parameters only ever have their first value read, so that's all
+   * that's kept of them.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param multiValued the parameters whose values are matched in any
+   *                    order
+   * @return the sorted parameters and the values that matter
+   */
+  public static Map<String, List<String>> normalize(Map<String, List<String>> queryParams, Set<String> multiValued) {
+    Map<String, List<String>> normalized = new TreeMap<>();
+    queryParams.forEach((key, values) -> normalized.put(key, multiValued.contains(key)
+        ? values.stream().sorted().collect(Collectors.toList())
+        : values.subList(0, Math.min(1, values.size()))));
+    return normalized;
+  }
+
+  /**
+   * Record a stage that has just finished. The stage is timed from the
+   * end of the one before it (or the start of the query).
+   *
+   * @param kind         what sort of stage this is (`FILTER`, `SORT`, ...)
+   * @param name         what the stage does
+   * @param access       how the stage got at the records
+   * @param rowsExamined the number of records that went into the stage
+   * @param rowsProduced the number of records that came out of it
+   */
+  public void stage(String kind, String name, String access, int rowsExamined, int rowsProduced) {
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.kind = kind;
+        event.stage = name;
+        event.access = access;
+        event.shape = String.join(",", query.keySet());
+        event.rowsExamined = rowsExamined;
+        event.rowsProduced = rowsProduced;
+        event.commit();
+      }
+    }
+    long now = System.nanoTime();
+    Stage stage = new Stage();
+    stage.kind = kind;
+    stage.name = name;
+    stage.access = access;
+    stage.rowsExamined = rowsExamined;
+    stage.rowsProduced = rowsProduced;
+    stage.millis = (now - lapNanos) / NANOS_PER_MILLI;
+    stages.add(stage);
+    lapNanos = now;
+    totalMillis = (now - startNanos) / NANOS_PER_MILLI;
+    beginEvent();
+  }
+
+  /**
+   * Get the number of records that came out of the last stage so far,
+   * i.e., the number of results.
+   *
+   * @return the number of records produced
+   */
+  public int rowsProduced() {
+    return stages.isEmpty() ? 0 : stages.get(stages.size() - 1).rowsProduced;
+  }
+
+  @Override
+  public String toString() {
+    return stages.stream().map(Stage::toString).collect(Collectors.joining(", ", "[", "]"));
+  }
+}
@@ -0,0 +1,66 @@
+package umm3601;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for one stage of answering a query (see
+ * `QueryPlan`), so that a recording shows where in our own code the time
+ * and allocations of a request went, next to the JVM's events.
+ * <p>
+ * These are only written when a recording is running with the
+ * `umm3601.QueryStage` event enabled, e.g., with
+ * `-XX:StartFlightRecording` or `jcmd <pid> JFR.start`. Otherwise they
+ * aren't even allocated (see `beginIfEnabled`).
+ */
+@Name("umm3601.QueryStage")
+@Label("Query Stage")
+@Category({ "umm3601", "Queries" })
+@Description("One stage (parse, filter, sort, limit, serialize, ...) of answering a query")
+@StackTrace(false)
+@SuppressWarnings({"VisibilityModifier"})
+public class QueryStageEvent extends Event {
+
+  private static final EventType TYPE = EventType.getEventType(QueryStageEvent.class);
+
+  @Label("Kind")
+  @Description("What sort of stage this is, e.g., \"filter\" or \"sort\"")
+  public String kind;
+
+  @Label("Stage")
+  @Description("What the stage does, e.g., \"owner\" or \"orderBy body\"")
+  public String stage;
+
+  @Label("Access")
+  @Description("How the stage got at the records, e.g., \"owner index\" or \"scan\"")
+  public String access;
+
+  @Label("Query Shape")
+  @Description("The (sorted) names of the query's parameters, without their values")
+  public String shape;
+
+  @Label("Rows Examined")
+  public int rowsExamined;
+
+  @Label("Rows Produced")
+  public int rowsProduced;
+
+  /**
+   * Start timing a stage, if a recording has these events enabled.
+   *
+   * @return the started event, or null if no recording will take it
+   */
+  static QueryStageEvent beginIfEnabled() {
+    if (!TYPE.isEnabled()) {
+      return null;
+    }
+    QueryStageEvent event = new QueryStageEvent();
+    event.begin();
+    return event;
+  }
+}
@@ -0,0 +1,41 @@
+package umm3601;
+
+import java.util.Collection;
+
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import umm3601.todo.Todo;
+import umm3601.todo.TodoSerializer;
+import umm3601.todo.TodoWithOwner;
+import umm3601.todo.TodoWithOwnerSerializer;
+import umm3601.user.User;
+import umm3601.user.UserSerializer;
+
+/**
+ * A Jackson module with our hand-written serializers for todos and users
+ * (see `TodoSerializer`, `TodoWithOwnerSerializer`, and `UserSerializer`),
+ * which are much more often written than anything else.
+ */
+public class RecordsModule extends SimpleModule {
+
+  public RecordsModule() {
+    this(null, null);
+  }
+
+  /**
+   * Construct a module whose serializer for the given type writes only
+   * the given fields (a projection, see `ContentNegotiation`). Records of
+   * the other types (like a todo's owner) are still written in full.
+   *
+   * @param projected the type to write only some fields of, or null for
+   *                  none
+   * @param fields    the names of the fields of that type to write
+   */
+  public RecordsModule(Class<?> projected, Collection<String> fields) {
+    super("RecordsModule");
+    addSerializer(Todo.class, new TodoSerializer(projected == Todo.class ? fields : TodoSerializer.FIELDS));
+    addSerializer(TodoWithOwner.class, new TodoWithOwnerSerializer(
+        projected == TodoWithOwner.class ? fields : TodoWithOwnerSerializer.FIELDS));
+    addSerializer(User.class, new UserSerializer(projected == User.class ? fields : UserSerializer.FIELDS));
+  }
+}
@@ -1,40 +1,142 @@
 package umm3601;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.javalin.Javalin;
+import io.javalin.http.Header;
+import io.javalin.json.JavalinJackson;
 import io.javalin.plugin.bundled.RouteOverviewPlugin;
-import io.javalin.http.staticfiles.Location;
+import umm3601.cluster.ClusterRouter;
 import umm3601.user.UserDatabase;
 import umm3601.user.UserController;
+import umm3601.todo.ShardedTodoDatabase;
 import umm3601.todo.TodoDatabase;
 import umm3601.todo.TodoController;
+import umm3601.todo.TodoOwnerJoin;
 
 public class Server {
 
+  private static final Logger LOG = LoggerFactory.getLogger(Server.class);
+
   private static final int PORT_NUMBER = 4567;
+  // By default, queries estimated to look at more than this many records
+  // are run on a separate, bounded pool of threads (see
+  // `AdmissionController`). Running with, e.g.,
+  // `-Dquery.maxCheapCost=100000` raises that for bigger data.
+  private static final long DEFAULT_MAX_CHEAP_QUERY_COST = 4_000;
+  private static final int EXPENSIVE_QUERY_THREADS = 4;
+  private static final int EXPENSIVE_QUERY_QUEUE = 16;
+  private static final int RETRY_AFTER_SECONDS = 1;
+  // Where the node count is in the arguments for starting a cluster node
+  private static final int NODE_COUNT_ARG = 3;
   public static final String CLIENT_DIRECTORY = "../client";
   public static final String USER_DATA_FILE = "/users.json";
   public static final String TODO_DATA_FILE = "/todos.json";
-  private static UserDatabase userDatabase;
-  private static TodoDatabase todoDatabase;
 
   public static void main(String[] args) {
+    if (args.length > 0 && args[0].equals("router")) {
+      // `router <port> <node URL>...` starts a router that sends requests
+      // on to the nodes at the given URLs
+      startRouter(Integer.parseInt(args[1]), Arrays.asList(args).subList(2, args.length));
+    } else if (args.length > 0 && args[0].equals("node")) {
+      // `node <port> <node number> <node count>` starts one node of a
+      // cluster, holding only that node's partition of the data
+      int node = Integer.parseInt(args[2]);
+      int nodeCount = Integer.parseInt(args[NODE_COUNT_ARG]);
+      startServer(Integer.parseInt(args[1]), ClusterRouter.partition(node, nodeCount));
+    } else if (args.length > 0 && args[0].equals("train")) {
+      // `train` starts a server, sends it a bit of everything, and stops:
+      // a run for recording the classes a real server loads (see the
+      // `cdsArchive` task in build.gradle)
+      train();
+    } else {
+      startServer(PORT_NUMBER, id -> true);
+    }
+  }
+
+  /**
+   * Start a server on any free port, send it each request in the
+   * synthetic query log (see `Warmup`) over HTTP, and then stop it and
+   * exit.
+   */
+  private static void train() {
+    Javalin server = startServer(0, id -> true);
+    List<String> log = Warmup.syntheticLog(buildTodoDatabase(id -> true).listTodos(Map.of()),
+        buildUserDatabase(id -> true).listUsers(Map.of()));
+    HttpClient client = HttpClient.newHttpClient();
+    try {
+      for (String request : log) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + request));
+        if (request.contains("smile=true")) {
+          builder.header(Header.ACCEPT, ContentNegotiation.SMILE);
+        }
+        client.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+      }
+      client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/")).build(),
+          HttpResponse.BodyHandlers.ofByteArray());
+    } catch (IOException | InterruptedException e) {
+      System.err.println("The training run failed; shutting down.");
+      e.printStackTrace(System.err);
+      System.exit(1);
+    }
+    server.stop();
+    System.exit(0);
+  }
+
+  /**
+   * Start a server holding the users and todos whose IDs are in the given
+   * partition (which is all of them, unless this is a node of a cluster).
+   *
+   * @param port the port to listen on (0 picks any free port)
+   * @param partition true for the IDs of the records this server holds
+   * @return the running server
+   */
+  public static Javalin startServer(int port, Predicate<String> partition) {
 
     // Initialize dependencies
-    UserController userController = buildUserController();
-    TodoController todoController = buildTodoController();
+    UserDatabase userDatabase = buildUserDatabase(partition);
+    TodoDatabase todoDatabase = buildTodoDatabase(partition);
+    UserController userController = new UserController(userDatabase);
+    // The owner-to-user map for `include=owner` is built from the users
+    // we've just loaded.
+    TodoController todoController = new TodoController(todoDatabase, new TodoOwnerJoin(userDatabase));
+    // Running with, e.g., `-Dquery.slowMillis=50` logs every query that
+    // takes at least 50 ms, along with its plan.
+    SlowQueryLog slowQueryLog = new SlowQueryLog(Long.getLong("query.slowMillis",
+        SlowQueryLog.DEFAULT_THRESHOLD_MILLIS));
+    userController.setSlowQueryLog(slowQueryLog);
+    todoController.setSlowQueryLog(slowQueryLog);
+    warmUp(todoController, userController, todoDatabase, userDatabase);
+    StaticAssets staticAssets = buildStaticAssets();
+    AdmissionController admission = new AdmissionController(
+        Long.getLong("query.maxCheapCost", DEFAULT_MAX_CHEAP_QUERY_COST),
+        EXPENSIVE_QUERY_THREADS, EXPENSIVE_QUERY_QUEUE, RETRY_AFTER_SECONDS);
 
     Javalin server = Javalin.create(config -> {
-      // This tells the server where to look for static files,
-      // like HTML and JavaScript.
-      config.staticFiles.add(CLIENT_DIRECTORY, Location.EXTERNAL);
       // This adds a Javalin plugin that will list all of the
       // routes/endpoints that we add below on a page reachable
       // via the "/api" path.
       config.plugins.register(new RouteOverviewPlugin("/api"));
-      // The next line starts the server listening on port 4567.
-    }).start(PORT_NUMBER);
+      // Write todos and users with our own serializers rather than
+      // Jackson's reflective ones.
+      config.jsonMapper(new JavalinJackson(new ObjectMapper().registerModule(new RecordsModule())));
+      // The next line starts the server listening on the given port.
+    }).start(port);
 
     // Simple example route
     server.get("/hello", ctx -> ctx.result("Hello World"));
@@ -45,33 +147,167 @@ public class Server {
 
     // API endpoints
 
+    // Export all the users as NDJSON. This has to come before
+    // "/api/users/{id}" so that "_export" isn't treated as an ID.
+    server.get("/api/users/_export", userController::exportUsers);
+
     // Get specific user
     server.get("/api/users/{id}", userController::getUser);
 
     // List users, filtered using query parameters
-    server.get("/api/users", userController::getUsers);
+    server.get("/api/users", admission.admit(userController::getUsers,
+        ctx -> userDatabase.estimateCost(ctx.queryParamMap())));
+
+    // Stream changes to todos, filtered using query parameters. This
+    // has to come before "/api/todos/{id}" so that "changes" isn't
+    // treated as an ID.
+    server.sse("/api/todos/changes", todoController::streamChanges);
+
+    // Export all the todos as NDJSON, and import more of them from NDJSON
+    // (in batches, publishing each one to the change feed). These also
+    // have to come before "/api/todos/{id}".
+    server.get("/api/todos/_export", todoController::exportTodos);
+    server.post("/api/todos/_import", todoController::importTodos);
 
     // Get specific todo
     server.get("/api/todos/{id}", todoController::getTodo);
 
     // List todos, filtered using query parameters
-    server.get("/api/todos", todoController::getTodos);
+    server.get("/api/todos", admission.admit(todoController::getTodos,
+        ctx -> todoDatabase.estimateCost(ctx.queryParamMap())));
+
+    // Report how many list requests were coalesced with identical
+    // requests that were already in flight, and how many expensive
+    // queries were deferred to (or rejected by) admission control, and
+    // how many were slow enough to be logged
+    server.get("/api/metrics", ctx -> ctx.json(Map.of(
+        "todos", coalescingMetrics(todoController.getListRequests()),
+        "users", coalescingMetrics(userController.getListRequests()),
+        "admission", Map.of(
+            "deferred", admission.getDeferred(),
+            "rejected", admission.getRejected()),
+        "slowQueries", slowQueryLog.getSlowQueries())));
+
+    // Static files, like HTML and JavaScript, served from memory. These
+    // have to come after all the other routes so that they don't hide
+    // any of them.
+    server.get("/", staticAssets::handle);
+    server.get("/<path>", staticAssets::handle);
+
+    return server;
+  }
+
+  /**
+   * Start a router that sends API requests on to the cluster nodes at the
+   * given URLs (see `ClusterRouter`).
+   *
+   * @param port the port to listen on (0 picks any free port)
+   * @param nodeUrls the base URLs of the nodes, in node number order
+   * @return the running router
+   */
+  public static Javalin startRouter(int port, List<String> nodeUrls) {
+    ClusterRouter router = new ClusterRouter(nodeUrls);
+    Javalin server = Javalin.create().start(port);
+
+    // As on the nodes, these come before the "{id}" routes so that
+    // "_export" and "changes" aren't treated as IDs.
+    server.get("/api/users/_export", router::exportUsers);
+    server.get("/api/users/{id}", router::getUser);
+    server.get("/api/users", router::getUsers);
+    server.sse("/api/todos/changes", router::streamChanges);
+    server.get("/api/todos/_export", router::exportTodos);
+    server.post("/api/todos/_import", router::importTodos);
+    server.get("/api/todos/{id}", router::getTodo);
+    server.get("/api/todos", router::getTodos);
+
+    return server;
+  }
+
+  /**
+   * Load the client files (HTML, JavaScript, CSS, ...) into memory so they
+   * can be served without going to the disk, and watch the client
+   * directory so that changes to those files show up without a restart.
+   *
+   * If there are problems reading the files we'll print out an error
+   * message and exit the program.
+   */
+  private static StaticAssets buildStaticAssets() {
+    StaticAssets staticAssets = null;
+
+    try {
+      staticAssets = new StaticAssets(Paths.get(CLIENT_DIRECTORY));
+      staticAssets.watch();
+    } catch (IOException e) {
+      System.err.println("The server failed to load the client files; shutting down.");
+      e.printStackTrace(System.err);
+
+      // Exit from the Java program
+      System.exit(1);
+    }
+
+    return staticAssets;
+  }
+
+  /**
+   * Replay a log of queries against the controllers before we start
+   * taking requests, so the JIT has compiled the hot paths before the
+   * first real request arrives (see `Warmup`).
+   *
+   * Running with, e.g., `-Dwarmup.rounds=200` replays the log 200 times.
+   * The log is made up from the data, unless one is given with
+   * `-Dwarmup.log=<file>`. If there are problems reading the log we'll
+   * print out an error message and exit the program.
+   */
+  private static void warmUp(TodoController todoController, UserController userController,
+      TodoDatabase todoDatabase, UserDatabase userDatabase) {
+    int rounds = Integer.getInteger("warmup.rounds", 0);
+    if (rounds <= 0) {
+      return;
+    }
+    List<String> log = null;
+    try {
+      String logFile = System.getProperty("warmup.log");
+      log = logFile != null
+          ? Warmup.readLog(Paths.get(logFile))
+          : Warmup.syntheticLog(todoDatabase.listTodos(Map.of()), userDatabase.listUsers(Map.of()));
+    } catch (IOException e) {
+      System.err.println("The server failed to read the warmup query log; shutting down.");
+      e.printStackTrace(System.err);
+
+      // Exit from the Java program
+      System.exit(1);
+    }
+    long start = System.nanoTime();
+    int replayed = new Warmup(todoController, userController).replay(log, rounds);
+    LOG.info("Warmed up with {} queries in {} ms", replayed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  /**
+   * Summarize how well a single-flight layer is coalescing requests.
+   *
+   * @param singleFlight the single-flight layer to report on
+   * @return a map with the total number of requests and the number of
+   *         those that were coalesced
+   */
+  private static Map<String, Long> coalescingMetrics(SingleFlight<?, ?> singleFlight) {
+    return Map.of(
+        "requests", singleFlight.getRequests(),
+        "coalesced", singleFlight.getCoalesced());
   }
 
   /***
-   * Create a database using the json file, use it as data source for a new
-   * UserController
+   * Create a database of users using the json file, keeping just the users
+   * whose IDs are in the given partition.
    *
-   * Constructing the controller might throw an IOException if there are problems
+   * Constructing the database might throw an IOException if there are problems
    * reading from the JSON "database" file. If that happens we'll print out an
    * error message exit the program.
    */
-  private static UserController buildUserController() {
-    UserController userController = null;
+  private static UserDatabase buildUserDatabase(Predicate<String> partition) {
+    UserDatabase userDatabase = null;
 
     try {
-      userDatabase = new UserDatabase(USER_DATA_FILE);
-      userController = new UserController(userDatabase);
+      userDatabase = new UserDatabase(USER_DATA_FILE, user -> partition.test(user._id));
     } catch (IOException e) {
       System.err.println("The server failed to load the user data; shutting down.");
       e.printStackTrace(System.err);
@@ -80,23 +316,33 @@ public class Server {
       System.exit(1);
     }
 
-    return userController;
+    return userDatabase;
   }
 
   /***
-   * Create a database using the json file, use it as data source for a new
-   * TodoController
+   * Create a database of todos using the json file, keeping just the todos
+   * whose IDs are in the given partition.
    *
-   * Constructing the controller might throw an IOException if there are problems
+   * Constructing the database might throw an IOException if there are problems
    * reading from the JSON "database" file. If that happens we'll print out an
    * error message and exit the program.
    */
-  private static TodoController buildTodoController() {
-    TodoController todoController = null;
+  private static TodoDatabase buildTodoDatabase(Predicate<String> partition) {
+    TodoDatabase todoDatabase = null;
 
     try {
-      todoDatabase = new TodoDatabase(TODO_DATA_FILE);
-      todoController = new TodoController(todoDatabase);
+      // Running with, e.g., `-Dtodo.shards=8` splits the todos into 8
+      // shards that are queried in parallel.
+      int todoShards = Integer.getInteger("todo.shards", 1);
+      if (todoShards > 1) {
+        todoDatabase = new ShardedTodoDatabase(TODO_DATA_FILE, todo -> partition.test(todo._id), todoShards);
+      } else {
+        todoDatabase = new TodoDatabase(TODO_DATA_FILE, todo -> partition.test(todo._id));
+      }
+      // Running with, e.g., `-Dtodo.parallelThreshold=50000` filters any
+      // 50,000 or more todos in parallel.
+      todoDatabase.setParallelThreshold(Integer.getInteger("todo.parallelThreshold",
+          TodoDatabase.DEFAULT_PARALLEL_THRESHOLD));
     } catch (IOException e) {
       System.err.println("The server failed to load the todo data; shutting down.");
       e.printStackTrace(System.err);
@@ -104,6 +350,6 @@ public class Server {
       // Exit from the Java program
       System.exit(1);
     }
-    return todoController;
+    return todoDatabase;
   }
 }
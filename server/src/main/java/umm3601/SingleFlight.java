@@ -0,0 +1,91 @@
+package umm3601;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent computations of the same key into one.
+ * <p>
+ * If a request asks for a key that some other thread is already
+ * computing, it waits for that computation and shares its result
+ * instead of doing the same (possibly expensive) work again. Once a
+ * computation finishes it is forgotten, so this is not a cache: later
+ * requests for the same key compute it afresh.
+ *
+ * @param <K> the type of the keys, which must have sensible `equals`
+ *            and `hashCode` methods
+ * @param <V> the type of the computed values, which must not be
+ *            modified after they are computed since they are shared
+ */
+public class SingleFlight<K, V> {
+
+  private Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private LongAdder requests = new LongAdder();
+  private LongAdder coalesced = new LongAdder();
+
+  /**
+   * Get the value for the given key, either by computing it or by
+   * waiting for a computation of the same key that's already running.
+   * If that computation throws an exception, every request waiting on
+   * it gets the same exception.
+   *
+   * @param key     the key identifying the computation
+   * @param compute computes the value for the key
+   * @return the value for the key
+   */
+  public V run(K key, Supplier<V> compute) {
+    requests.increment();
+    CompletableFuture<V> ours = new CompletableFuture<>();
+    CompletableFuture<V> theirs = inFlight.putIfAbsent(key, ours);
+    if (theirs != null) {
+      coalesced.increment();
+      return await(theirs);
+    }
+    try {
+      V value = compute.get();
+      ours.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      ours.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, ours);
+    }
+  }
+
+  private V await(CompletableFuture<V> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      // Rethrow the original exception (e.g., a `BadRequestResponse`)
+      // so that waiting requests fail the same way the computing one did.
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw (RuntimeException) e.getCause();
+    }
+  }
+
+  /**
+   * Get the total number of requests made through `run`.
+   *
+   * @return the number of requests
+   */
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  /**
+   * Get the number of requests that shared another request's
+   * computation rather than doing their own.
+   *
+   * @return the number of coalesced requests
+   */
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+}
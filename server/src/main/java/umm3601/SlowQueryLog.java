@@ -0,0 +1,53 @@
+package umm3601;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs the queries that take longer than some threshold to answer,
+ * along with their plans, so we can see where the time went.
+ */
+public class SlowQueryLog {
+
+  public static final long DEFAULT_THRESHOLD_MILLIS = 250;
+
+  private static final Logger LOG = LoggerFactory.getLogger(SlowQueryLog.class);
+
+  private double thresholdMillis;
+  private LongAdder slowQueries = new LongAdder();
+
+  /**
+   * Construct a log of the queries that take at least the given time.
+   *
+   * @param thresholdMillis how long (in milliseconds) a query has to take
+   *                        to be logged
+   */
+  public SlowQueryLog(long thresholdMillis) {
+    this.thresholdMillis = thresholdMillis;
+  }
+
+  /**
+   * Log the given query if it took too long.
+   *
+   * @param endpoint the path the query was sent to
+   * @param plan     the plan of the finished query
+   */
+  public void record(String endpoint, QueryPlan plan) {
+    if (plan.totalMillis >= thresholdMillis) {
+      slowQueries.increment();
+      LOG.warn("Slow query on {} took {} ms: {} {}",
+          endpoint, String.format("%.3f", plan.totalMillis), plan.query, plan);
+    }
+  }
+
+  /**
+   * Get the number of queries that have been logged as slow.
+   *
+   * @return the number of slow queries
+   */
+  public long getSlowQueries() {
+    return slowQueries.sum();
+  }
+}
@@ -0,0 +1,226 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+
+/**
+ * Serves the client files (HTML, JavaScript, CSS, ...) from memory.
+ * <p>
+ * All the files in the client directory are read once, when this is
+ * constructed, along with a gzip-compressed copy of each and a strong
+ * ETag computed from its contents. Requests are then answered without
+ * touching the disk, clients that already have the current version of
+ * a file just get a `304 Not Modified`, and clients that accept gzip
+ * get the smaller, already-compressed copy.
+ * <p>
+ * The compressed copy is a different representation of the file, with
+ * different bytes, so it has an ETag of its own (the same one with
+ * `-gzip` on the end), and responses say they vary by `Accept-Encoding`.
+ * That way a cache never hands out one representation in answer to a
+ * request for the other.
+ * <p>
+ * If `watch` is called, the files are reloaded whenever something in
+ * the client directory changes, so edits show up without a restart.
+ */
+public class StaticAssets {
+
+  // Tell browsers they can keep files, but must check (with the ETag)
+  // that they haven't changed before using them.
+  static final String CACHE_CONTROL = "no-cache";
+
+  private static final Map<String, String> CONTENT_TYPES = Map.of(
+      "html", "text/html; charset=utf-8",
+      "js", "text/javascript; charset=utf-8",
+      "css", "text/css; charset=utf-8",
+      "json", "application/json",
+      "svg", "image/svg+xml",
+      "png", "image/png",
+      "ico", "image/x-icon");
+
+  private Path directory;
+  // Replaced as a whole (by the watcher thread) whenever the files change
+  private volatile Map<String, Asset> assets;
+
+  /**
+   * Load all the files in the given directory into memory.
+   *
+   * @param directory the directory of client files to serve
+   * @throws IOException if there are problems reading the files
+   */
+  public StaticAssets(Path directory) throws IOException {
+    this.directory = directory;
+    reload();
+  }
+
+  /**
+   * Read all the files in the client directory again, replacing the ones
+   * we've been serving.
+   *
+   * @throws IOException if there are problems reading the files
+   */
+  public void reload() throws IOException {
+    Map<String, Asset> newAssets = new HashMap<>();
+    for (Path file : files(Files::isRegularFile)) {
+      String path = "/" + directory.relativize(file).toString().replace('\\', '/');
+      newAssets.put(path, new Asset(file));
+    }
+    assets = newAssets;
+  }
+
+  /**
+   * Start a background thread that reloads the files whenever anything
+   * in the client directory is created, changed, or deleted.
+   *
+   * @throws IOException if the directory can't be watched
+   */
+  public void watch() throws IOException {
+    WatchService watcher = directory.getFileSystem().newWatchService();
+    register(watcher);
+    Thread thread = new Thread(() -> {
+      try {
+        while (true) {
+          WatchKey key = watcher.take();
+          key.pollEvents();
+          key.reset();
+          reload();
+          // Pick up any new subdirectories, too
+          register(watcher);
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // We've been asked to stop watching
+      } catch (IOException e) {
+        System.err.println("Failed to reload the client files; no longer watching for changes.");
+        e.printStackTrace(System.err);
+      }
+    }, "static-assets-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void register(WatchService watcher) throws IOException {
+    for (Path dir : files(Files::isDirectory)) {
+      dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+  }
+
+  private List<Path> files(java.util.function.Predicate<Path> kind) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      return paths.filter(kind).collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Respond with the client file for the requested path, where `/` means
+   * `/index.html`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void handle(Context ctx) {
+    String path = ctx.path().equals("/") ? "/index.html" : ctx.path();
+    Asset asset = assets.get(path);
+    if (asset == null) {
+      throw new NotFoundResponse("No file " + path + " was found.");
+    }
+    String acceptEncoding = ctx.header(Header.ACCEPT_ENCODING);
+    boolean gzip = asset.gzipped != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+    String etag = gzip ? asset.gzippedEtag : asset.etag;
+    ctx.header(Header.ETAG, etag);
+    ctx.header(Header.CACHE_CONTROL, CACHE_CONTROL);
+    ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+    if (matches(ctx.header(Header.IF_NONE_MATCH), etag)) {
+      // The client already has this version (and encoding) of the file
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return;
+    }
+    ctx.contentType(asset.contentType);
+    if (gzip) {
+      ctx.header(Header.CONTENT_ENCODING, "gzip");
+      ctx.result(asset.gzipped);
+    } else {
+      ctx.result(asset.bytes);
+    }
+  }
+
+  /**
+   * Check whether an `If-None-Match` header (which may list several
+   * ETags, or be `*` for any) matches the given ETag.
+   */
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String trimmed = candidate.trim();
+      if (trimmed.equals("*") || trimmed.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A single client file, held in memory.
+   */
+  private static final class Asset {
+    private final byte[] bytes;
+    // A gzip-compressed copy of `bytes`, or null if that wouldn't be smaller
+    private final byte[] gzipped;
+    private final String etag;
+    // The ETag of `gzipped`, which is a different representation of the file
+    private final String gzippedEtag;
+    private final String contentType;
+
+    private Asset(Path file) throws IOException {
+      bytes = Files.readAllBytes(file);
+      byte[] compressed = gzip(bytes);
+      gzipped = compressed.length < bytes.length ? compressed : null;
+      String hash = sha256(bytes);
+      etag = "\"" + hash + "\"";
+      gzippedEtag = "\"" + hash + "-gzip\"";
+      String name = file.getFileName().toString();
+      String extension = name.substring(name.lastIndexOf('.') + 1);
+      contentType = CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+        gzip.write(bytes);
+      }
+      return compressed.toByteArray();
+    }
+
+    private static String sha256(byte[] bytes) {
+      try {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+          hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+        // Every Java platform is required to support SHA-256
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A sorted, case-folded dictionary of the values of one field (like a
+ * todo's owner or a user's company), with a posting list of the records
+ * having each value.
+ * <p>
+ * Since the (lower-cased) terms are kept in sorted order, all the terms
+ * starting with a given prefix sit next to each other. A prefix search is
+ * then a binary search for the first such term, followed by a union of
+ * the posting lists of the terms from there on that share the prefix.
+ */
+public class TermDictionary {
+
+  private String[] terms;
+  // `postings[i]` holds the (sorted) ordinals of the records whose value
+  // is `terms[i]`, ignoring case
+  private int[][] postings;
+
+  /**
+   * Build a dictionary of the given values.
+   *
+   * @param values the value of the field for each record, where
+   *               `values[i]` belongs to the record with ordinal `i`
+   */
+  public TermDictionary(String[] values) {
+    Map<String, List<Integer>> ordinalsByTerm = new TreeMap<>();
+    for (int i = 0; i < values.length; i++) {
+      ordinalsByTerm.computeIfAbsent(fold(values[i]), x -> new ArrayList<>()).add(i);
+    }
+    terms = ordinalsByTerm.keySet().toArray(new String[0]);
+    postings = new int[terms.length][];
+    int i = 0;
+    for (List<Integer> ordinals : ordinalsByTerm.values()) {
+      postings[i++] = ordinals.stream().mapToInt(Integer::intValue).toArray();
+    }
+  }
+
+  private static String fold(String value) {
+    return value.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Get the number of distinct (case-folded) terms in the dictionary.
+   *
+   * @return the number of terms
+   */
+  public int size() {
+    return terms.length;
+  }
+
+  /**
+   * Find the records whose value starts with the given prefix, ignoring
+   * case.
+   *
+   * @param prefix the prefix to look for
+   * @return the sorted ordinals of the matching records
+   */
+  public int[] prefixMatches(String prefix) {
+    String folded = fold(prefix);
+    int first = firstTermWith(folded);
+    int last = first;
+    while (last < terms.length && terms[last].startsWith(folded)) {
+      last++;
+    }
+    return PostingLists.union(Arrays.copyOfRange(postings, first, last));
+  }
+
+  /**
+   * Count the records whose value starts with the given prefix, ignoring
+   * case, without building their posting list (e.g., to estimate the cost
+   * of a query).
+   *
+   * @param prefix the prefix to look for
+   * @return the number of matching records
+   */
+  public long prefixCount(String prefix) {
+    String folded = fold(prefix);
+    long count = 0;
+    for (int i = firstTermWith(folded); i < terms.length && terms[i].startsWith(folded); i++) {
+      count += postings[i].length;
+    }
+    return count;
+  }
+
+  private int firstTermWith(String foldedPrefix) {
+    int first = Arrays.binarySearch(terms, foldedPrefix);
+    // A negative result encodes where the prefix would be inserted, which
+    // is exactly where the terms starting with it begin.
+    return first < 0 ? -first - 1 : first;
+  }
+}
@@ -0,0 +1,177 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import io.javalin.http.BadRequestResponse;
+import umm3601.todo.Todo;
+import umm3601.todo.TodoController;
+import umm3601.user.User;
+import umm3601.user.UserController;
+
+/**
+ * Replays a log of queries against the controllers before the server
+ * starts taking requests, so that the JIT has already compiled the
+ * query and serialization code that real requests will run. Otherwise
+ * the first few thousand requests after a restart run (slowly) in the
+ * interpreter.
+ * <p>
+ * A query log has one request per line, like
+ * `/api/todos?owner=Fry&orderBy=body`. It can be recorded from real
+ * traffic, or made up from the data with `syntheticLog`.
+ */
+public class Warmup {
+
+  private static final String TODOS = "/api/todos";
+  private static final String USERS = "/api/users";
+
+  private TodoController todoController;
+  private UserController userController;
+
+  /**
+   * Construct a warmup that runs queries through the given controllers.
+   *
+   * @param todoController the controller to run todo queries with
+   * @param userController the controller to run user queries with
+   */
+  public Warmup(TodoController todoController, UserController userController) {
+    this.todoController = todoController;
+    this.userController = userController;
+  }
+
+  /**
+   * Read a query log from the given file, skipping blank lines.
+   *
+   * @param file the file holding the log
+   * @return the requests in the log
+   * @throws IOException if there are problems reading the file
+   */
+  public static List<String> readLog(Path file) throws IOException {
+    return Files.readAllLines(file).stream()
+        .map(String::trim)
+        .filter(line -> !line.isEmpty())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Make up a query log with a bit of everything: each filter (with
+   * values taken from the given data), each order, limits, combinations
+   * of those, owners, projections, and Smile.
+   *
+   * @param todos the todos the server holds
+   * @param users the users the server holds
+   * @return the made-up requests
+   */
+  public static List<String> syntheticLog(Todo[] todos, User[] users) {
+    List<String> log = new ArrayList<>();
+    TreeSet<String> owners = Arrays.stream(todos).map(x -> x.owner).collect(Collectors.toCollection(TreeSet::new));
+    TreeSet<String> categories = Arrays.stream(todos).map(x -> x.category)
+        .collect(Collectors.toCollection(TreeSet::new));
+    for (String owner : owners) {
+      log.add(TODOS + "?" + param("owner", owner));
+      log.add(TODOS + "?" + param("ownerPrefix", owner.substring(0, 1).toLowerCase()) + "&status=complete");
+      log.add(TODOS + "?" + param("owner", owner) + "&orderBy=body&limit=10");
+    }
+    for (String category : categories) {
+      log.add(TODOS + "?" + param("category", category) + "&status=incomplete");
+    }
+    for (String orderBy : List.of("owner", "body", "status", "category")) {
+      log.add(TODOS + "?orderBy=" + orderBy + "&limit=20");
+    }
+    log.add(TODOS + "?" + param("owner", owners.first()) + "&" + param("owner", owners.last())
+        + "&" + param("category", categories.first()));
+    log.add(TODOS + "?contains=ipsum&limit=5");
+    log.add(TODOS + "?" + param("contains", "non est"));
+    log.add(TODOS + "?include=owner&limit=25");
+    log.add(TODOS + "?fields=_id,owner&limit=50");
+    log.add(TODOS + "?smile=true&limit=50");
+    log.add(TODOS);
+    for (User user : users) {
+      log.add(USERS + "?" + param("company", user.company));
+      log.add(USERS + "?age=" + user.age + "&" + param("namePrefix", user.name.substring(0, 1)));
+      log.add(USERS + "?" + param("companyPrefix", user.company.substring(0, 2).toLowerCase()));
+    }
+    log.add(USERS + "?fields=name,email");
+    log.add(USERS + "?smile=true");
+    log.add(USERS);
+    return log;
+  }
+
+  private static String param(String key, String value) {
+    return key + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Run every request in the log the given number of times.
+   * <p>
+   * Each request's results are encoded the way the client would have
+   * asked for them; since there's no real client, `smile=true` in a
+   * request stands for `Accept: application/x-jackson-smile`. Requests
+   * the server would have rejected (e.g., from a recorded log) are
+   * skipped.
+   *
+   * @param log    the requests to run
+   * @param rounds how many times to run the whole log
+   * @return the number of requests that were run successfully
+   */
+  public int replay(List<String> log, int rounds) {
+    int replayed = 0;
+    for (int round = 0; round < rounds; round++) {
+      for (String request : log) {
+        try {
+          if (replay(request)) {
+            replayed++;
+          }
+        } catch (BadRequestResponse e) {
+          // A real client would have gotten a 400 for this one
+        }
+      }
+    }
+    return replayed;
+  }
+
+  private boolean replay(String request) {
+    int queryStart = request.indexOf('?');
+    String path = queryStart < 0 ? request : request.substring(0, queryStart);
+    Map<String, List<String>> queryParams = parseQuery(queryStart < 0 ? "" : request.substring(queryStart + 1));
+    List<String> smileParam = queryParams.remove("smile");
+    boolean smile = smileParam != null && smileParam.get(0).equals("true");
+    List<String> fieldsParam = queryParams.get("fields");
+    String fields = fieldsParam == null ? null : fieldsParam.get(0);
+    Object results;
+    if (path.equals(TODOS)) {
+      results = todoController.listTodos(queryParams, new QueryPlan(queryParams));
+    } else if (path.equals(USERS)) {
+      results = userController.listUsers(queryParams, new QueryPlan(queryParams));
+    } else {
+      return false;
+    }
+    ContentNegotiation.encode(results, fields, smile);
+    return true;
+  }
+
+  private static Map<String, List<String>> parseQuery(String query) {
+    Map<String, List<String>> queryParams = new TreeMap<>();
+    for (String param : query.split("&")) {
+      if (param.isEmpty()) {
+        continue;
+      }
+      int equals = param.indexOf('=');
+      String key = URLDecoder.decode(equals < 0 ? param : param.substring(0, equals), StandardCharsets.UTF_8);
+      String value = equals < 0 ? "" : URLDecoder.decode(param.substring(equals + 1), StandardCharsets.UTF_8);
+      queryParams.computeIfAbsent(key, x -> new ArrayList<>()).add(value);
+    }
+    return queryParams;
+  }
+}
@@ -0,0 +1,577 @@
+package umm3601.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.sse.SseClient;
+import umm3601.ContentNegotiation;
+import umm3601.NdjsonExport;
+
+/**
+ * Routes API requests to a cluster of server nodes that each hold one
+ * partition of the todos and users.
+ * <p>
+ * Records are assigned to nodes by consistent hashing of their IDs, so a
+ * request for a single todo or user is forwarded to the one node that
+ * holds it. A request to list todos or users is sent to every node at
+ * once, asking each node to send every record with its ordering key (see
+ * `ContentNegotiation.encodeKeyed`): its position in the data file, or,
+ * for records written since the node started, a number past the end of
+ * the file. Each node's (already filtered, sorted, and limited) results
+ * are read one record at a time from its response stream, and merged by
+ * any `orderBy` and then by key, so the records come back in the order a
+ * single server would have them. (Records written to different nodes
+ * since they started are only in order within each node.) The merged
+ * records are written to the client as they're found, in the format,
+ * and with the fields, that it asked for.
+ * <p>
+ * Exports send each node's records in turn, imports send each record to
+ * the node that it belongs to, and the change feed passes on every
+ * node's changes.
+ * <p>
+ * `include=owner` isn't supported, since each node only holds some of
+ * the users, so a node can't find the owners of all of its todos.
+ */
+public class ClusterRouter {
+
+  // The number of imported todos that are split up among the nodes and
+  // sent to them at a time
+  static final int IMPORT_BATCH_SIZE = 1000;
+
+  private List<String> nodeUrls;
+  private ConsistentHashRing ring;
+  private HttpClient client = HttpClient.newHttpClient();
+  private ObjectMapper objectMapper = new ObjectMapper();
+  private ObjectMapper smileMapper = new SmileMapper();
+
+  /**
+   * Construct a router for the nodes at the given URLs. The node at
+   * `nodeUrls.get(i)` must have been started with `partition(i, n)`.
+   *
+   * @param nodeUrls the base URLs (like "http://localhost:4568") of the nodes
+   */
+  public ClusterRouter(List<String> nodeUrls) {
+    this.nodeUrls = nodeUrls;
+    this.ring = new ConsistentHashRing(nodeUrls.size());
+  }
+
+  /**
+   * Get a test for whether a record ID belongs to the given node.
+   *
+   * @param node      the number of the node, from 0
+   * @param nodeCount the number of nodes in the cluster
+   * @return a predicate that is true for IDs that belong to the node
+   */
+  public static Predicate<String> partition(int node, int nodeCount) {
+    ConsistentHashRing ring = new ConsistentHashRing(nodeCount);
+    return id -> ring.nodeFor(id) == node;
+  }
+
+  /**
+   * Forward a request for a single todo to the node that holds it.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodo(Context ctx) {
+    forward(ctx, "/api/todos/");
+  }
+
+  /**
+   * Forward a request for a single user to the node that holds it.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUser(Context ctx) {
+    forward(ctx, "/api/users/");
+  }
+
+  /**
+   * List the todos matching the query from all the nodes, merged in
+   * `orderBy` order (if there is one) and cut down to `limit` todos.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems reading the nodes'
+   *                     responses or sending the merged one
+   */
+  public void getTodos(Context ctx) throws IOException {
+    if (ctx.queryParam("include") != null) {
+      throw new BadRequestResponse("Including the owner of todos is not supported by a cluster");
+    }
+    String orderBy = ctx.queryParam("orderBy");
+    fanOut(ctx, "/api/todos", orderBy == null ? null : orderBy.toLowerCase());
+  }
+
+  /**
+   * List the users matching the query from all the nodes.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems reading the nodes'
+   *                     responses or sending the merged one
+   */
+  public void getUsers(Context ctx) throws IOException {
+    fanOut(ctx, "/api/users", null);
+  }
+
+  /**
+   * Send every todo on every node as NDJSON, one node after another.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems copying the nodes' exports
+   */
+  public void exportTodos(Context ctx) throws IOException {
+    export(ctx, "/api/todos/_export");
+  }
+
+  /**
+   * Send every user on every node as NDJSON, one node after another.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems copying the nodes' exports
+   */
+  public void exportUsers(Context ctx) throws IOException {
+    export(ctx, "/api/users/_export");
+  }
+
+  /**
+   * Add the todos in the body of the request (NDJSON, as for a single
+   * server) to the nodes they belong on.
+   * <p>
+   * The todos are read as they arrive, and every `IMPORT_BATCH_SIZE` of
+   * them are split up by node and sent to the nodes' own imports at once.
+   * If a node rejects its part of a batch, the rejection is passed on
+   * (so the todo numbers in it count just that node's todos), but the
+   * batches before it have already been added.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems reading the request or the
+   *                     nodes' responses
+   */
+  public void importTodos(Context ctx) throws IOException {
+    int imported = 0;
+    ByteArrayOutputStream[] batch = newImportBatch();
+    int batchSize = 0;
+    try (MappingIterator<JsonNode> todos = objectMapper.readerFor(JsonNode.class)
+        .readValues(ctx.bodyInputStream())) {
+      while (todos.hasNextValue()) {
+        JsonNode todo = todos.nextValue();
+        if (!todo.path("_id").isTextual()) {
+          throw new BadRequestResponse("Imported todo " + (imported + batchSize + 1)
+              + " has no _id (imported " + imported + " before it)");
+        }
+        OutputStream nodeBatch = batch[ring.nodeFor(todo.get("_id").asText())];
+        nodeBatch.write(objectMapper.writeValueAsBytes(todo));
+        nodeBatch.write('\n');
+        batchSize++;
+        if (batchSize == IMPORT_BATCH_SIZE) {
+          if (!sendImportBatch(ctx, batch)) {
+            return;
+          }
+          imported += batchSize;
+          batch = newImportBatch();
+          batchSize = 0;
+        }
+      }
+    } catch (JsonProcessingException e) {
+      throw new BadRequestResponse("Imported todo " + (imported + batchSize + 1)
+          + " isn't a valid todo (imported " + imported + " before it)");
+    }
+    if (batchSize > 0) {
+      if (!sendImportBatch(ctx, batch)) {
+        return;
+      }
+      imported += batchSize;
+    }
+    ctx.json(Map.of("imported", imported));
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Stream the changes to the todos matching the filters in the request
+   * from every node to the client as Server-Sent Events. If a node's
+   * stream ends, so does the client's, so that it reconnects to all of
+   * them.
+   *
+   * @param sse a Javalin Server-Sent Events client
+   */
+  public void streamChanges(SseClient sse) {
+    String query = sse.ctx().queryString();
+    List<EventRelay> relays = new ArrayList<>();
+    for (String nodeUrl : nodeUrls) {
+      HttpRequest request = HttpRequest.newBuilder(
+          URI.create(nodeUrl + "/api/todos/changes" + (query == null ? "" : "?" + query)))
+          .header(Header.ACCEPT, "text/event-stream").build();
+      EventRelay relay = new EventRelay(sse);
+      relays.add(relay);
+      client.sendAsync(request, HttpResponse.BodyHandlers.fromLineSubscriber(relay));
+    }
+    sse.onClose(() -> relays.forEach(EventRelay::cancel));
+    // Keep the connection open until the client goes away
+    sse.keepAlive();
+  }
+
+  private void forward(Context ctx, String path) {
+    String id = ctx.pathParam("id");
+    String url = nodeUrls.get(ring.nodeFor(id))
+        + path + URLEncoder.encode(id, StandardCharsets.UTF_8).replace("+", "%20");
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url));
+    String accept = ctx.header(Header.ACCEPT);
+    if (accept != null) {
+      request.header(Header.ACCEPT, accept);
+    }
+    HttpResponse<byte[]> response = client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray()).join();
+    // The nodes pick the format from the Accept header we forwarded
+    ctx.header(Header.VARY, Header.ACCEPT);
+    passOn(ctx, response.statusCode(), response.headers().firstValue(Header.CONTENT_TYPE).orElse(null),
+        response.body());
+  }
+
+  /**
+   * Send a node's response on to the client as it is.
+   */
+  private static void passOn(Context ctx, int status, String contentType, byte[] body) {
+    ctx.status(status);
+    if (contentType != null) {
+      ctx.contentType(contentType);
+    }
+    ctx.result(body);
+  }
+
+  /**
+   * Pass on a node's response, which wasn't a success, to the client.
+   * Every node gets the same request, so if one of them rejects it (e.g.,
+   * with a 400) we can pass that rejection straight on.
+   */
+  private static void passOnFailure(Context ctx, HttpResponse<InputStream> response) throws IOException {
+    passOn(ctx, response.statusCode(), response.headers().firstValue(Header.CONTENT_TYPE).orElse(null),
+        response.body().readAllBytes());
+  }
+
+  /**
+   * Send the given request (path and query) to every node at once, and
+   * wait for the start of each response.
+   */
+  private List<HttpResponse<InputStream>> sendToAll(Context ctx, String pathAndQuery) {
+    String accept = ctx.header(Header.ACCEPT);
+    List<CompletableFuture<HttpResponse<InputStream>>> requests = new ArrayList<>();
+    for (String nodeUrl : nodeUrls) {
+      HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(nodeUrl + pathAndQuery))
+          .header(ContentNegotiation.ORDERING_KEYS, "true");
+      if (accept != null) {
+        request.header(Header.ACCEPT, accept);
+      }
+      requests.add(client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream()));
+    }
+    List<HttpResponse<InputStream>> responses = new ArrayList<>();
+    for (CompletableFuture<HttpResponse<InputStream>> request : requests) {
+      responses.add(request.join());
+    }
+    return responses;
+  }
+
+  private void fanOut(Context ctx, String path, String orderBy) throws IOException {
+    List<HttpResponse<InputStream>> responses = sendToAll(ctx, path + nodeQuery(ctx, orderBy));
+    try {
+      for (HttpResponse<InputStream> response : responses) {
+        if (response.statusCode() != HttpStatus.OK.getCode()) {
+          passOnFailure(ctx, response);
+          return;
+        }
+      }
+      // Each node explains its own part of an `explain=true` query, so we
+      // send back all of their plans rather than merging results.
+      if ("true".equals(ctx.queryParam("explain"))) {
+        List<JsonNode> plans = new ArrayList<>();
+        for (HttpResponse<InputStream> response : responses) {
+          plans.add(mapperFor(response).readTree(response.body()));
+        }
+        ctx.json(plans);
+        return;
+      }
+      merge(ctx, responses, orderBy);
+    } finally {
+      for (HttpResponse<InputStream> response : responses) {
+        closeQuietly(response.body());
+      }
+    }
+  }
+
+  /**
+   * Do a k-way merge of the nodes' lists of `[key, record]` pairs, each
+   * sorted by the given field and then by key, reading one record at a
+   * time from each node and writing each merged record to the client as
+   * soon as it's found, until there are `limit` of them.
+   *
+   * @param ctx       a Javalin HTTP context
+   * @param responses the nodes' responses
+   * @param orderBy   the field each list is sorted by, or null if they
+   *                  are only in key order
+   * @throws IOException if there are problems reading the responses or
+   *                     writing the merged list
+   */
+  private void merge(Context ctx, List<HttpResponse<InputStream>> responses, String orderBy) throws IOException {
+    // Ties are broken by node, so the merge is stable
+    Comparator<NodeList> order = Comparator.comparingLong((NodeList list) -> list.key)
+        .thenComparingInt(list -> list.node);
+    if (orderBy != null) {
+      order = Comparator.comparing((NodeList list) -> list.record.path(orderBy).asText()).thenComparing(order);
+    }
+    PriorityQueue<NodeList> heads = new PriorityQueue<>(order);
+    for (int node = 0; node < responses.size(); node++) {
+      HttpResponse<InputStream> response = responses.get(node);
+      // Read each node's results in whichever format the node sent them
+      NodeList list = new NodeList(node, mapperFor(response).createParser(response.body()));
+      if (list.next()) {
+        heads.add(list);
+      }
+    }
+    // The nodes have already checked that the limit is a number
+    String limitParam = ctx.queryParam("limit");
+    int limit = limitParam == null ? Integer.MAX_VALUE : Integer.parseInt(limitParam);
+    // Drop any fields we only asked the nodes for so we could merge
+    String fields = ctx.queryParam("fields");
+    List<String> requested = fields == null ? null : List.of(fields.split(","));
+    boolean smile = ContentNegotiation.acceptsSmile(ctx);
+    ctx.header(Header.VARY, Header.ACCEPT);
+    ctx.contentType(smile ? ContentNegotiation.SMILE : ContentType.JSON);
+    try (JsonGenerator generator = (smile ? smileMapper : objectMapper).createGenerator(ctx.outputStream())) {
+      generator.writeStartArray();
+      for (int written = 0; written < limit && !heads.isEmpty(); written++) {
+        NodeList head = heads.poll();
+        if (requested != null) {
+          head.record.retain(requested);
+        }
+        generator.writeTree(head.record);
+        if (head.next()) {
+          heads.add(head);
+        }
+      }
+      generator.writeEndArray();
+    }
+  }
+
+  private ObjectMapper mapperFor(HttpResponse<InputStream> response) {
+    boolean smile = response.headers().firstValue(Header.CONTENT_TYPE)
+        .filter(type -> type.startsWith(ContentNegotiation.SMILE)).isPresent();
+    return smile ? smileMapper : objectMapper;
+  }
+
+  private void export(Context ctx, String path) throws IOException {
+    List<HttpResponse<InputStream>> responses = sendToAll(ctx, path);
+    try {
+      for (HttpResponse<InputStream> response : responses) {
+        if (response.statusCode() != HttpStatus.OK.getCode()) {
+          passOnFailure(ctx, response);
+          return;
+        }
+      }
+      ctx.contentType(NdjsonExport.NDJSON);
+      OutputStream out = ctx.outputStream();
+      for (HttpResponse<InputStream> response : responses) {
+        response.body().transferTo(out);
+      }
+    } finally {
+      for (HttpResponse<InputStream> response : responses) {
+        closeQuietly(response.body());
+      }
+    }
+  }
+
+  private ByteArrayOutputStream[] newImportBatch() {
+    ByteArrayOutputStream[] batch = new ByteArrayOutputStream[nodeUrls.size()];
+    for (int node = 0; node < batch.length; node++) {
+      batch[node] = new ByteArrayOutputStream();
+    }
+    return batch;
+  }
+
+  /**
+   * Send each node its part of a batch of imported todos, passing on the
+   * first rejection if there is one.
+   *
+   * @return true if every node added its part of the batch
+   */
+  private boolean sendImportBatch(Context ctx, ByteArrayOutputStream[] batch) {
+    List<CompletableFuture<HttpResponse<byte[]>>> requests = new ArrayList<>();
+    for (int node = 0; node < batch.length; node++) {
+      if (batch[node].size() > 0) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(nodeUrls.get(node) + "/api/todos/_import"))
+            .header(Header.CONTENT_TYPE, NdjsonExport.NDJSON)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(batch[node].toByteArray()))
+            .build();
+        requests.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()));
+      }
+    }
+    boolean added = true;
+    for (CompletableFuture<HttpResponse<byte[]>> request : requests) {
+      HttpResponse<byte[]> response = request.join();
+      if (added && response.statusCode() != HttpStatus.CREATED.getCode()) {
+        passOn(ctx, response.statusCode(), response.headers().firstValue(Header.CONTENT_TYPE).orElse(null),
+            response.body());
+        added = false;
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Build the query string to send to the nodes: the client's own query,
+   * except that a `fields` list also asks for the `orderBy` field, which
+   * the merge needs.
+   */
+  private static String nodeQuery(Context ctx, String orderBy) {
+    List<String> params = new ArrayList<>();
+    for (Map.Entry<String, List<String>> param : ctx.queryParamMap().entrySet()) {
+      List<String> values = param.getValue();
+      if (param.getKey().equals("fields") && orderBy != null) {
+        // Only the first `fields` list is used
+        values = List.of(values.get(0) + "," + orderBy);
+      }
+      for (String value : values) {
+        params.add(encode(param.getKey()) + "=" + encode(value));
+      }
+    }
+    return params.isEmpty() ? "" : "?" + String.join("&", params);
+  }
+
+  private static String encode(String queryPart) {
+    return URLEncoder.encode(queryPart, StandardCharsets.UTF_8);
+  }
+
+  private static void closeQuietly(InputStream body) {
+    try {
+      body.close();
+    } catch (IOException e) {
+      // We're done with this response either way
+    }
+  }
+
+  /**
+   * One node's list of `[key, record]` pairs, read one pair at a time.
+   */
+  private static final class NodeList {
+    private final int node;
+    private final JsonParser parser;
+    // The pair we're up to
+    private long key;
+    private ObjectNode record;
+
+    private NodeList(int node, JsonParser parser) throws IOException {
+      this.node = node;
+      this.parser = parser;
+      // Step into the list
+      parser.nextToken();
+    }
+
+    /**
+     * Read the next pair from the list.
+     *
+     * @return false if there are no more
+     */
+    private boolean next() throws IOException {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        return false;
+      }
+      parser.nextToken();
+      key = parser.getLongValue();
+      parser.nextToken();
+      record = parser.readValueAsTree();
+      // Step past the end of the pair
+      parser.nextToken();
+      return true;
+    }
+  }
+
+  /**
+   * Passes the Server-Sent Events from one node's change feed on to a
+   * client, a line at a time.
+   */
+  private static final class EventRelay implements Flow.Subscriber<String> {
+    private final SseClient sse;
+    private Flow.Subscription subscription;
+    // The event we're reading, up to the blank line that ends it
+    private String event;
+    private StringBuilder data;
+
+    private EventRelay(SseClient sse) {
+      this.sse = sse;
+    }
+
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription newSubscription) {
+      subscription = newSubscription;
+      subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(String line) {
+      if (line.isEmpty()) {
+        if (data != null) {
+          // Several nodes' relays can send to the same client at once
+          synchronized (sse) {
+            sse.sendEvent(event == null ? "message" : event, data.toString());
+          }
+        }
+        event = null;
+        data = null;
+      } else if (line.startsWith("event:")) {
+        event = fieldValue(line);
+      } else if (line.startsWith("data:")) {
+        data = data == null ? new StringBuilder() : data.append('\n');
+        data.append(fieldValue(line));
+      }
+      // (Comments, which start with ':', and other fields are dropped.)
+    }
+
+    private static String fieldValue(String line) {
+      String value = line.substring(line.indexOf(':') + 1);
+      return value.startsWith(" ") ? value.substring(1) : value;
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      sse.close();
+    }
+
+    @Override
+    public void onComplete() {
+      sse.close();
+    }
+
+    private synchronized void cancel() {
+      if (subscription != null) {
+        subscription.cancel();
+      }
+    }
+  }
+}
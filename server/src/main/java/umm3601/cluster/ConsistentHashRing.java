@@ -0,0 +1,62 @@
+package umm3601.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent-hash ring that assigns keys (e.g., todo IDs) to nodes.
+ * <p>
+ * Each node is placed at many ("virtual") points around a ring of hash
+ * values, and a key belongs to the first node point at or after the
+ * key's own hash. Using lots of points per node spreads the keys evenly,
+ * and adding or removing a node only moves the keys next to its points
+ * rather than reshuffling everything.
+ */
+public class ConsistentHashRing {
+
+  // How many points each node gets on the ring
+  static final int VIRTUAL_NODES = 128;
+
+  private TreeMap<Integer, Integer> ring = new TreeMap<>();
+
+  /**
+   * Construct a ring of the given number of nodes, numbered from 0.
+   *
+   * @param nodeCount the number of nodes
+   */
+  public ConsistentHashRing(int nodeCount) {
+    for (int node = 0; node < nodeCount; node++) {
+      for (int point = 0; point < VIRTUAL_NODES; point++) {
+        ring.put(hash("node-" + node + "#" + point), node);
+      }
+    }
+  }
+
+  /**
+   * Get the node that the given key belongs to.
+   *
+   * @param key the key to look up
+   * @return the number of the node the key belongs to
+   */
+  public int nodeFor(String key) {
+    Map.Entry<Integer, Integer> entry = ring.ceilingEntry(hash(key));
+    // Wrap around to the start of the ring if we're past the last point
+    return (entry != null ? entry : ring.firstEntry()).getValue();
+  }
+
+  private static int hash(String key) {
+    try {
+      // String.hashCode() clusters similar strings (like our IDs)
+      // together, so we use (the start of) an MD5 digest instead.
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(digest).getInt();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support MD5
+      throw new IllegalStateException(e);
+    }
+  }
+}
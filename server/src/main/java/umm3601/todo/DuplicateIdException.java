@@ -0,0 +1,37 @@
+package umm3601.todo;
+
+/**
+ * Thrown when a batch of todos to insert has a todo whose `_id` is
+ * already taken, either by a todo in the "database" or by an earlier
+ * todo in the same batch. None of the batch is inserted.
+ */
+public class DuplicateIdException extends RuntimeException {
+
+  private final int index;
+  private final String id;
+
+  /**
+   * Construct an exception for the todo at the given position in a batch.
+   *
+   * @param index the position of the todo in its batch, from 0
+   * @param id    the todo's `_id`
+   */
+  public DuplicateIdException(int index, String id) {
+    super("Todo " + (index + 1) + " of the batch has the _id '" + id + "', which is already taken");
+    this.index = index;
+    this.id = id;
+  }
+
+  /**
+   * Get the position in its batch of the todo whose ID is taken.
+   *
+   * @return the position of the todo, from 0
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  public String getId() {
+    return id;
+  }
+}
@@ -0,0 +1,32 @@
+package umm3601.todo;
+
+/**
+ * Some todos, in order, along with the sequence number (see
+ * `TodoSegment`) of each one, e.g., the results of a query on one shard
+ * or on one node of a cluster, for merging with the results from the
+ * others.
+ */
+public final class SequencedTodos {
+
+  private final Todo[] todos;
+  private final long[] sequences;
+
+  /**
+   * Pair up the given todos with their sequence numbers.
+   *
+   * @param todos     the todos
+   * @param sequences the sequence number of each todo
+   */
+  public SequencedTodos(Todo[] todos, long[] sequences) {
+    this.todos = todos;
+    this.sequences = sequences;
+  }
+
+  public Todo[] todos() {
+    return todos;
+  }
+
+  public long[] sequences() {
+    return sequences;
+  }
+}
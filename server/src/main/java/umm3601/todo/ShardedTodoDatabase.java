@@ -0,0 +1,457 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import io.javalin.http.Context;
+import umm3601.NdjsonExport;
+import umm3601.QueryPlan;
+
+/**
+ * A todo "database" split into several independent shards.
+ * <p>
+ * Todos are partitioned among the shards by a hash of their owner, and
+ * each shard is an ordinary `TodoDatabase` with its own indexes. (This
+ * "database" itself holds no todos or indexes; it just sends reads and
+ * writes on to the shards.) A query
+ * for particular owners only needs to go to the shards holding those
+ * owners' todos. Any other query is sent to every shard in parallel,
+ * and the shards' (already filtered, sorted, and limited) results are
+ * merged back together in the order an unsharded `TodoDatabase` would
+ * have returned them, stopping as soon as we have `limit` todos. The
+ * shards share one counter of sequence numbers (see `TodoSegment`), so
+ * that's the order of the todos' sequence numbers.
+ * <p>
+ * Each query pins a version of every shard (see `TodoVersion`), all
+ * from between the same two writes, so a write that changes several
+ * shards (like moving a todo to a new owner) is never half seen.
+ */
+public class ShardedTodoDatabase extends TodoDatabase {
+
+  private TodoDatabase[] shards;
+  // The versions that queries pin, replaced after each write
+  private volatile Snapshot snapshot;
+
+  /**
+   * Load the todos from the given JSON file and split them into the given
+   * number of shards.
+   *
+   * @param todoDataFile the name of the JSON resource file
+   * @param shardCount   the number of shards (e.g., one per core)
+   * @throws IOException if there are problems reading the file
+   */
+  public ShardedTodoDatabase(String todoDataFile, int shardCount) throws IOException {
+    this(todoDataFile, x -> true, shardCount);
+  }
+
+  /**
+   * Load one partition of the todos from the given JSON file (e.g., for
+   * one node of a cluster) and split them into the given number of shards.
+   *
+   * @param todoDataFile the name of the JSON resource file
+   * @param partition    true for the todos that belong in this "database"
+   * @param shardCount   the number of shards (e.g., one per core)
+   * @throws IOException if there are problems reading the file
+   */
+  public ShardedTodoDatabase(String todoDataFile, Predicate<Todo> partition, int shardCount) throws IOException {
+    super(new Todo[0]);
+    // Every todo in the file gets the sequence number of its position in
+    // the file, whether it's in this partition or not, just as with an
+    // unsharded `TodoDatabase`
+    Todo[] fileTodos = readTodos(todoDataFile);
+    long[] fileSequences = nextSequences(fileTodos.length);
+    int[] kept = IntStream.range(0, fileTodos.length).filter(i -> partition.test(fileTodos[i])).toArray();
+    Todo[] todos = Arrays.stream(kept).mapToObj(i -> fileTodos[i]).toArray(Todo[]::new);
+    long[] sequences = Arrays.stream(kept).mapToLong(i -> fileSequences[i]).toArray();
+    shards = new TodoDatabase[shardCount];
+    List<List<Integer>> partitions = partition(todos);
+    for (int i = 0; i < shardCount; i++) {
+      List<Integer> positions = partitions.get(i);
+      shards[i] = new TodoDatabase(todosAt(todos, positions), sequencesAt(sequences, positions));
+    }
+    snapshot = new Snapshot(shards);
+  }
+
+  /**
+   * Split the given todos up by the shard they belong in.
+   *
+   * @param todos the todos to split up
+   * @return a list of the positions (in `todos`) of the todos for each
+   *         shard, in their original order
+   */
+  private List<List<Integer>> partition(Todo[] todos) {
+    List<List<Integer>> partitions = new ArrayList<>();
+    for (int i = 0; i < shards.length; i++) {
+      partitions.add(new ArrayList<>());
+    }
+    for (int i = 0; i < todos.length; i++) {
+      partitions.get(shardFor(todos[i].owner, shards.length)).add(i);
+    }
+    return partitions;
+  }
+
+  private static Todo[] todosAt(Todo[] todos, List<Integer> positions) {
+    return positions.stream().map(i -> todos[i]).toArray(Todo[]::new);
+  }
+
+  private static long[] sequencesAt(long[] sequences, List<Integer> positions) {
+    return positions.stream().mapToLong(i -> sequences[i]).toArray();
+  }
+
+  private static int shardFor(String owner, int shardCount) {
+    return Math.floorMod(owner.hashCode(), shardCount);
+  }
+
+  /**
+   * Get the number of shards the todos are split into.
+   *
+   * @return the number of shards
+   */
+  public int shardCount() {
+    return shards.length;
+  }
+
+  @Override
+  public void setParallelThreshold(int parallelThreshold) {
+    super.setParallelThreshold(parallelThreshold);
+    for (TodoDatabase shard : shards) {
+      shard.setParallelThreshold(parallelThreshold);
+    }
+  }
+
+  @Override
+  public synchronized void setMergeExecutor(Executor mergeExecutor) {
+    super.setMergeExecutor(mergeExecutor);
+    for (TodoDatabase shard : shards) {
+      shard.setMergeExecutor(mergeExecutor);
+    }
+  }
+
+  @Override
+  public synchronized void setMergeThreshold(int mergeThreshold) {
+    super.setMergeThreshold(mergeThreshold);
+    for (TodoDatabase shard : shards) {
+      shard.setMergeThreshold(mergeThreshold);
+    }
+  }
+
+  @Override
+  public int size() {
+    return snapshot.size();
+  }
+
+  @Override
+  long versionNumber() {
+    return snapshot.number();
+  }
+
+  /**
+   * Get all the todos in this "database", in the order an unsharded
+   * `TodoDatabase` would have them.
+   *
+   * @return all the todos
+   */
+  @Override
+  Todo[] allTodos() {
+    return snapshot.todos();
+  }
+
+  @Override
+  void export(NdjsonExport export, Context ctx) throws IOException {
+    Snapshot pinned = snapshot;
+    export.send(ctx, pinned.number(), pinned::todos);
+  }
+
+  @Override
+  public Todo getTodo(String id) {
+    return snapshot.find(id);
+  }
+
+  // Each write changes just the shards holding the todos it touches, and
+  // only then lets queries see any of it. (The writes made by this
+  // "database" itself, as the one that publishes them to the change
+  // feed, are never applied to it.)
+
+  @Override
+  synchronized void applyInsert(Todo[] todos) {
+    long[] sequences = nextSequences(todos.length);
+    List<List<Integer>> partitions = partition(todos);
+    for (int i = 0; i < shards.length; i++) {
+      List<Integer> positions = partitions.get(i);
+      if (!positions.isEmpty()) {
+        shards[i].applyInsert(todosAt(todos, positions), sequencesAt(sequences, positions));
+      }
+    }
+    snapshot = new Snapshot(shards);
+  }
+
+  @Override
+  synchronized Todo applyUpdate(Todo todo) {
+    Todo replaced = getTodo(todo._id);
+    if (replaced == null) {
+      return null;
+    }
+    // The new version of the todo goes after all the others, just as it
+    // would in an unsharded "database", and a new owner can mean a new
+    // shard
+    shards[shardFor(replaced.owner, shards.length)].applyDelete(todo._id);
+    shards[shardFor(todo.owner, shards.length)].applyInsert(new Todo[] {todo}, nextSequences(1));
+    snapshot = new Snapshot(shards);
+    return replaced;
+  }
+
+  @Override
+  synchronized Todo applyDelete(String id) {
+    Todo deleted = getTodo(id);
+    if (deleted == null) {
+      return null;
+    }
+    shards[shardFor(deleted.owner, shards.length)].applyDelete(id);
+    snapshot = new Snapshot(shards);
+    return deleted;
+  }
+
+  /**
+   * Estimate how much work it will take to answer the given query: the
+   * sum of what it costs each shard that has to answer it.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the estimated cost of the query
+   */
+  @Override
+  public long estimateCost(Map<String, List<String>> queryParams) {
+    Snapshot pinned = snapshot;
+    long cost = 0;
+    for (int shard : targets(queryParams)) {
+      cost += shards[shard].estimateCost(queryParams, pinned.shardVersion(shard));
+    }
+    return cost;
+  }
+
+  /**
+   * Get an array of all the todos satisfying the queries in the params,
+   * asking only the shards that could hold matching todos.
+   * <p>
+   * A query answered by a single shard gets that shard's plan. Otherwise
+   * the plan just has the scatter and merge stages, since the shards'
+   * stages overlap in time.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param plan        the plan to record each stage of the query in
+   * @return an array of all the todos matching the given criteria
+   */
+  @Override
+  public Todo[] listTodos(Map<String, List<String>> queryParams, QueryPlan plan) {
+    return query(queryParams, plan, false).todos();
+  }
+
+  @Override
+  public SequencedTodos listSequencedTodos(Map<String, List<String>> queryParams, QueryPlan plan) {
+    return query(queryParams, plan, true);
+  }
+
+  /**
+   * Answer a query (see `listTodos`) from the shards.
+   *
+   * @param queryParams   map of key-value pairs for the query
+   * @param plan          the plan to record each stage of the query in
+   * @param withSequences true to look up the sequence numbers of the
+   *                      todos if a single shard answers the query (the
+   *                      merge needs them anyway)
+   * @return the todos matching the given criteria, with their sequence
+   *         numbers if they were looked up (or null)
+   */
+  private SequencedTodos query(Map<String, List<String>> queryParams, QueryPlan plan, boolean withSequences) {
+    Snapshot pinned = snapshot;
+    // We only need to ask the shards that could hold matching todos, and
+    // if that's just one shard it alone can answer the whole query.
+    List<Integer> targets = targets(queryParams);
+    if (targets.size() == 1) {
+      int shard = targets.get(0);
+      TodoVersion shardVersion = pinned.shardVersion(shard);
+      Todo[] todos = shards[shard].listTodos(queryParams, plan, shardVersion);
+      return new SequencedTodos(todos, withSequences ? shardVersion.sequencesOf(todos) : null);
+    }
+    int limit = Integer.MAX_VALUE;
+    if (queryParams.containsKey("limit")) {
+      limit = parseLimit(queryParams.get("limit").get(0));
+    }
+    plan.stage(QueryPlan.PARSE, "parse", "parameters", 0, 0);
+    // Each shard also looks up the sequence numbers of its results (once
+    // per todo), which is the order we merge them in
+    List<CompletableFuture<SequencedTodos>> scattered = new ArrayList<>();
+    for (int shard : targets) {
+      TodoVersion shardVersion = pinned.shardVersion(shard);
+      scattered.add(CompletableFuture.supplyAsync(() -> {
+        Todo[] todos = shards[shard].listTodos(queryParams, new QueryPlan(queryParams), shardVersion);
+        return new SequencedTodos(todos, shardVersion.sequencesOf(todos));
+      }, SCAN_POOL));
+    }
+    List<SequencedTodos> gathered = new ArrayList<>();
+    try {
+      for (CompletableFuture<SequencedTodos> shardResults : scattered) {
+        gathered.add(shardResults.join());
+      }
+    } catch (CompletionException e) {
+      // Pass on the shard's exception (e.g., a `BadRequestResponse`)
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+    int rowsGathered = gathered.stream().mapToInt(shardResults -> shardResults.todos().length).sum();
+    plan.stage(QueryPlan.FILTER, "scatter", targets.size() + " shards", pinned.size(), rowsGathered);
+    // Every shard has already checked that any `orderBy` is a valid value
+    Comparator<Todo> order = queryParams.containsKey("orderBy")
+        ? comparatorFor(queryParams.get("orderBy").get(0).toLowerCase())
+        : null;
+    SequencedTodos merged = merge(gathered, order, limit);
+    plan.stage(QueryPlan.MERGE, "merge", "k-way merge", rowsGathered, merged.todos().length);
+    return merged;
+  }
+
+  /**
+   * Get the shards that could hold todos matching the given query: all of
+   * an owner's todos are in the same shard, so if the query names owners
+   * it's just the shards holding them, and otherwise it's every shard.
+   */
+  private List<Integer> targets(Map<String, List<String>> queryParams) {
+    if (queryParams.containsKey("owner")) {
+      return queryParams.get("owner").stream()
+          .map(owner -> shardFor(owner, shards.length))
+          .distinct()
+          .collect(Collectors.toList());
+    }
+    return IntStream.range(0, shards.length).boxed().collect(Collectors.toList());
+  }
+
+  /**
+   * Do a k-way merge of the given shards' results, stopping once we have
+   * `limit` todos.
+   * <p>
+   * Each shard's results are sorted by `order` if there is one and,
+   * within that (since sorting is stable), by sequence number, which is
+   * the order an unsharded "database" would hold the todos in.
+   *
+   * @param sorted the shards' results to merge
+   * @param order  the `orderBy` order of the todos, or null if they are
+   *               just in sequence order
+   * @param limit  the maximum number of todos to return
+   * @return the first `limit` todos of all the results, in order, with
+   *         their sequence numbers
+   */
+  static SequencedTodos merge(List<SequencedTodos> sorted, Comparator<Todo> order, int limit) {
+    // Each entry in the queue is {results index, position in those
+    // results}, ordered by the todo at that position
+    Comparator<int[]> bySequence = Comparator.comparingLong(head -> sorted.get(head[0]).sequences()[head[1]]);
+    Comparator<int[]> headOrder = order == null
+        ? bySequence
+        : Comparator.comparing((int[] head) -> sorted.get(head[0]).todos()[head[1]], order).thenComparing(bySequence);
+    PriorityQueue<int[]> heads = new PriorityQueue<>(headOrder);
+    int total = 0;
+    for (int i = 0; i < sorted.size(); i++) {
+      total += sorted.get(i).todos().length;
+      if (sorted.get(i).todos().length > 0) {
+        heads.add(new int[] {i, 0});
+      }
+    }
+    int size = Math.min(total, limit);
+    Todo[] merged = new Todo[size];
+    long[] sequences = new long[size];
+    for (int i = 0; i < size; i++) {
+      int[] head = heads.poll();
+      SequencedTodos results = sorted.get(head[0]);
+      merged[i] = results.todos()[head[1]];
+      sequences[i] = results.sequences()[head[1]];
+      if (head[1] + 1 < results.todos().length) {
+        heads.add(new int[] {head[0], head[1] + 1});
+      }
+    }
+    return new SequencedTodos(merged, sequences);
+  }
+
+  /**
+   * The versions of the shards of a sharded "database", all from between
+   * the same two writes.
+   */
+  private static final class Snapshot {
+    private final TodoDatabase[] shards;
+    private final TodoVersion[] shardVersions;
+    private final int size;
+    private final long number;
+
+    private Snapshot(TodoDatabase[] shards) {
+      this.shards = shards;
+      this.shardVersions = Arrays.stream(shards).map(TodoDatabase::currentVersion).toArray(TodoVersion[]::new);
+      this.size = Arrays.stream(shardVersions).mapToInt(TodoVersion::size).sum();
+      // Every write makes a new version of at least one shard, so this
+      // goes up with every write too
+      this.number = Arrays.stream(shardVersions).mapToLong(TodoVersion::number).sum();
+    }
+
+    int size() {
+      return size;
+    }
+
+    long number() {
+      return number;
+    }
+
+    TodoVersion shardVersion(int shard) {
+      return latest(shards[shard], shardVersions[shard]);
+    }
+
+    /**
+     * Get all the todos in this snapshot, in the order an unsharded
+     * `TodoDatabase` would have them.
+     */
+    Todo[] todos() {
+      List<SequencedTodos> shardTodos = new ArrayList<>();
+      for (int shard = 0; shard < shards.length; shard++) {
+        TodoVersion shardVersion = shardVersion(shard);
+        shardTodos.add(new SequencedTodos(shardVersion.todos(), shardVersion.sequences()));
+      }
+      return merge(shardTodos, null, Integer.MAX_VALUE).todos();
+    }
+
+    /**
+     * Find the todo with the given ID in whichever shard has it.
+     */
+    Todo find(String id) {
+      for (int shard = 0; shard < shards.length; shard++) {
+        TodoVersion shardVersion = shardVersion(shard);
+        int ordinal = shardVersion.find(id);
+        if (ordinal >= 0) {
+          return shardVersion.todoAt(ordinal);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Get the given "database"'s current version if it has the same
+     * todos as the given version (i.e., if it's that version, or that
+     * version rearranged by a merge), so queries get the benefit of
+     * merges that finished after the snapshot was taken. Otherwise get
+     * the given version.
+     */
+    private static TodoVersion latest(TodoDatabase database, TodoVersion version) {
+      TodoVersion current = database.currentVersion();
+      return current.number() == version.number() ? current : version;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+
+/**
+ * A case-insensitive substring search over the bodies of a fixed array
+ * of todos.
+ * <p>
+ * Lower-casing every body on every query (as `filterTodosByBody` does)
+ * allocates a new string per todo per query. Instead, this lower-cases
+ * all the bodies once, up front, and joins them into a single "heap"
+ * string separated by `SEPARATOR` characters. A search is then just
+ * repeated calls to `indexOf` on that one string, which the JVM turns
+ * into a vectorized scan over contiguous memory. Each match offset is
+ * mapped back to the position (ordinal) of its todo in the original
+ * array.
+ * <p>
+ * As long as every body is Latin-1 text, the JVM stores the heap string
+ * as one byte per character, so it's a contiguous byte heap. The JVM's
+ * `indexOf` scans it with whatever SIMD instructions the CPU has, which
+ * `BodySearchBenchmark` shows is faster than scanning a byte array eight
+ * bytes at a time in Java (SWAR).
+ */
+public class TodoBodySearch {
+
+  // Target strings can't contain this (see `canSearch`), so a match can
+  // never run from the end of one body into the start of the next.
+  private static final char SEPARATOR = '\0';
+
+  private String heap;
+  // `bodyStarts[i]` is the offset in `heap` where the body of todo `i` starts
+  private int[] bodyStarts;
+
+  /**
+   * Build the lower-cased body heap for the given todos.
+   *
+   * @param todos the todos to search; ordinals returned by `search` are
+   *              positions in this array
+   */
+  public TodoBodySearch(Todo[] todos) {
+    StringBuilder builder = new StringBuilder();
+    bodyStarts = new int[todos.length];
+    for (int i = 0; i < todos.length; i++) {
+      bodyStarts[i] = builder.length();
+      builder.append(todos[i].body.toLowerCase()).append(SEPARATOR);
+    }
+    heap = builder.toString();
+  }
+
+  /**
+   * Check whether this kernel can search for the given string. Strings
+   * containing the separator can't be searched for, since they could
+   * match across two bodies.
+   *
+   * @param targetString the string that would be searched for
+   * @return true if `search` can be used for the target string
+   */
+  public boolean canSearch(String targetString) {
+    return targetString.indexOf(SEPARATOR) < 0;
+  }
+
+  /**
+   * Find all the todos whose body contains the target string, ignoring
+   * case in the same way as `filterTodosByBody`.
+   *
+   * @param targetString the string to look for
+   * @return the ordinals of all the matching todos, in increasing order
+   */
+  public int[] search(String targetString) {
+    String lowerTarget = targetString.toLowerCase();
+    int[] matches = new int[bodyStarts.length];
+    int matchCount = 0;
+    int offset = heap.indexOf(lowerTarget);
+    while (offset >= 0 && offset < heap.length()) {
+      int ordinal = ordinalAt(offset);
+      matches[matchCount++] = ordinal;
+      // Skip the rest of this body, since we already know it matches
+      if (ordinal + 1 == bodyStarts.length) {
+        break;
+      }
+      offset = heap.indexOf(lowerTarget, bodyStarts[ordinal + 1]);
+    }
+    return Arrays.copyOf(matches, matchCount);
+  }
+
+  /**
+   * Find the ordinal of the todo whose body contains the given offset
+   * in the heap.
+   */
+  private int ordinalAt(int offset) {
+    int index = Arrays.binarySearch(bodyStarts, offset);
+    // A negative result encodes the insertion point, and the body that
+    // contains the offset is the one just before that point.
+    return index >= 0 ? index : -index - 2;
+  }
+}
@@ -0,0 +1,41 @@
+package umm3601.todo;
+
+// A single change to a todo, as sent to the subscribers of a
+// `TodoChangeFeed`. As with `Todo`, the fields need to be public so
+// that Jackson can see them.
+@SuppressWarnings({"VisibilityModifier"})
+public class TodoChange {
+  public static final String INSERTED = "inserted";
+  public static final String UPDATED = "updated";
+  public static final String DELETED = "deleted";
+
+  // One of `INSERTED`, `UPDATED`, or `DELETED`
+  public String type;
+  // The todo after the change (or, for deletions, before it)
+  public Todo todo;
+  // For updates, the todo before the change (otherwise null)
+  public Todo previous;
+
+  /**
+   * Construct a change of the given type to the given todo.
+   *
+   * @param type the kind of change (`INSERTED`, `UPDATED`, or `DELETED`)
+   * @param todo the todo that changed
+   */
+  public TodoChange(String type, Todo todo) {
+    this.type = type;
+    this.todo = todo;
+  }
+
+  /**
+   * Construct an update that replaced the given previous todo.
+   *
+   * @param type     the kind of change (`UPDATED`)
+   * @param todo     the todo after the change
+   * @param previous the todo before the change
+   */
+  public TodoChange(String type, Todo todo, Todo previous) {
+    this(type, todo);
+    this.previous = previous;
+  }
+}
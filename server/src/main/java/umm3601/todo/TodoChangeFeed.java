@@ -0,0 +1,159 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A feed of changes to todos that clients can subscribe to with the same
+ * filters `listTodos` understands (owner, ownerPrefix, category, status,
+ * and contains), read the same way (see `TodoDatabase.filterFor`).
+ * <p>
+ * Rather than checking every subscription against every change, each
+ * subscription is indexed by the most selective equality filter it has:
+ * its owners if it has any, otherwise its categories. Publishing a
+ * change then only looks at the subscriptions for that todo's owner,
+ * those for its category, and the (hopefully few) subscriptions that
+ * have neither. (A todo has just one owner and one category, so even a
+ * subscription indexed under several of them hears of each change at
+ * most once.)
+ * <p>
+ * An update can move a todo into or out of a subscription's filters
+ * (e.g., by changing its owner or status), so updates also go to the
+ * subscriptions for the todo's previous owner and category. Those that
+ * matched the todo before the update but don't now are sent a deletion
+ * of the previous todo instead, since it's gone from their results.
+ */
+public class TodoChangeFeed {
+
+  private Map<String, Set<Subscription>> byOwner = new ConcurrentHashMap<>();
+  private Map<String, Set<Subscription>> byCategory = new ConcurrentHashMap<>();
+  private Set<Subscription> unindexed = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Subscribe to all the changes to todos matching the given filters.
+   *
+   * @param queryParams map of key-value pairs for the filters, just as for
+   *                    `listTodos`
+   * @param listener    called with every matching change
+   * @return the new subscription, which can be passed to `unsubscribe`
+   */
+  public Subscription subscribe(Map<String, List<String>> queryParams, Consumer<TodoChange> listener) {
+    Subscription subscription = new Subscription(queryParams, listener);
+    for (Set<Subscription> bucket : bucketsFor(subscription)) {
+      bucket.add(subscription);
+    }
+    return subscription;
+  }
+
+  /**
+   * Stop sending changes to the given subscription.
+   *
+   * @param subscription a subscription returned by `subscribe`
+   */
+  public void unsubscribe(Subscription subscription) {
+    for (Set<Subscription> bucket : bucketsFor(subscription)) {
+      bucket.remove(subscription);
+    }
+  }
+
+  /**
+   * Send the given change to every subscription whose filters match the
+   * changed todo. An update is also sent, as a deletion of the previous
+   * todo, to every subscription that matched it before but not after.
+   *
+   * @param change the change to publish
+   */
+  public void publish(TodoChange change) {
+    Todo todo = change.todo;
+    Todo previous = change.previous;
+    if (previous == null) {
+      notifyMatching(byOwner.get(todo.owner), change);
+      notifyMatching(byCategory.get(todo.category), change);
+      notifyMatching(unindexed, change);
+      return;
+    }
+    // A subscription can be in both the new and the old owner's (or
+    // category's) buckets, but must still only hear of the change once
+    Set<Subscription> subscriptions = new HashSet<>();
+    addAll(subscriptions, byOwner.get(todo.owner));
+    addAll(subscriptions, byOwner.get(previous.owner));
+    addAll(subscriptions, byCategory.get(todo.category));
+    addAll(subscriptions, byCategory.get(previous.category));
+    subscriptions.addAll(unindexed);
+    TodoChange removal = new TodoChange(TodoChange.DELETED, previous);
+    for (Subscription subscription : subscriptions) {
+      if (subscription.matches(todo)) {
+        subscription.listener.accept(change);
+      } else if (subscription.matches(previous)) {
+        subscription.listener.accept(removal);
+      }
+    }
+  }
+
+  private static void addAll(Set<Subscription> subscriptions, Set<Subscription> bucket) {
+    if (bucket != null) {
+      subscriptions.addAll(bucket);
+    }
+  }
+
+  private void notifyMatching(Set<Subscription> subscriptions, TodoChange change) {
+    if (subscriptions == null) {
+      return;
+    }
+    for (Subscription subscription : subscriptions) {
+      if (subscription.matches(change.todo)) {
+        subscription.listener.accept(change);
+      }
+    }
+  }
+
+  private List<Set<Subscription>> bucketsFor(Subscription subscription) {
+    List<Set<Subscription>> buckets = new ArrayList<>();
+    if (subscription.owners != null) {
+      for (String owner : subscription.owners) {
+        buckets.add(byOwner.computeIfAbsent(owner, x -> ConcurrentHashMap.newKeySet()));
+      }
+    } else if (subscription.categories != null) {
+      for (String category : subscription.categories) {
+        buckets.add(byCategory.computeIfAbsent(category, x -> ConcurrentHashMap.newKeySet()));
+      }
+    } else {
+      buckets.add(unindexed);
+    }
+    return buckets;
+  }
+
+  /**
+   * A single subscriber's filters and the listener its changes go to.
+   */
+  public static final class Subscription {
+    // The owners and categories to index this subscription by (or null)
+    private final List<String> owners;
+    private final List<String> categories;
+    private final Predicate<Todo> filter;
+    private final Consumer<TodoChange> listener;
+
+    private Subscription(Map<String, List<String>> queryParams, Consumer<TodoChange> listener) {
+      this.owners = queryParams.containsKey("owner") ? List.copyOf(queryParams.get("owner")) : null;
+      this.categories = queryParams.containsKey("category") ? List.copyOf(queryParams.get("category")) : null;
+      this.filter = TodoDatabase.filterFor(queryParams);
+      this.listener = listener;
+    }
+
+    /**
+     * Check whether the given todo passes all of this subscription's filters.
+     *
+     * @param todo the todo to check
+     * @return true if the todo matches every filter
+     */
+    public boolean matches(Todo todo) {
+      return filter.test(todo);
+    }
+  }
+}
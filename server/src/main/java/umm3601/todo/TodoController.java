@@ -2,16 +2,50 @@
 
 package umm3601.todo;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.sse.SseClient;
+import umm3601.ContentNegotiation;
+import umm3601.NdjsonExport;
+import umm3601.QueryPlan;
+import umm3601.SingleFlight;
+import umm3601.SlowQueryLog;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class TodoController {
 
+  // Imported todos are added to the "database" in batches of this many,
+  // so the indexes are rebuilt once per batch rather than once per todo.
+  public static final int DEFAULT_IMPORT_BATCH_SIZE = 1000;
+  private static final ObjectReader TODO_READER = new ObjectMapper().readerFor(Todo.class);
+  // The query parameters that match any of their values, in any order
+  private static final Set<String> MULTI_VALUED_PARAMS = Set.of("owner", "category");
+
   private TodoDatabase database;
+  private TodoOwnerJoin ownerJoin;
+  // Concurrent requests with identical (normalized) query parameters,
+  // that accept the same format, share a single computation (and
+  // encoding) of the response.
+  private SingleFlight<List<Object>, byte[]> listRequests = new SingleFlight<>();
+  private SlowQueryLog slowQueryLog = new SlowQueryLog(SlowQueryLog.DEFAULT_THRESHOLD_MILLIS);
+  private NdjsonExport export = new NdjsonExport("todos");
+  private int importBatchSize = DEFAULT_IMPORT_BATCH_SIZE;
 
   /**
    * Construct a controller for todos.
@@ -23,7 +57,21 @@ public class TodoController {
    * @param database the `Database` containing user data
    */
   public TodoController(TodoDatabase database) {
+    this(database, null);
+  }
+
+  /**
+   * Construct a controller for todos that can also attach the owning
+   * user to each todo when asked to with `include=owner`.
+   *
+   * @param database the `Database` containing todo data
+   * @param ownerJoin the join used to look up the owner of each todo
+   *                  (may be null, in which case `include=owner` isn't
+   *                  supported)
+   */
+  public TodoController(TodoDatabase database, TodoOwnerJoin ownerJoin) {
     this.database = database;
+    this.ownerJoin = ownerJoin;
   }
 
   /**
@@ -35,7 +83,7 @@ public class TodoController {
     String id = ctx.pathParam("id");
     Todo todo = database.getTodo(id);
     if (todo != null) {
-      ctx.json(todo);
+      ContentNegotiation.respond(ctx, todo);
       ctx.status(HttpStatus.OK);
     } else {
       throw new NotFoundResponse("No todo with id " + id + " was found.");
@@ -43,13 +91,221 @@ public class TodoController {
   }
 
   /**
-   * Get a JSON response with a list of all the todos in the "database".
+   * Get a JSON (or, if the client asks for it, Smile) response with a list
+   * of all the todos in the "database".
+   * <p>
+   * With `explain=true`, the response is instead the plan of the query
+   * (see `QueryPlan`), including how long it took to encode the todos.
    *
    * @param ctx a Javalin HTTP context
    */
   public void getTodos(Context ctx) {
-    Todo[] todos = database.listTodos(ctx.queryParamMap());
-    ctx.json(todos);
+    // Sorting the parameters means the same query always has the same
+    // key, whatever order the parameters came in.
+    Map<String, List<String>> queryParams = new TreeMap<>(ctx.queryParamMap());
+    if (QueryPlan.isExplain(queryParams)) {
+      queryParams.remove("explain");
+      QueryPlan plan = new QueryPlan(queryParams);
+      byte[] body = ContentNegotiation.encode(ctx, listTodos(queryParams, plan));
+      plan.stage(QueryPlan.SERIALIZE, "serialize", body.length + " bytes", plan.rowsProduced(), plan.rowsProduced());
+      ctx.json(plan);
+      return;
+    }
+    // Requests for the same results, in the same format, share the
+    // encoded response, so only one of them pays for encoding it
+    boolean keyed = ContentNegotiation.wantsOrderingKeys(ctx);
+    List<Object> key = List.of(ContentNegotiation.acceptsSmile(ctx), keyed,
+        QueryPlan.normalize(queryParams, MULTI_VALUED_PARAMS));
+    ContentNegotiation.respondEncoded(ctx, listRequests.run(key, () -> {
+      QueryPlan plan = new QueryPlan(queryParams);
+      byte[] body = keyed
+          ? encodeWithSequences(ctx, queryParams, plan)
+          : ContentNegotiation.encode(ctx, listTodos(queryParams, plan));
+      plan.stage(QueryPlan.SERIALIZE, "serialize", body.length + " bytes", plan.rowsProduced(), plan.rowsProduced());
+      slowQueryLog.record("todos", plan);
+      return body;
+    }));
+  }
+
+  /**
+   * Get the todos (with their owners attached if `include=owner` was
+   * asked for) matching the given query parameters. This is the part of
+   * `getTodos` that doesn't need an HTTP request, e.g., for warming up.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param plan        the plan to record each stage of the query in
+   * @return the todos to send back to the client
+   */
+  public Object listTodos(Map<String, List<String>> queryParams, QueryPlan plan) {
+    return includeOwners(queryParams, database.listTodos(queryParams, plan), plan);
+  }
+
+  /**
+   * Encode the todos matching the given query parameters each with its
+   * sequence number as its ordering key (see
+   * `ContentNegotiation.encodeKeyed`), for a cluster router to merge.
+   */
+  private byte[] encodeWithSequences(Context ctx, Map<String, List<String>> queryParams, QueryPlan plan) {
+    SequencedTodos found = database.listSequencedTodos(queryParams, plan);
+    return ContentNegotiation.encodeKeyed(ctx, includeOwners(queryParams, found.todos(), plan), found.sequences());
+  }
+
+  /**
+   * Attach the owners to the given todos if the query asks for them.
+   *
+   * @return the todos, or the todos with their owners
+   */
+  private Object[] includeOwners(Map<String, List<String>> queryParams, Todo[] todos, QueryPlan plan) {
+    if (queryParams.containsKey("include")) {
+      String include = queryParams.get("include").get(0);
+      if (!include.equals("owner")) {
+        throw new BadRequestResponse("Specified value to include '" + include + "' is an invalid value");
+      }
+      if (ownerJoin == null) {
+        throw new BadRequestResponse("Including the owner of todos is not supported");
+      }
+      TodoWithOwner[] todosWithOwners = ownerJoin.join(todos);
+      plan.stage(QueryPlan.JOIN, "include owner", "owner join", todos.length, todosWithOwners.length);
+      return todosWithOwners;
+    }
+    return todos;
+  }
+
+  /**
+   * Send every todo in the "database" as NDJSON, one todo per line (see
+   * `NdjsonExport`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems sending the todos
+   */
+  public void exportTodos(Context ctx) throws IOException {
+    database.export(export, ctx);
+  }
+
+  /**
+   * Add the todos in the body of the request, which is NDJSON (one todo
+   * per line, as `exportTodos` sends them), to the "database".
+   * <p>
+   * The todos are read as they arrive and added `importBatchSize` at a
+   * time, and each one is published to the change feed as an insertion.
+   * If a todo is bad (e.g., its `_id` is taken, which the "database"
+   * checks as it adds each batch), the request fails, but the batches
+   * before the bad todo's batch have already been added.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems reading the request
+   */
+  public void importTodos(Context ctx) throws IOException {
+    int imported = 0;
+    List<Todo> batch = new ArrayList<>(importBatchSize);
+    try (MappingIterator<Todo> todos = TODO_READER.readValues(ctx.bodyInputStream())) {
+      while (todos.hasNextValue()) {
+        Todo todo = todos.nextValue();
+        checkImportedTodo(todo, imported + batch.size() + 1, imported);
+        batch.add(todo);
+        if (batch.size() == importBatchSize) {
+          imported += insertBatch(batch, imported);
+          batch.clear();
+        }
+      }
+    } catch (JsonProcessingException e) {
+      throw new BadRequestResponse("Imported todo " + (imported + batch.size() + 1)
+          + " isn't a valid todo (imported " + imported + " before it)");
+    }
+    if (!batch.isEmpty()) {
+      imported += insertBatch(batch, imported);
+    }
+    ctx.json(Map.of("imported", imported));
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Add a batch of imported todos to the "database".
+   *
+   * @param batch    the todos to add
+   * @param imported the number of todos already imported
+   * @return the number of todos added
+   */
+  private int insertBatch(List<Todo> batch, int imported) {
+    try {
+      database.insertTodos(batch.toArray(new Todo[0]));
+    } catch (DuplicateIdException e) {
+      throw new BadRequestResponse("Imported todo " + (imported + e.getIndex() + 1) + " has the _id '"
+          + e.getId() + "', which is already taken (imported " + imported + " before it)");
+    }
+    return batch.size();
+  }
+
+  /**
+   * Check that an imported todo has all the fields that the "database"
+   * needs to index it.
+   *
+   * @param todo     the imported todo
+   * @param number   which todo in the import this is, counting from 1
+   * @param imported the number of todos already imported
+   */
+  private static void checkImportedTodo(Todo todo, int number, int imported) {
+    String missing = null;
+    if (todo._id == null) {
+      missing = "_id";
+    } else if (todo.owner == null) {
+      missing = "owner";
+    } else if (todo.body == null) {
+      missing = "body";
+    } else if (todo.category == null) {
+      missing = "category";
+    }
+    if (missing != null) {
+      throw new BadRequestResponse("Imported todo " + number + " has no " + missing
+          + " (imported " + imported + " before it)");
+    }
+  }
+
+  /**
+   * Set the number of todos `importTodos` adds to the "database" at a
+   * time.
+   *
+   * @param importBatchSize the number of todos in each batch
+   */
+  public void setImportBatchSize(int importBatchSize) {
+    this.importBatchSize = importBatchSize;
+  }
+
+  /**
+   * Use the given log for queries that take too long.
+   *
+   * @param slowQueryLog the log to record slow queries in
+   */
+  public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+    this.slowQueryLog = slowQueryLog;
+  }
+
+  /**
+   * Get the single-flight layer that coalesces identical concurrent
+   * requests to list todos, e.g., to report how often it coalesces.
+   *
+   * @return the single-flight layer for listing todos
+   */
+  public SingleFlight<List<Object>, byte[]> getListRequests() {
+    return listRequests;
+  }
+
+  /**
+   * Stream changes to the todos matching the filters in the request to
+   * the client as Server-Sent Events, rather than having it poll.
+   * <p>
+   * Each event is named after the kind of change (inserted, updated, or
+   * deleted) and carries the todo that changed as its data.
+   *
+   * @param client a Javalin Server-Sent Events client
+   */
+  public void streamChanges(SseClient client) {
+    TodoChangeFeed changeFeed = database.getChangeFeed();
+    TodoChangeFeed.Subscription subscription = changeFeed.subscribe(client.ctx().queryParamMap(),
+        change -> client.sendEvent(change.type, change.todo));
+    client.onClose(() -> changeFeed.unsubscribe(subscription));
+    // Keep the connection open until the client goes away
+    client.keepAlive();
   }
 
 }
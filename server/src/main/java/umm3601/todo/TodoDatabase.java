@@ -5,12 +5,29 @@ package umm3601.todo;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.Comparator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import umm3601.NdjsonExport;
+import umm3601.PostingLists;
+import umm3601.QueryPlan;
 
 /**
  * A fake "database" of todo info
@@ -22,16 +39,504 @@ import io.javalin.http.BadRequestResponse;
  */
 public class TodoDatabase {
 
-  private Todo[] allTodos;
+  // Filtering fewer todos than this just uses a sequential stream, since
+  // for small arrays the cost of forking tasks outweighs any speedup.
+  public static final int DEFAULT_PARALLEL_THRESHOLD = 100_000;
+  // The number of todos each parallel filtering task scans on its own.
+  // This is small enough that a chunk of todo references fits in a
+  // core's cache, but big enough that we don't fork too many tasks.
+  static final int PARALLEL_CHUNK_SIZE = 4096;
+  // A pool of its own for scanning todos, so big queries don't compete
+  // with everything else that uses the common pool.
+  static final ForkJoinPool SCAN_POOL = new ForkJoinPool();
+  // Roughly how much more it costs to search a todo's body than to check
+  // one of its other fields, for estimating the cost of queries.
+  static final long BODY_SEARCH_COST = 8;
+
+  // Once the deltas (see `TodoVersion`) hold at least this many todos
+  // and deletions, or 1/MERGE_RATIO as many as the base if that's more,
+  // they're merged into a new base in the background. Since a merge
+  // costs about as much as the base is big, that makes the cost of
+  // merging about the same for each todo written, however many todos
+  // there are.
+  public static final int DEFAULT_MERGE_THRESHOLD = 1024;
+  static final int MERGE_RATIO = 8;
+  // Merges run on a thread of their own, so writes never wait for them.
+  static final ExecutorService MERGE_POOL = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "todo-merger");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // The current version of the todos. Writers (one at a time, holding
+  // this object's lock) replace it with a new version, and each query
+  // reads it just once and uses that version throughout.
+  private volatile TodoVersion version;
+  // The number of segments, from the start of the current version, that
+  // a background merge is folding into a new base (or 0 if there isn't a
+  // merge running). Writes mustn't combine any of those.
+  private int merging;
+  private Executor mergeExecutor = MERGE_POOL;
+  private int mergeThreshold = DEFAULT_MERGE_THRESHOLD;
+  private TodoChangeFeed changeFeed = new TodoChangeFeed();
+  // The changes that have been made but not yet published, in the order
+  // they were made. Writers add to it while holding this object's lock,
+  // but publish only after letting go of it (see `publishChanges`), so
+  // that slow subscribers don't hold up other writes.
+  private Queue<TodoChange> unpublished = new ConcurrentLinkedQueue<>();
+  private final Object publishLock = new Object();
+  private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+  // The sequence number (see `TodoSegment`) of the next todo written
+  private long nextSequence;
 
   public TodoDatabase(String todoDataFile) throws IOException {
-    InputStreamReader reader = new InputStreamReader(getClass().getResourceAsStream(todoDataFile));
+    this(readTodos(todoDataFile));
+  }
+
+  /**
+   * Construct a "database" holding just one partition of the todos in
+   * the given JSON file, e.g., for one node of a cluster.
+   * <p>
+   * Each todo's sequence number is its position in the file, and todos
+   * written later are numbered from the end of the file, so the results
+   * of several partitions can be merged back into the file's order (see
+   * `listSequencedTodos`).
+   *
+   * @param todoDataFile the name of the JSON resource file
+   * @param partition    true for the todos that belong in this "database"
+   * @throws IOException if there are problems reading the file
+   */
+  public TodoDatabase(String todoDataFile, Predicate<Todo> partition) throws IOException {
+    this(readTodos(todoDataFile), partition);
+  }
+
+  private TodoDatabase(Todo[] fileTodos, Predicate<Todo> partition) {
+    this(fileTodos, IntStream.range(0, fileTodos.length).filter(i -> partition.test(fileTodos[i])).toArray());
+  }
+
+  private TodoDatabase(Todo[] fileTodos, int[] positions) {
+    this(Arrays.stream(positions).mapToObj(i -> fileTodos[i]).toArray(Todo[]::new),
+        Arrays.stream(positions).asLongStream().toArray());
+    nextSequence = fileTodos.length;
+  }
+
+  /**
+   * Construct a "database" holding the given todos.
+   *
+   * @param todos the todos in the "database"
+   */
+  TodoDatabase(Todo[] todos) {
+    this(todos, LongStream.range(0, todos.length).toArray());
+    nextSequence = todos.length;
+  }
+
+  /**
+   * Construct a "database" holding the given todos, with the given
+   * sequence numbers (see `TodoSegment`), e.g., for a shard of a
+   * `ShardedTodoDatabase`.
+   *
+   * @param todos     the todos in the "database"
+   * @param sequences the sequence number of each todo
+   */
+  TodoDatabase(Todo[] todos, long[] sequences) {
+    version = new TodoVersion(0, new TodoSegment[] {new TodoSegment(todos, sequences, TodoSegment.NO_DELETES)});
+  }
+
+  /**
+   * Read an array of todos from the given JSON resource file.
+   *
+   * @param todoDataFile the name of the JSON resource file
+   * @return the todos in the file
+   * @throws IOException if there are problems reading the file
+   */
+  static Todo[] readTodos(String todoDataFile) throws IOException {
+    InputStreamReader reader = new InputStreamReader(TodoDatabase.class.getResourceAsStream(todoDataFile));
     ObjectMapper objectMapper = new ObjectMapper();
-    allTodos = objectMapper.readValue(reader, Todo[].class);
+    return objectMapper.readValue(reader, Todo[].class);
   }
 
   public int size() {
-    return allTodos.length;
+    return version.size();
+  }
+
+  /**
+   * Get all the todos in this "database", in their original order. The
+   * returned array must not be modified.
+   *
+   * @return all the todos
+   */
+  Todo[] allTodos() {
+    return version.todos();
+  }
+
+  /**
+   * Get the number of the current version of the todos, which changes
+   * whenever the todos do (but not when they're only merged).
+   *
+   * @return the version number
+   */
+  long versionNumber() {
+    return version.number();
+  }
+
+  /**
+   * Send all the todos with the given export, taking both them and their
+   * version number from the same version, so that a snapshot is never
+   * saved under a different version than the todos in it.
+   *
+   * @param export the export to send them with
+   * @param ctx    a Javalin HTTP context
+   * @throws IOException if there are problems writing or sending the
+   *                     snapshot
+   */
+  void export(NdjsonExport export, Context ctx) throws IOException {
+    TodoVersion pinned = version;
+    export.send(ctx, pinned.number(), pinned::todos);
+  }
+
+  /**
+   * Get the current version of the todos, e.g., to pin for a query.
+   *
+   * @return the current version
+   */
+  TodoVersion currentVersion() {
+    return version;
+  }
+
+  /**
+   * Add the given todos to the "database", after the todos already in
+   * it, and publish an insertion to the change feed for each of them.
+   * <p>
+   * The todos are indexed once for the whole batch rather than once per
+   * todo, and queries see either none of the batch or all of it.
+   * <p>
+   * Every todo needs an `_id` of its own, so that updates know which todo
+   * to replace. That's checked here, while no other write can get in,
+   * rather than by the caller beforehand.
+   *
+   * @param todos the todos to add
+   * @throws DuplicateIdException if the `_id` of one of the todos is
+   *                              taken, in which case none of them are
+   *                              added
+   */
+  public void insertTodos(Todo[] todos) {
+    synchronized (this) {
+      checkIdsAreFree(todos);
+      applyInsert(todos);
+      for (Todo todo : todos) {
+        unpublished.add(new TodoChange(TodoChange.INSERTED, todo));
+      }
+    }
+    publishChanges();
+  }
+
+  /**
+   * Replace the todo with the same ID as the given todo, and publish the
+   * update to the change feed. The replaced todo itself isn't changed,
+   * so queries that already have it still see it as it was.
+   *
+   * @param todo the new version of the todo
+   * @return the todo that was replaced, or null if there is no todo with
+   *         that ID (in which case nothing is changed)
+   */
+  public Todo updateTodo(Todo todo) {
+    Todo replaced;
+    synchronized (this) {
+      replaced = applyUpdate(todo);
+      if (replaced != null) {
+        unpublished.add(new TodoChange(TodoChange.UPDATED, todo, replaced));
+      }
+    }
+    publishChanges();
+    return replaced;
+  }
+
+  /**
+   * Delete the todo with the given ID, and publish the deletion to the
+   * change feed.
+   *
+   * @param id the ID of the todo to delete
+   * @return the deleted todo, or null if there is no todo with that ID
+   */
+  public Todo deleteTodo(String id) {
+    Todo deleted;
+    synchronized (this) {
+      deleted = applyDelete(id);
+      if (deleted != null) {
+        unpublished.add(new TodoChange(TodoChange.DELETED, deleted));
+      }
+    }
+    publishChanges();
+    return deleted;
+  }
+
+  /**
+   * Check that none of the given todos has the `_id` of a todo in the
+   * "database" or of an earlier todo in the batch. The caller must hold
+   * this object's lock.
+   *
+   * @param todos the todos about to be added
+   */
+  private void checkIdsAreFree(Todo[] todos) {
+    Set<String> batchIds = new HashSet<>();
+    for (int i = 0; i < todos.length; i++) {
+      if (!batchIds.add(todos[i]._id) || getTodo(todos[i]._id) != null) {
+        throw new DuplicateIdException(i, todos[i]._id);
+      }
+    }
+  }
+
+  /**
+   * Publish every change that hasn't been published yet to the change
+   * feed, in the order they were made.
+   * <p>
+   * Changes are only published by one thread at a time, so they can't
+   * overtake each other. A writer's own changes may be published by
+   * another writer that got here first, but either way they've all been
+   * published by the time this returns.
+   */
+  private void publishChanges() {
+    synchronized (publishLock) {
+      TodoChange change;
+      while ((change = unpublished.poll()) != null) {
+        changeFeed.publish(change);
+      }
+    }
+  }
+
+  // These make the changes for `insertTodos`, `updateTodo`, and
+  // `deleteTodo` without publishing anything, so that a
+  // `ShardedTodoDatabase` can make them in its shards instead.
+
+  synchronized void applyInsert(Todo[] todos) {
+    applyInsert(todos, nextSequences(todos.length));
+  }
+
+  /**
+   * Add the given todos, with the given sequence numbers (see
+   * `TodoSegment`), e.g., to a shard of a `ShardedTodoDatabase`.
+   *
+   * @param todos     the todos to add
+   * @param sequences the sequence number of each todo
+   */
+  synchronized void applyInsert(Todo[] todos, long[] sequences) {
+    write(todos, sequences, TodoSegment.NO_DELETES);
+  }
+
+  synchronized Todo applyUpdate(Todo todo) {
+    TodoVersion current = version;
+    int ordinal = current.find(todo._id);
+    if (ordinal < 0) {
+      return null;
+    }
+    write(new Todo[] {todo}, nextSequences(1), new int[] {ordinal});
+    return current.todoAt(ordinal);
+  }
+
+  synchronized Todo applyDelete(String id) {
+    TodoVersion current = version;
+    int ordinal = current.find(id);
+    if (ordinal < 0) {
+      return null;
+    }
+    write(new Todo[0], new long[0], new int[] {ordinal});
+    return current.todoAt(ordinal);
+  }
+
+  /**
+   * Take the next sequence numbers (see `TodoSegment`) for the given
+   * number of todos about to be written. The caller must hold this
+   * object's lock.
+   *
+   * @param count the number of todos
+   * @return their sequence numbers
+   */
+  long[] nextSequences(int count) {
+    long[] sequences = LongStream.range(nextSequence, nextSequence + count).toArray();
+    nextSequence += count;
+    return sequences;
+  }
+
+  /**
+   * Make a new current version, with a delta that adds the given todos
+   * (with the given sequence numbers) and deletes the todos at the given
+   * ordinals. The caller must hold this object's lock.
+   * <p>
+   * This copies the list of segments, but none of the segments, so it
+   * takes about as long however many todos there are.
+   */
+  private void write(Todo[] todos, long[] sequences, int[] deletes) {
+    TodoVersion current = version;
+    TodoSegment[] segments = current.segments();
+    TodoSegment delta = new TodoSegment(todos, sequences, deletes);
+    // Combine the new delta with the deltas before it while they're no
+    // bigger than it is. That keeps each delta at least twice as big as
+    // the one after it (like the digits of a binary counter), so there
+    // are only ever a few deltas, and each todo is copied into a bigger
+    // delta only a few times before it's merged into the base.
+    int end = segments.length;
+    while (end > Math.max(1, merging) && segments[end - 1].weight() <= delta.weight()) {
+      delta = segments[end - 1].combine(delta);
+      end--;
+    }
+    TodoSegment[] next = Arrays.copyOf(segments, end + 1);
+    next[end] = delta;
+    version = new TodoVersion(current.number() + 1, next);
+    startMergeIfNeeded();
+  }
+
+  /**
+   * Start a background merge of the current version's segments if its
+   * deltas have grown big enough and there isn't one running already.
+   * The caller must hold this object's lock.
+   */
+  private void startMergeIfNeeded() {
+    TodoVersion current = version;
+    TodoSegment[] segments = current.segments();
+    long deltaWeight = 0;
+    for (int i = 1; i < segments.length; i++) {
+      deltaWeight += segments[i].weight();
+    }
+    if (merging > 0 || deltaWeight < Math.max(mergeThreshold, segments[0].todos().length / MERGE_RATIO)) {
+      return;
+    }
+    merging = segments.length;
+    mergeExecutor.execute(() -> merge(current));
+  }
+
+  /**
+   * Fold all the segments of the given version into a new base segment
+   * holding just its live todos, and then swap that in for those
+   * segments in the current version (which may have more deltas by now).
+   * The new version has the same todos as the one it replaces, so it
+   * keeps its number.
+   */
+  private void merge(TodoVersion merged) {
+    TodoSegment base;
+    int[] renumbering;
+    try {
+      // This is the slow part, so it's done without holding the lock
+      base = new TodoSegment(merged.todos(), merged.sequences(), TodoSegment.NO_DELETES);
+      renumbering = merged.renumbering();
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        merging = 0;
+      }
+      throw e;
+    }
+    synchronized (this) {
+      TodoVersion current = version;
+      TodoSegment[] segments = current.segments();
+      int mergedCount = merged.segments().length;
+      TodoSegment[] next = new TodoSegment[segments.length - mergedCount + 1];
+      next[0] = base;
+      // The deltas written since the merge started may delete todos in
+      // the merged segments, and the ordinals of those (and of their
+      // own todos) have changed
+      int shift = base.todos().length - merged.ordinals();
+      for (int i = mergedCount; i < segments.length; i++) {
+        int[] deletes = segments[i].deletes().clone();
+        for (int j = 0; j < deletes.length; j++) {
+          deletes[j] = deletes[j] < merged.ordinals() ? renumbering[deletes[j]] : deletes[j] + shift;
+        }
+        next[i - mergedCount + 1] = segments[i].withDeletes(deletes);
+      }
+      version = new TodoVersion(current.number(), next);
+      merging = 0;
+      startMergeIfNeeded();
+    }
+  }
+
+  /**
+   * Get the feed that changes to the todos in this "database" are
+   * published to.
+   *
+   * @return the change feed for this "database"
+   */
+  public TodoChangeFeed getChangeFeed() {
+    return changeFeed;
+  }
+
+  /**
+   * Set the number of todos above which filtering is done in parallel.
+   *
+   * @param parallelThreshold the smallest number of todos that will be
+   *                          filtered in parallel
+   */
+  public void setParallelThreshold(int parallelThreshold) {
+    this.parallelThreshold = parallelThreshold;
+  }
+
+  /**
+   * Set the executor that merges deltas into the base, e.g.,
+   * `Runnable::run` to merge right away, as part of the write.
+   *
+   * @param mergeExecutor the executor to run merges on
+   */
+  public synchronized void setMergeExecutor(Executor mergeExecutor) {
+    this.mergeExecutor = mergeExecutor;
+  }
+
+  /**
+   * Set the smallest number of todos and deletions in the deltas that
+   * will be merged into the base (if that's at least 1/MERGE_RATIO of
+   * the base).
+   *
+   * @param mergeThreshold the number of todos and deletions in the
+   *                       deltas that starts a merge
+   */
+  public synchronized void setMergeThreshold(int mergeThreshold) {
+    this.mergeThreshold = mergeThreshold;
+  }
+
+  /**
+   * Estimate how much work it will take to answer the given query, in
+   * rough units of "todos looked at".
+   * <p>
+   * The `owner`, `category`, and `ownerPrefix` filters use indexes, so a
+   * query with them only looks at the todos those indexes match, which
+   * they can count without building their posting lists. Every todo that
+   * gets past them is looked at once; searching the bodies costs about
+   * another `BODY_SEARCH_COST` per todo, and sorting costs about
+   * `log2(n)` more per todo.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the estimated cost of the query
+   */
+  public long estimateCost(Map<String, List<String>> queryParams) {
+    return estimateCost(queryParams, version);
+  }
+
+  /**
+   * Estimate how much work it will take to answer the given query over
+   * the given version of the todos (see `estimateCost(Map)`).
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param current     the version of the todos to query
+   * @return the estimated cost of the query
+   */
+  long estimateCost(Map<String, List<String>> queryParams, TodoVersion current) {
+    long rows = current.size();
+    if (queryParams.containsKey("ownerPrefix")) {
+      String prefix = queryParams.get("ownerPrefix").get(0);
+      rows = Math.min(rows, current.count(segment -> segment.ownerDictionary().prefixCount(prefix)));
+    }
+    if (queryParams.containsKey("owner")) {
+      List<String> owners = queryParams.get("owner");
+      rows = Math.min(rows, current.count(segment -> segment.ownerIndex().count(owners)));
+    }
+    if (queryParams.containsKey("category")) {
+      List<String> categories = queryParams.get("category");
+      rows = Math.min(rows, current.count(segment -> segment.categoryIndex().count(categories)));
+    }
+    long cost = rows;
+    if (queryParams.containsKey("contains")) {
+      cost += rows * BODY_SEARCH_COST;
+    }
+    if (queryParams.containsKey("orderBy")) {
+      cost += rows * (Long.SIZE - Long.numberOfLeadingZeros(rows));
+    }
+    return cost;
   }
 
   /**
@@ -42,7 +547,9 @@ public class TodoDatabase {
    * @return the todo with the given ID, or null if there is no todo with that ID
    */
   public Todo getTodo(String id) {
-    return Arrays.stream(allTodos).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+    TodoVersion current = version;
+    int ordinal = current.find(id);
+    return ordinal < 0 ? null : current.todoAt(ordinal);
   }
 
   /**
@@ -52,62 +559,232 @@ public class TodoDatabase {
    * @return an array of all the users matching the given criteria
    */
   public Todo[] listTodos(Map<String, List<String>> queryParams) {
-    Todo[] filteredTodos = allTodos;
+    return listTodos(queryParams, new QueryPlan(queryParams));
+  }
 
-    // Filter owner if defined
-    if (queryParams.containsKey("owner")) {
-      String targetOwner = queryParams.get("owner").get(0);
-      filteredTodos = filterTodosByOwner(filteredTodos, targetOwner);
-    }
-    // Filter category if defined
-    if (queryParams.containsKey("category")) {
-      String targetCategory = queryParams.get("category").get(0);
-      filteredTodos = filterTodosByCategory(filteredTodos, targetCategory);
-    }
-    // Filter status if defined, changing String parameter to a corresponding boolean
+  /**
+   * Get an array of all the todos satisfying the queries in the params,
+   * recording how we found them in the given plan.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param plan        the plan to record each stage of the query in
+   * @return an array of all the todos matching the given criteria
+   */
+  public Todo[] listTodos(Map<String, List<String>> queryParams, QueryPlan plan) {
+    return listTodos(queryParams, plan, version);
+  }
+
+  /**
+   * Get the todos satisfying the queries in the params, just as
+   * `listTodos` does, along with their sequence numbers, e.g., so that a
+   * cluster router can merge them with the todos from other nodes.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param plan        the plan to record each stage of the query in
+   * @return the todos matching the given criteria, with their sequence
+   *         numbers
+   */
+  public SequencedTodos listSequencedTodos(Map<String, List<String>> queryParams, QueryPlan plan) {
+    TodoVersion current = version;
+    Todo[] todos = listTodos(queryParams, plan, current);
+    return new SequencedTodos(todos, current.sequencesOf(todos));
+  }
+
+  /**
+   * Get an array of all the todos in the given version satisfying the
+   * queries in the params, recording how we found them in the given
+   * plan.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param plan        the plan to record each stage of the query in
+   * @param current     the version of the todos to query
+   * @return an array of all the todos matching the given criteria
+   */
+  Todo[] listTodos(Map<String, List<String>> queryParams, QueryPlan plan, TodoVersion current) {
+    // Parse (and check) the parameters that need it before doing any
+    // real work, so that a bad query fails fast
+    boolean targetStatus = false;
     if (queryParams.containsKey("status")) {
-      String statusParam = queryParams.get("status").get(0);
-      boolean targetStatus = false;
-      if (statusParam.equals("complete")) {
-        targetStatus = true;
-      } else if (!statusParam.contains("incomplete")) {
-        // Throw BadRequestResponse if the requested status does not match a boolean value (complete/incomplete)
-        throw new BadRequestResponse("Specified status '" + statusParam + "' can't be interpreted as a boolean");
-      }
-      filteredTodos = filterTodosByStatus(filteredTodos, targetStatus);
+      // Change the String parameter to a corresponding boolean
+      targetStatus = parseStatus(queryParams.get("status").get(0));
     }
-    // Filter body if defined
-    if (queryParams.containsKey("contains")) {
-      String targetString = queryParams.get("contains").get(0);
-      filteredTodos = filterTodosByBody(filteredTodos, targetString);
-    }
-    // Order by field if defined
+    String toOrderBy = null;
     if (queryParams.containsKey("orderBy")) {
-      String toOrderBy = queryParams.get("orderBy").get(0).toLowerCase();
+      toOrderBy = queryParams.get("orderBy").get(0).toLowerCase();
       if (!toOrderBy.equals("owner")
       && !toOrderBy.equals("body")
       && !toOrderBy.equals("status")
       && !toOrderBy.equals("category")) {
         throw new BadRequestResponse("Specified value to order by '" + toOrderBy + "' is an invalid value");
-      } else {
-        filteredTodos = orderTodos(filteredTodos, toOrderBy);
       }
     }
-    // Limit results if defined
+    int limit = Integer.MAX_VALUE;
     if (queryParams.containsKey("limit")) {
-      try {
-        int limit = Integer.parseInt(queryParams.get("limit").get(0));
-        filteredTodos = filterTodosByLimit(filteredTodos, limit);
-      } catch (NumberFormatException e) {
-        throw new BadRequestResponse("Specified limit '" + queryParams.get("limit").get(0)
-        + "' can't be parsed to an integer");
+      limit = parseLimit(queryParams.get("limit").get(0));
+    }
+    plan.stage(QueryPlan.PARSE, "parse", "parameters", 0, 0);
+
+    // The filters that can use an index each give us a posting list of
+    // the ordinals of the matching todos, and we keep only the todos in
+    // all of those lists. (`null` means we haven't filtered anything yet.)
+    int[] candidates = null;
+    // Filter body if defined, using the pre-lower-cased body search
+    boolean searchBodies = false;
+    if (queryParams.containsKey("contains")) {
+      String targetString = queryParams.get("contains").get(0);
+      if (current.segments()[0].bodySearch().canSearch(targetString)) {
+        candidates = current.matches(segment -> segment.bodySearch().search(targetString));
+        plan.stage(QueryPlan.FILTER, "contains", "body search", current.size(), candidates.length);
+      } else {
+        searchBodies = true;
       }
+    }
+    // Filter owners that start with a prefix (ignoring case) if defined
+    if (queryParams.containsKey("ownerPrefix")) {
+      int rowsExamined = rows(candidates, current);
+      String prefix = queryParams.get("ownerPrefix").get(0);
+      candidates = PostingLists.narrow(candidates,
+          current.matches(segment -> segment.ownerDictionary().prefixMatches(prefix)));
+      plan.stage(QueryPlan.FILTER, "ownerPrefix", "owner dictionary", rowsExamined, candidates.length);
+    }
+    // Filter owner if defined, keeping the todos of any of the given owners
+    if (queryParams.containsKey("owner")) {
+      int rowsExamined = rows(candidates, current);
+      List<String> owners = queryParams.get("owner");
+      candidates = PostingLists.narrow(candidates, current.matches(segment -> segment.ownerIndex().matches(owners)));
+      plan.stage(QueryPlan.FILTER, "owner", "owner index", rowsExamined, candidates.length);
+    }
+    // Filter category if defined, keeping the todos in any of the given categories
+    if (queryParams.containsKey("category")) {
+      int rowsExamined = rows(candidates, current);
+      List<String> categories = queryParams.get("category");
+      candidates = PostingLists.narrow(candidates,
+          current.matches(segment -> segment.categoryIndex().matches(categories)));
+      plan.stage(QueryPlan.FILTER, "category", "category index", rowsExamined, candidates.length);
+    }
+    // (This is null if we've filtered by an index, so that it's never the
+    // same array as `filteredTodos` from then on.)
+    Todo[] allTodos = candidates == null ? current.todos() : null;
+    Todo[] filteredTodos = allTodos;
+    if (candidates != null) {
+      filteredTodos = current.todosAt(candidates);
+      plan.stage(QueryPlan.FILTER, "fetch", "ordinals", candidates.length, filteredTodos.length);
+    }
 
+    // The body search can't handle every string, so in that case we have
+    // to go through the todos one at a time.
+    if (searchBodies) {
+      int rowsExamined = filteredTodos.length;
+      filteredTodos = filterTodosByBody(filteredTodos, queryParams.get("contains").get(0));
+      plan.stage(QueryPlan.FILTER, "contains", scan(rowsExamined), rowsExamined, filteredTodos.length);
+    }
+    // Filter status if defined
+    if (queryParams.containsKey("status")) {
+      int rowsExamined = filteredTodos.length;
+      filteredTodos = filterTodosByStatus(filteredTodos, targetStatus);
+      plan.stage(QueryPlan.FILTER, "status", scan(rowsExamined), rowsExamined, filteredTodos.length);
+    }
+    // Order by field if defined
+    if (toOrderBy != null) {
+      // `orderTodos` sorts in place, so make sure we never sort (and
+      // so scramble the ordinals of) the "database" itself.
+      if (filteredTodos == allTodos) {
+        filteredTodos = allTodos.clone();
+      }
+      filteredTodos = orderTodos(filteredTodos, toOrderBy);
+      plan.stage(QueryPlan.SORT, "orderBy " + toOrderBy, "sort", filteredTodos.length, filteredTodos.length);
+    }
+    // Limit results if defined
+    if (queryParams.containsKey("limit")) {
+      int rowsExamined = filteredTodos.length;
+      filteredTodos = filterTodosByLimit(filteredTodos, limit);
+      plan.stage(QueryPlan.LIMIT, "limit", "truncate", rowsExamined, filteredTodos.length);
+    }
+    // With no filters at all, every todo is a result
+    if (filteredTodos == allTodos) {
+      plan.stage(QueryPlan.FILTER, "all", "scan", current.size(), allTodos.length);
     }
 
     return filteredTodos;
   }
 
+  private static int rows(int[] candidates, TodoVersion current) {
+    return candidates == null ? current.size() : candidates.length;
+  }
+
+  private String scan(int rows) {
+    return rows >= parallelThreshold ? "parallel scan" : "scan";
+  }
+
+  /**
+   * Get a test of whether a single todo passes the filters (`owner`,
+   * `ownerPrefix`, `category`, `status`, and `contains`) of the given
+   * query, read just as `listTodos` reads them, e.g., to check each
+   * changed todo against a subscription to the change feed.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return a predicate that is true for the todos `listTodos` would
+   *         find with this query
+   */
+  static Predicate<Todo> filterFor(Map<String, List<String>> queryParams) {
+    Predicate<Todo> filter = todo -> true;
+    if (queryParams.containsKey("status")) {
+      boolean targetStatus = parseStatus(queryParams.get("status").get(0));
+      filter = filter.and(todo -> todo.status == targetStatus);
+    }
+    if (queryParams.containsKey("contains")) {
+      String lowerTarget = queryParams.get("contains").get(0).toLowerCase();
+      filter = filter.and(todo -> todo.body.toLowerCase().contains(lowerTarget));
+    }
+    if (queryParams.containsKey("ownerPrefix")) {
+      // Ignoring case just as the owner dictionary does
+      String prefix = queryParams.get("ownerPrefix").get(0).toLowerCase(Locale.ROOT);
+      filter = filter.and(todo -> todo.owner.toLowerCase(Locale.ROOT).startsWith(prefix));
+    }
+    // Any one of the given owners, and any one of the given categories
+    if (queryParams.containsKey("owner")) {
+      Set<String> owners = Set.copyOf(queryParams.get("owner"));
+      filter = filter.and(todo -> owners.contains(todo.owner));
+    }
+    if (queryParams.containsKey("category")) {
+      Set<String> categories = Set.copyOf(queryParams.get("category"));
+      filter = filter.and(todo -> categories.contains(todo.category));
+    }
+    return filter;
+  }
+
+  /**
+   * Turn a limit query parameter into the corresponding integer.
+   *
+   * @param limitParam the requested limit
+   * @return the limit as an integer
+   */
+  static int parseLimit(String limitParam) {
+    try {
+      return Integer.parseInt(limitParam);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified limit '" + limitParam
+      + "' can't be parsed to an integer");
+    }
+  }
+
+  /**
+   * Turn a status query parameter into the corresponding boolean.
+   *
+   * @param statusParam the requested status (complete/incomplete)
+   * @return true if the status is "complete", false if it is "incomplete"
+   */
+  static boolean parseStatus(String statusParam) {
+    boolean targetStatus = false;
+    if (statusParam.equals("complete")) {
+      targetStatus = true;
+    } else if (!statusParam.contains("incomplete")) {
+      // Throw BadRequestResponse if the requested status does not match a boolean value (complete/incomplete)
+      throw new BadRequestResponse("Specified status '" + statusParam + "' can't be interpreted as a boolean");
+    }
+    return targetStatus;
+  }
+
   /**
    * Get an array of all the todos having the target owner.
    *
@@ -117,7 +794,7 @@ public class TodoDatabase {
    *         owner
    */
   public Todo[] filterTodosByOwner(Todo[] todos, String targetOwner) {
-    return Arrays.stream(todos).filter(x -> x.owner.equals(targetOwner)).toArray(Todo[]::new);
+    return filterTodos(todos, x -> x.owner.equals(targetOwner));
   }
 
   /**
@@ -129,7 +806,7 @@ public class TodoDatabase {
    *         category
    */
   public Todo[] filterTodosByCategory(Todo[] todos, String targetCategory) {
-    return Arrays.stream(todos).filter(x -> x.category.equals(targetCategory)).toArray(Todo[]::new);
+    return filterTodos(todos, x -> x.category.equals(targetCategory));
   }
 
   /**
@@ -142,7 +819,7 @@ public class TodoDatabase {
    *
    */
   public Todo[] filterTodosByStatus(Todo[] todos, boolean targetStatus) {
-    return Arrays.stream(todos).filter(x -> x.status == targetStatus).toArray(Todo[]::new);
+    return filterTodos(todos, x -> x.status == targetStatus);
   }
 
   /**
@@ -155,8 +832,8 @@ public class TodoDatabase {
    *
    */
   public Todo[] filterTodosByBody(Todo[] todos, String targetString) {
-    return Arrays.stream(todos).filter(x -> x.body.toLowerCase()
-    .contains(targetString.toLowerCase())).toArray(Todo[]::new);
+    String lowerTarget = targetString.toLowerCase();
+    return filterTodos(todos, x -> x.body.toLowerCase().contains(lowerTarget));
   }
 
   /**
@@ -168,21 +845,36 @@ public class TodoDatabase {
    *
    */
   public Todo[] orderTodos(Todo[] todos, String toOrderBy) {
+    Comparator<Todo> comparator = comparatorFor(toOrderBy);
+    if (comparator != null) {
+      Arrays.sort(todos, comparator);
+    }
+    return todos;
+  }
+
+  /**
+   * Get a comparator that puts todos in alphabetical order of a given value.
+   *
+   * @param toOrderBy the value in Todo to order by
+   * @return a comparator ordering todos by that value, or null if there
+   *         is no such value
+   */
+  static Comparator<Todo> comparatorFor(String toOrderBy) {
     // credit to tobias_k on StackOverflow for the Comparator solution.
     // https://stackoverflow.com/questions/27929533/sorting-array-of-objects-by-field
     if (toOrderBy.equals("owner")) {
-      Arrays.sort(todos, Comparator.comparing(x -> x.owner));
+      return Comparator.comparing(x -> x.owner);
     }
     if (toOrderBy.equals("body")) {
-      Arrays.sort(todos, Comparator.comparing(x -> x.body));
+      return Comparator.comparing(x -> x.body);
     }
     if (toOrderBy.equals("status")) {
-      Arrays.sort(todos, Comparator.comparing(x -> String.valueOf(x.status)));
+      return Comparator.comparing(x -> String.valueOf(x.status));
     }
     if (toOrderBy.equals("category")) {
-      Arrays.sort(todos, Comparator.comparing(x -> x.category));
+      return Comparator.comparing(x -> x.category);
     }
-    return todos;
+    return null;
   }
 
   /**
@@ -199,4 +891,76 @@ public class TodoDatabase {
     return Arrays.stream(todos).limit(targetLimit).toArray(Todo[]::new);
   }
 
+  /**
+   * Get an array of all the todos matching the given predicate, in the
+   * same order they appear in the given array.
+   * <p>
+   * Small arrays are filtered with a plain sequential stream. Arrays with
+   * at least `parallelThreshold` todos are split into chunks that are
+   * filtered in parallel on `SCAN_POOL`. Each chunk keeps its own matches,
+   * and once every chunk is done they're concatenated, in order, into the
+   * result with a single copy of each match.
+   *
+   * @param todos     the list of todos to filter
+   * @param predicate the condition a todo has to meet to be kept
+   * @return an array of all the todos from the given list that match
+   *         the predicate
+   */
+  private Todo[] filterTodos(Todo[] todos, Predicate<Todo> predicate) {
+    // (A single chunk, or none, isn't worth handing to the pool.)
+    if (todos.length < parallelThreshold || todos.length <= PARALLEL_CHUNK_SIZE) {
+      return Arrays.stream(todos).filter(predicate).toArray(Todo[]::new);
+    }
+    int chunks = (todos.length + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+    Todo[][] chunkMatches = new Todo[chunks][];
+    SCAN_POOL.invoke(new FilterTask(todos, predicate, chunkMatches, 0, chunks));
+    int matches = 0;
+    for (Todo[] chunk : chunkMatches) {
+      matches += chunk.length;
+    }
+    Todo[] filtered = new Todo[matches];
+    int position = 0;
+    for (Todo[] chunk : chunkMatches) {
+      System.arraycopy(chunk, 0, filtered, position, chunk.length);
+      position += chunk.length;
+    }
+    return filtered;
+  }
+
+  /**
+   * A fork/join task that filters the chunks `[fromChunk..toChunk)` of
+   * `todos`, splitting the range of chunks in half until it's a single
+   * chunk, whose matches go into `chunkMatches`.
+   */
+  @SuppressWarnings("serial")
+  private static class FilterTask extends RecursiveAction {
+    private final Todo[] todos;
+    private final Predicate<Todo> predicate;
+    private final Todo[][] chunkMatches;
+    private final int fromChunk;
+    private final int toChunk;
+
+    FilterTask(Todo[] todos, Predicate<Todo> predicate, Todo[][] chunkMatches, int fromChunk, int toChunk) {
+      this.todos = todos;
+      this.predicate = predicate;
+      this.chunkMatches = chunkMatches;
+      this.fromChunk = fromChunk;
+      this.toChunk = toChunk;
+    }
+
+    @Override
+    protected void compute() {
+      if (toChunk - fromChunk == 1) {
+        int from = fromChunk * PARALLEL_CHUNK_SIZE;
+        int to = Math.min(from + PARALLEL_CHUNK_SIZE, todos.length);
+        chunkMatches[fromChunk] = Arrays.stream(todos, from, to).filter(predicate).toArray(Todo[]::new);
+        return;
+      }
+      int middle = (fromChunk + toChunk) >>> 1;
+      invokeAll(
+          new FilterTask(todos, predicate, chunkMatches, fromChunk, middle),
+          new FilterTask(todos, predicate, chunkMatches, middle, toChunk));
+    }
+  }
+
 }
@@ -0,0 +1,54 @@
+package umm3601.todo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
+
+/**
+ * Joins todos with the `User` records of their owners.
+ * <p>
+ * A todo's `owner` is matched against a user's `name`. Rather than
+ * scanning all the users for every todo, we build a hash map from
+ * owner name to user once, when the join is constructed, and then each
+ * todo is a single lookup in that map. The map is never rebuilt: the
+ * user "database" is loaded once at startup and never changes.
+ * <p>
+ * Todos whose owner isn't the name of any user are still returned,
+ * with a `null` user (`"user": null` in the JSON).
+ */
+public class TodoOwnerJoin {
+
+  private final Map<String, User> usersByOwner = new HashMap<>();
+
+  /**
+   * Construct a join against the given user "database", building the
+   * owner-to-user map right away.
+   *
+   * @param userDatabase the `UserDatabase` to look owners up in
+   */
+  public TodoOwnerJoin(UserDatabase userDatabase) {
+    for (User user : userDatabase.listUsers(new HashMap<>())) {
+      // If there are several users with the same name we keep the
+      // first one, just as `getUser` returns the first match.
+      usersByOwner.putIfAbsent(user.name, user);
+    }
+  }
+
+  /**
+   * Attach the owning user to each of the given todos.
+   *
+   * @param todos the todos to join with their owners
+   * @return an array of the given todos, in the same order, each with
+   *         its owner's user record attached (or `null` if no user
+   *         has the todo's owner as their name)
+   */
+  public TodoWithOwner[] join(Todo[] todos) {
+    TodoWithOwner[] joined = new TodoWithOwner[todos.length];
+    for (int i = 0; i < todos.length; i++) {
+      joined[i] = new TodoWithOwner(todos[i], usersByOwner.get(todos[i].owner));
+    }
+    return joined;
+  }
+}
@@ -0,0 +1,155 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import umm3601.EqualityIndex;
+import umm3601.PostingLists;
+import umm3601.TermDictionary;
+
+/**
+ * Some of the todos in a `TodoDatabase`, along with the indexes built
+ * over them. A `TodoVersion` is a list of segments: a big base segment,
+ * followed by small delta segments holding the changes since the base
+ * was built.
+ * <p>
+ * Each delta also lists the ordinals (in the version it was added to) of
+ * the todos that it deletes, since an update is a deletion of the old
+ * todo plus the insertion of the new one. The ordinals of a segment's
+ * own todos are counted from the start of the segment.
+ * <p>
+ * Each todo also has a sequence number, from a counter that goes up by
+ * one for each todo written (by an insertion or an update), so sorting
+ * by sequence number puts the todos in the order the "database" holds
+ * them. That's just their ordinal order, but the shards of a
+ * `ShardedTodoDatabase` share one counter, so their todos can be merged
+ * back into the order an unsharded "database" would have.
+ * <p>
+ * A segment never changes once it's built, so a query can use one
+ * without worrying about the todos changing under it.
+ */
+class TodoSegment {
+
+  static final int[] NO_DELETES = new int[0];
+
+  private final Todo[] todos;
+  private final long[] sequences;
+  private final int[] deletes;
+  private final TodoBodySearch bodySearch;
+  private final TermDictionary ownerDictionary;
+  private final EqualityIndex<String> ownerIndex;
+  private final EqualityIndex<String> categoryIndex;
+  // The ordinal of the last todo in this segment with each ID
+  private final Map<String, Integer> idIndex;
+
+  /**
+   * Build a segment holding the given todos, indexing their bodies,
+   * owners, categories, and IDs.
+   *
+   * @param todos     the todos in the segment, which must not be modified
+   *                  afterwards
+   * @param sequences the sequence number of each todo
+   * @param deletes   the sorted ordinals of the todos this segment deletes
+   */
+  TodoSegment(Todo[] todos, long[] sequences, int[] deletes) {
+    this.todos = todos;
+    this.sequences = sequences;
+    this.deletes = deletes;
+    bodySearch = new TodoBodySearch(todos);
+    ownerDictionary = new TermDictionary(Arrays.stream(todos).map(x -> x.owner).toArray(String[]::new));
+    ownerIndex = new EqualityIndex<>(Arrays.stream(todos).map(x -> x.owner).collect(Collectors.toList()));
+    categoryIndex = new EqualityIndex<>(Arrays.stream(todos).map(x -> x.category).collect(Collectors.toList()));
+    idIndex = new HashMap<>();
+    for (int i = 0; i < todos.length; i++) {
+      idIndex.put(todos[i]._id, i);
+    }
+  }
+
+  private TodoSegment(TodoSegment segment, int[] deletes) {
+    this.todos = segment.todos;
+    this.sequences = segment.sequences;
+    this.deletes = deletes;
+    this.bodySearch = segment.bodySearch;
+    this.ownerDictionary = segment.ownerDictionary;
+    this.ownerIndex = segment.ownerIndex;
+    this.categoryIndex = segment.categoryIndex;
+    this.idIndex = segment.idIndex;
+  }
+
+  /**
+   * Build a segment holding the todos of this segment followed by those
+   * of the given (next) segment, and deleting what either of them does.
+   *
+   * @param next the segment just after this one
+   * @return the combined segment
+   */
+  TodoSegment combine(TodoSegment next) {
+    Todo[] combined = Arrays.copyOf(todos, todos.length + next.todos.length);
+    System.arraycopy(next.todos, 0, combined, todos.length, next.todos.length);
+    long[] combinedSequences = Arrays.copyOf(sequences, sequences.length + next.sequences.length);
+    System.arraycopy(next.sequences, 0, combinedSequences, sequences.length, next.sequences.length);
+    return new TodoSegment(combined, combinedSequences, PostingLists.union(deletes, next.deletes));
+  }
+
+  /**
+   * Get a segment with the same todos and indexes as this one, but that
+   * deletes the given ordinals instead, e.g., once the ordinals it
+   * deleted have been renumbered by a merge.
+   *
+   * @param newDeletes the sorted ordinals of the todos to delete
+   * @return the new segment
+   */
+  TodoSegment withDeletes(int[] newDeletes) {
+    return new TodoSegment(this, newDeletes);
+  }
+
+  /**
+   * Get roughly how much work building this segment was: the number of
+   * todos it holds plus the number it deletes.
+   *
+   * @return the weight of this segment
+   */
+  int weight() {
+    return todos.length + deletes.length;
+  }
+
+  /**
+   * Get the ordinal of the last todo in this segment with the given ID.
+   *
+   * @param id the ID to look for
+   * @return the ordinal of the todo, or -1 if there is none
+   */
+  int ordinalOf(String id) {
+    return idIndex.getOrDefault(id, -1);
+  }
+
+  Todo[] todos() {
+    return todos;
+  }
+
+  long[] sequences() {
+    return sequences;
+  }
+
+  int[] deletes() {
+    return deletes;
+  }
+
+  TodoBodySearch bodySearch() {
+    return bodySearch;
+  }
+
+  TermDictionary ownerDictionary() {
+    return ownerDictionary;
+  }
+
+  EqualityIndex<String> ownerIndex() {
+    return ownerIndex;
+  }
+
+  EqualityIndex<String> categoryIndex() {
+    return categoryIndex;
+  }
+}
@@ -0,0 +1,89 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import umm3601.EncodedValues;
+
+/**
+ * Writes a todo straight to a Jackson generator, rather than having
+ * Jackson find and read its fields by reflection.
+ * <p>
+ * The field names are encoded (and escaped) once, up front. Owners and
+ * categories come from a small set of values, so each of those is also
+ * encoded just once and then reused for every todo that has it.
+ * <p>
+ * A serializer can also write just some of the fields (a projection, see
+ * `ContentNegotiation`). Which ones is settled when it's constructed, so
+ * a projection costs no more per todo than writing the todo in full.
+ */
+public class TodoSerializer extends StdSerializer<Todo> {
+
+  // The names of a todo's fields, in the order they're written
+  public static final List<String> FIELDS = List.of("_id", "owner", "status", "body", "category");
+
+  private static final SerializedString ID = new SerializedString("_id");
+  private static final SerializedString OWNER = new SerializedString("owner");
+  private static final SerializedString STATUS = new SerializedString("status");
+  private static final SerializedString BODY = new SerializedString("body");
+  private static final SerializedString CATEGORY = new SerializedString("category");
+
+  private EncodedValues owners = new EncodedValues();
+  private EncodedValues categories = new EncodedValues();
+  private final boolean writeId;
+  private final boolean writeOwner;
+  private final boolean writeStatus;
+  private final boolean writeBody;
+  private final boolean writeCategory;
+
+  public TodoSerializer() {
+    this(FIELDS);
+  }
+
+  /**
+   * Construct a serializer that writes only the given fields of each
+   * todo, in the usual order.
+   *
+   * @param fields the names of the fields to write (see `FIELDS`)
+   */
+  public TodoSerializer(Collection<String> fields) {
+    super(Todo.class);
+    writeId = fields.contains("_id");
+    writeOwner = fields.contains("owner");
+    writeStatus = fields.contains("status");
+    writeBody = fields.contains("body");
+    writeCategory = fields.contains("category");
+  }
+
+  @Override
+  public void serialize(Todo todo, JsonGenerator gen, SerializerProvider provider) throws IOException {
+    gen.writeStartObject(todo);
+    if (writeId) {
+      gen.writeFieldName(ID);
+      gen.writeString(todo._id);
+    }
+    if (writeOwner) {
+      gen.writeFieldName(OWNER);
+      owners.write(gen, todo.owner);
+    }
+    if (writeStatus) {
+      gen.writeFieldName(STATUS);
+      gen.writeBoolean(todo.status);
+    }
+    if (writeBody) {
+      gen.writeFieldName(BODY);
+      gen.writeString(todo.body);
+    }
+    if (writeCategory) {
+      gen.writeFieldName(CATEGORY);
+      categories.write(gen, todo.category);
+    }
+    gen.writeEndObject();
+  }
+}
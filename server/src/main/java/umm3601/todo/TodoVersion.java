@@ -0,0 +1,311 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import umm3601.PostingLists;
+
+/**
+ * One version of the todos in a `TodoDatabase`: a base segment and the
+ * delta segments written since it was built (see `TodoSegment`).
+ * <p>
+ * A version never changes once it's built. Each write to the "database"
+ * makes a new version that shares all the old segments and adds a new
+ * delta, and each query pins the version that was current when it
+ * started. So queries never need a lock, and never see half of a write.
+ * <p>
+ * The todos in a version are numbered by their position in the segments
+ * taken one after the other, including the todos that later deltas
+ * deleted. These ordinals are what the indexes' posting lists hold, so
+ * every lookup has to leave out the deleted ones.
+ */
+class TodoVersion {
+
+  private final long number;
+  private final TodoSegment[] segments;
+  // `offsets[i]` is the ordinal of the first todo in `segments[i]`, and
+  // the last entry is the total number of todos, deleted or not
+  private final int[] offsets;
+  private final int size;
+  // The live todos and the deleted ordinals, worked out the first time
+  // they're needed. (If two queries race to do that, they both get the
+  // same answer, so it doesn't matter which one wins.)
+  private volatile Todo[] todos;
+  private volatile int[] deleted;
+
+  /**
+   * Build a version made up of the given segments.
+   *
+   * @param number   the number of this version; a version rearranged by
+   *                 a merge (which holds just the same todos) keeps the
+   *                 number of the version it replaces
+   * @param segments the base segment followed by the deltas
+   */
+  TodoVersion(long number, TodoSegment[] segments) {
+    this.number = number;
+    this.segments = segments;
+    offsets = new int[segments.length + 1];
+    int deletes = 0;
+    for (int i = 0; i < segments.length; i++) {
+      offsets[i + 1] = offsets[i] + segments[i].todos().length;
+      deletes += segments[i].deletes().length;
+    }
+    // Each todo is deleted at most once
+    size = offsets[segments.length] - deletes;
+  }
+
+  long number() {
+    return number;
+  }
+
+  TodoSegment[] segments() {
+    return segments;
+  }
+
+  /**
+   * Get the number of (live) todos in this version.
+   *
+   * @return the number of todos
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Get the number of ordinals in this version, counting the deleted
+   * todos too.
+   *
+   * @return the number of ordinals
+   */
+  int ordinals() {
+    return offsets[segments.length];
+  }
+
+  /**
+   * Get the live todos in this version, in ordinal order. The returned
+   * array must not be modified.
+   *
+   * @return the live todos
+   */
+  Todo[] todos() {
+    Todo[] live = todos;
+    if (live == null) {
+      if (segments.length == 1 && segments[0].deletes().length == 0) {
+        live = segments[0].todos();
+      } else {
+        live = todosAt(PostingLists.difference(allOrdinals(), deleted()));
+      }
+      todos = live;
+    }
+    return live;
+  }
+
+  /**
+   * Get the sequence numbers (see `TodoSegment`) of the live todos in
+   * this version, in ordinal order.
+   *
+   * @return the sequence numbers of the live todos
+   */
+  long[] sequences() {
+    int[] live = PostingLists.difference(allOrdinals(), deleted());
+    long[] found = new long[live.length];
+    for (int i = 0; i < live.length; i++) {
+      found[i] = sequenceAt(live[i]);
+    }
+    return found;
+  }
+
+  /**
+   * Get the sequence numbers of the given todos, which must be live todos
+   * of this version (e.g., the results of a query on it).
+   *
+   * @param todos the todos to look up
+   * @return the sequence number of each todo, in the same order
+   */
+  long[] sequencesOf(Todo[] todos) {
+    long[] found = new long[todos.length];
+    for (int i = 0; i < todos.length; i++) {
+      found[i] = sequenceAt(find(todos[i]._id));
+    }
+    return found;
+  }
+
+  /**
+   * Get the sorted ordinals of all the deleted todos in this version.
+   *
+   * @return the deleted ordinals
+   */
+  int[] deleted() {
+    int[] ordinals = deleted;
+    if (ordinals == null) {
+      ordinals = PostingLists.union(Arrays.stream(segments).map(TodoSegment::deletes).toArray(int[][]::new));
+      deleted = ordinals;
+    }
+    return ordinals;
+  }
+
+  /**
+   * Get the ordinal each todo in this version will have once the deleted
+   * todos are squeezed out, as they are by a merge.
+   *
+   * @return the new ordinal for each ordinal (or -1 for a deleted todo)
+   */
+  int[] renumbering() {
+    int[] deletedOrdinals = deleted();
+    int[] renumbered = new int[ordinals()];
+    int next = 0;
+    int d = 0;
+    for (int i = 0; i < renumbered.length; i++) {
+      if (d < deletedOrdinals.length && deletedOrdinals[d] == i) {
+        renumbered[i] = -1;
+        d++;
+      } else {
+        renumbered[i] = next++;
+      }
+    }
+    return renumbered;
+  }
+
+  private int[] allOrdinals() {
+    int[] all = new int[ordinals()];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = i;
+    }
+    return all;
+  }
+
+  /**
+   * Look up the live todos matching something in every segment.
+   *
+   * @param lookup finds the ordinals of the matching todos in a segment
+   *               (counted from the start of that segment)
+   * @return the sorted ordinals of the matching live todos
+   */
+  int[] matches(Function<TodoSegment, int[]> lookup) {
+    if (segments.length == 1 && segments[0].deletes().length == 0) {
+      return lookup.apply(segments[0]);
+    }
+    int[][] matches = new int[segments.length][];
+    int total = 0;
+    for (int i = 0; i < segments.length; i++) {
+      matches[i] = lookup.apply(segments[i]);
+      total += matches[i].length;
+    }
+    // The segments' ordinals don't overlap, so putting them one after
+    // the other keeps them in order
+    int[] all = new int[total];
+    int position = 0;
+    for (int i = 0; i < segments.length; i++) {
+      for (int ordinal : matches[i]) {
+        all[position++] = offsets[i] + ordinal;
+      }
+    }
+    return PostingLists.difference(all, deleted());
+  }
+
+  /**
+   * Count the todos matching something in every segment, without
+   * building their posting lists. This counts the deleted todos too, so
+   * it's only an estimate, but an upper bound.
+   *
+   * @param counter counts the matching todos in a segment
+   * @return the number of matching todos, live or deleted
+   */
+  long count(ToLongFunction<TodoSegment> counter) {
+    long count = 0;
+    for (TodoSegment segment : segments) {
+      count += counter.applyAsLong(segment);
+    }
+    return count;
+  }
+
+  /**
+   * Get the todo at the given ordinal.
+   *
+   * @param ordinal the ordinal of the todo
+   * @return the todo at that ordinal
+   */
+  Todo todoAt(int ordinal) {
+    int segment = segmentOf(ordinal);
+    return segments[segment].todos()[ordinal - offsets[segment]];
+  }
+
+  /**
+   * Get the sequence number (see `TodoSegment`) of the todo at the given
+   * ordinal.
+   *
+   * @param ordinal the ordinal of the todo
+   * @return the todo's sequence number
+   */
+  long sequenceAt(int ordinal) {
+    int segment = segmentOf(ordinal);
+    return segments[segment].sequences()[ordinal - offsets[segment]];
+  }
+
+  /**
+   * Get the todos at the given ordinals.
+   *
+   * @param ordinals the sorted ordinals of the todos to get
+   * @return an array of the todos at those ordinals, in the same order
+   */
+  Todo[] todosAt(int[] ordinals) {
+    Todo[] found = new Todo[ordinals.length];
+    int segment = 0;
+    for (int i = 0; i < ordinals.length; i++) {
+      while (ordinals[i] >= offsets[segment + 1]) {
+        segment++;
+      }
+      found[i] = segments[segment].todos()[ordinals[i] - offsets[segment]];
+    }
+    return found;
+  }
+
+  /**
+   * Find the live todo with the given ID.
+   * <p>
+   * An update or deletion always comes after the todo it replaces, so
+   * the newest todo with an ID is the only one that can still be live.
+   *
+   * @param id the ID to look for
+   * @return the ordinal of the todo, or -1 if there is no live todo with
+   *         that ID
+   */
+  int find(String id) {
+    for (int i = segments.length - 1; i >= 0; i--) {
+      int ordinal = segments[i].ordinalOf(id);
+      if (ordinal >= 0) {
+        ordinal += offsets[i];
+        return isDeleted(ordinal) ? -1 : ordinal;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Check whether a delta has deleted the todo at the given ordinal. This
+   * checks each segment's deletions, rather than building `deleted()`,
+   * so that writes don't take longer as deletions pile up.
+   */
+  private boolean isDeleted(int ordinal) {
+    for (TodoSegment segment : segments) {
+      if (Arrays.binarySearch(segment.deletes(), ordinal) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int segmentOf(int ordinal) {
+    int index = Arrays.binarySearch(offsets, ordinal);
+    // Segments can be empty (e.g., a delta that only deletes), so several
+    // offsets can be the same; find the last segment starting here
+    if (index >= 0) {
+      while (index + 1 < segments.length && offsets[index + 1] == ordinal) {
+        index++;
+      }
+      return index;
+    }
+    return -index - 2;
+  }
+}
@@ -0,0 +1,36 @@
+package umm3601.todo;
+
+import umm3601.user.User;
+
+// This mirrors `Todo`, but also carries the `User` record for the
+// todo's owner so that clients asking for `include=owner` don't have
+// to download all of `/api/users` and join the two lists themselves.
+// As with `Todo`, the fields need to be public so that Jackson can
+// see them, so we suppress the same CheckStyle warnings here.
+@SuppressWarnings({"VisibilityModifier"})
+public class TodoWithOwner {
+  @SuppressWarnings({"MemberName"})
+  public String _id;
+  public String owner;
+  public boolean status;
+  public String body;
+  public String category;
+  // The user whose name matches `owner`, or `null` if there is no
+  // such user in the user "database".
+  public User user;
+
+  /**
+   * Copy the given todo and attach the given user as its owner.
+   *
+   * @param todo the todo to copy
+   * @param user the user that owns the todo (may be null)
+   */
+  public TodoWithOwner(Todo todo, User user) {
+    this._id = todo._id;
+    this.owner = todo.owner;
+    this.status = todo.status;
+    this.body = todo.body;
+    this.category = todo.category;
+    this.user = user;
+  }
+}
@@ -0,0 +1,90 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import umm3601.EncodedValues;
+
+/**
+ * Writes a todo with its owner (see `TodoWithOwner`) straight to a
+ * Jackson generator, just as `TodoSerializer` writes a todo. The owner
+ * is written in full by whatever serializer the provider has for users
+ * (normally `UserSerializer`).
+ */
+public class TodoWithOwnerSerializer extends StdSerializer<TodoWithOwner> {
+
+  // The names of the fields, in the order they're written
+  public static final List<String> FIELDS = List.of("_id", "owner", "status", "body", "category", "user");
+
+  private static final SerializedString ID = new SerializedString("_id");
+  private static final SerializedString OWNER = new SerializedString("owner");
+  private static final SerializedString STATUS = new SerializedString("status");
+  private static final SerializedString BODY = new SerializedString("body");
+  private static final SerializedString CATEGORY = new SerializedString("category");
+  private static final SerializedString USER = new SerializedString("user");
+
+  private EncodedValues owners = new EncodedValues();
+  private EncodedValues categories = new EncodedValues();
+  private final boolean writeId;
+  private final boolean writeOwner;
+  private final boolean writeStatus;
+  private final boolean writeBody;
+  private final boolean writeCategory;
+  private final boolean writeUser;
+
+  public TodoWithOwnerSerializer() {
+    this(FIELDS);
+  }
+
+  /**
+   * Construct a serializer that writes only the given fields of each
+   * todo, in the usual order.
+   *
+   * @param fields the names of the fields to write (see `FIELDS`)
+   */
+  public TodoWithOwnerSerializer(Collection<String> fields) {
+    super(TodoWithOwner.class);
+    writeId = fields.contains("_id");
+    writeOwner = fields.contains("owner");
+    writeStatus = fields.contains("status");
+    writeBody = fields.contains("body");
+    writeCategory = fields.contains("category");
+    writeUser = fields.contains("user");
+  }
+
+  @Override
+  public void serialize(TodoWithOwner todo, JsonGenerator gen, SerializerProvider provider) throws IOException {
+    gen.writeStartObject(todo);
+    if (writeId) {
+      gen.writeFieldName(ID);
+      gen.writeString(todo._id);
+    }
+    if (writeOwner) {
+      gen.writeFieldName(OWNER);
+      owners.write(gen, todo.owner);
+    }
+    if (writeStatus) {
+      gen.writeFieldName(STATUS);
+      gen.writeBoolean(todo.status);
+    }
+    if (writeBody) {
+      gen.writeFieldName(BODY);
+      gen.writeString(todo.body);
+    }
+    if (writeCategory) {
+      gen.writeFieldName(CATEGORY);
+      categories.write(gen, todo.category);
+    }
+    if (writeUser) {
+      gen.writeFieldName(USER);
+      provider.defaultSerializeValue(todo.user, gen);
+    }
+    gen.writeEndObject();
+  }
+}
@@ -1,15 +1,35 @@
 package umm3601.user;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.ContentNegotiation;
+import umm3601.NdjsonExport;
+import umm3601.QueryPlan;
+import umm3601.SingleFlight;
+import umm3601.SlowQueryLog;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class UserController {
 
+  // The query parameters that match any of their values, in any order
+  private static final Set<String> MULTI_VALUED_PARAMS = Set.of("age", "company");
+
   private UserDatabase database;
+  // Concurrent requests with identical (normalized) query parameters,
+  // that accept the same format, share a single computation (and
+  // encoding) of the response.
+  private SingleFlight<List<Object>, byte[]> listRequests = new SingleFlight<>();
+  private SlowQueryLog slowQueryLog = new SlowQueryLog(SlowQueryLog.DEFAULT_THRESHOLD_MILLIS);
+  private NdjsonExport export = new NdjsonExport("users");
 
   /**
    * Construct a controller for users.
@@ -33,7 +53,7 @@ public class UserController {
     String id = ctx.pathParam("id");
     User user = database.getUser(id);
     if (user != null) {
-      ctx.json(user);
+      ContentNegotiation.respond(ctx, user);
       ctx.status(HttpStatus.OK);
     } else {
       throw new NotFoundResponse("No user with id " + id + " was found.");
@@ -41,13 +61,83 @@ public class UserController {
   }
 
   /**
-   * Get a JSON response with a list of all the users in the "database".
+   * Get a JSON (or, if the client asks for it, Smile) response with a list
+   * of all the users in the "database".
    *
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
-    User[] users = database.listUsers(ctx.queryParamMap());
-    ctx.json(users);
+    // Sorting the parameters means the same query always has the same
+    // key, whatever order the parameters came in.
+    Map<String, List<String>> queryParams = new TreeMap<>(ctx.queryParamMap());
+    // With `explain=true`, send back the plan of the query instead
+    if (QueryPlan.isExplain(queryParams)) {
+      queryParams.remove("explain");
+      QueryPlan plan = new QueryPlan(queryParams);
+      byte[] body = ContentNegotiation.encode(ctx, listUsers(queryParams, plan));
+      plan.stage(QueryPlan.SERIALIZE, "serialize", body.length + " bytes", plan.rowsProduced(), plan.rowsProduced());
+      ctx.json(plan);
+      return;
+    }
+    // Requests for the same results, in the same format, share the
+    // encoded response, so only one of them pays for encoding it
+    boolean keyed = ContentNegotiation.wantsOrderingKeys(ctx);
+    List<Object> key = List.of(ContentNegotiation.acceptsSmile(ctx), keyed,
+        QueryPlan.normalize(queryParams, MULTI_VALUED_PARAMS));
+    ContentNegotiation.respondEncoded(ctx, listRequests.run(key, () -> {
+      QueryPlan plan = new QueryPlan(queryParams);
+      User[] users = listUsers(queryParams, plan);
+      // A cluster router merges the users from its nodes in data file order
+      byte[] body = keyed
+          ? ContentNegotiation.encodeKeyed(ctx, users, database.positionsOf(users))
+          : ContentNegotiation.encode(ctx, users);
+      plan.stage(QueryPlan.SERIALIZE, "serialize", body.length + " bytes", plan.rowsProduced(), plan.rowsProduced());
+      slowQueryLog.record("users", plan);
+      return body;
+    }));
+  }
+
+  /**
+   * Get the users matching the given query parameters. This is the part
+   * of `getUsers` that doesn't need an HTTP request, e.g., for warming up.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param plan        the plan to record each stage of the query in
+   * @return the users to send back to the client
+   */
+  public User[] listUsers(Map<String, List<String>> queryParams, QueryPlan plan) {
+    return database.listUsers(queryParams, plan);
+  }
+
+  /**
+   * Send every user in the "database" as NDJSON, one user per line (see
+   * `NdjsonExport`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems sending the users
+   */
+  public void exportUsers(Context ctx) throws IOException {
+    // The users never change, so the first snapshot of them is always good
+    export.send(ctx, 0, database::allUsers);
+  }
+
+  /**
+   * Use the given log for queries that take too long.
+   *
+   * @param slowQueryLog the log to record slow queries in
+   */
+  public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+    this.slowQueryLog = slowQueryLog;
+  }
+
+  /**
+   * Get the single-flight layer that coalesces identical concurrent
+   * requests to list users, e.g., to report how often it coalesces.
+   *
+   * @return the single-flight layer for listing users
+   */
+  public SingleFlight<List<Object>, byte[]> getListRequests() {
+    return listRequests;
   }
 
 }
@@ -2,12 +2,20 @@ package umm3601.user;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.BadRequestResponse;
+import umm3601.EqualityIndex;
+import umm3601.PostingLists;
+import umm3601.QueryPlan;
+import umm3601.TermDictionary;
 
 /**
  * A fake "database" of user info
@@ -20,17 +28,106 @@ import io.javalin.http.BadRequestResponse;
 public class UserDatabase {
 
   private User[] allUsers;
+  // `positions[i]` is where `allUsers[i]` is in the data file
+  private long[] positions;
+  private TermDictionary nameDictionary;
+  private TermDictionary companyDictionary;
+  private EqualityIndex<Integer> ageIndex;
+  private EqualityIndex<String> companyIndex;
 
   public UserDatabase(String userDataFile) throws IOException {
+    this(userDataFile, x -> true);
+  }
+
+  /**
+   * Construct a "database" holding just one partition of the users in
+   * the given JSON file, e.g., for one node of a cluster.
+   *
+   * @param userDataFile the name of the JSON resource file
+   * @param partition    true for the users that belong in this "database"
+   * @throws IOException if there are problems reading the file
+   */
+  public UserDatabase(String userDataFile, Predicate<User> partition) throws IOException {
     InputStreamReader reader = new InputStreamReader(getClass().getResourceAsStream(userDataFile));
     ObjectMapper objectMapper = new ObjectMapper();
-    allUsers = objectMapper.readValue(reader, User[].class);
+    User[] fileUsers = objectMapper.readValue(reader, User[].class);
+    int[] kept = IntStream.range(0, fileUsers.length).filter(i -> partition.test(fileUsers[i])).toArray();
+    allUsers = Arrays.stream(kept).mapToObj(i -> fileUsers[i]).toArray(User[]::new);
+    positions = Arrays.stream(kept).asLongStream().toArray();
+    nameDictionary = new TermDictionary(Arrays.stream(allUsers).map(x -> x.name).toArray(String[]::new));
+    companyDictionary = new TermDictionary(Arrays.stream(allUsers).map(x -> x.company).toArray(String[]::new));
+    ageIndex = new EqualityIndex<>(Arrays.stream(allUsers).map(x -> x.age).collect(Collectors.toList()));
+    companyIndex = new EqualityIndex<>(Arrays.stream(allUsers).map(x -> x.company).collect(Collectors.toList()));
   }
 
   public int size() {
     return allUsers.length;
   }
 
+  /**
+   * Get all the users in this "database", in their original order. The
+   * returned array must not be modified.
+   *
+   * @return all the users
+   */
+  User[] allUsers() {
+    return allUsers;
+  }
+
+  /**
+   * Get the positions in the data file of the given users, e.g., so that
+   * a cluster router can merge them with the users from other nodes in
+   * the file's order.
+   *
+   * @param users some of the users in this "database", in the order
+   *              `listUsers` returns them (which is their order in the
+   *              file)
+   * @return the position of each user in the data file
+   */
+  public long[] positionsOf(User[] users) {
+    long[] found = new long[users.length];
+    int ordinal = 0;
+    for (int i = 0; i < users.length; i++) {
+      while (allUsers[ordinal] != users[i]) {
+        ordinal++;
+      }
+      found[i] = positions[ordinal];
+    }
+    return found;
+  }
+
+  /**
+   * Estimate how much work it will take to answer the given query, in
+   * rough units of "users looked at".
+   * <p>
+   * Without filters, every user is looked at (and sent back). The age
+   * and company filters use indexes, so a query with them only looks at
+   * the users that have the given ages or companies, which the indexes
+   * can count without building their posting lists. (Bad ages are left
+   * for `listUsers` to reject.)
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the estimated cost of the query
+   */
+  public long estimateCost(Map<String, List<String>> queryParams) {
+    long cost = allUsers.length;
+    if (queryParams.containsKey("age")) {
+      List<Integer> targetAges = new ArrayList<>();
+      for (String ageParam : queryParams.get("age")) {
+        try {
+          targetAges.add(Integer.parseInt(ageParam));
+        } catch (NumberFormatException e) {
+          return cost;
+        }
+      }
+      cost = Math.min(cost, ageIndex.count(targetAges));
+    }
+    if (queryParams.containsKey("company")) {
+      cost = Math.min(cost, companyIndex.count(queryParams.get("company")));
+    }
+    return cost;
+  }
+
   /**
    * Get the single user specified by the given ID. Return `null` if there is no
    * user with that ID.
@@ -49,28 +146,85 @@ public class UserDatabase {
    * @return an array of all the users matching the given criteria
    */
   public User[] listUsers(Map<String, List<String>> queryParams) {
-    User[] filteredUsers = allUsers;
+    return listUsers(queryParams, new QueryPlan(queryParams));
+  }
 
-    // Filter age if defined
+  /**
+   * Get an array of all the users satisfying the queries in the params,
+   * recording how we found them in the given plan.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param plan        the plan to record each stage of the query in
+   * @return an array of all the users matching the given criteria
+   */
+  public User[] listUsers(Map<String, List<String>> queryParams, QueryPlan plan) {
+    // Parse (and check) the ages before doing any real work, so that a
+    // bad query fails fast
+    List<Integer> targetAges = new ArrayList<>();
     if (queryParams.containsKey("age")) {
-      String ageParam = queryParams.get("age").get(0);
-      try {
-        int targetAge = Integer.parseInt(ageParam);
-        filteredUsers = filterUsersByAge(filteredUsers, targetAge);
-      } catch (NumberFormatException e) {
-        throw new BadRequestResponse("Specified age '" + ageParam + "' can't be parsed to an integer");
+      for (String ageParam : queryParams.get("age")) {
+        try {
+          targetAges.add(Integer.parseInt(ageParam));
+        } catch (NumberFormatException e) {
+          throw new BadRequestResponse("Specified age '" + ageParam + "' can't be parsed to an integer");
+        }
       }
     }
-    // Filter company if defined
+    plan.stage(QueryPlan.PARSE, "parse", "parameters", 0, 0);
+
+    // Each filter gives us a posting list of the ordinals of the
+    // matching users, and we keep only the users in all of those lists.
+    // (`null` means we haven't filtered anything yet.)
+    int[] candidates = null;
+    // Filter names that start with a prefix (ignoring case) if defined
+    if (queryParams.containsKey("namePrefix")) {
+      candidates = nameDictionary.prefixMatches(queryParams.get("namePrefix").get(0));
+      plan.stage(QueryPlan.FILTER, "namePrefix", "name dictionary", allUsers.length, candidates.length);
+    }
+    // Filter companies that start with a prefix (ignoring case) if defined
+    if (queryParams.containsKey("companyPrefix")) {
+      int rowsExamined = rows(candidates);
+      String prefix = queryParams.get("companyPrefix").get(0);
+      candidates = PostingLists.narrow(candidates, companyDictionary.prefixMatches(prefix));
+      plan.stage(QueryPlan.FILTER, "companyPrefix", "company dictionary", rowsExamined, candidates.length);
+    }
+    // Filter age if defined, keeping the users having any of the given ages
+    if (queryParams.containsKey("age")) {
+      int rowsExamined = rows(candidates);
+      candidates = PostingLists.narrow(candidates, ageIndex.matches(targetAges));
+      plan.stage(QueryPlan.FILTER, "age", "age index", rowsExamined, candidates.length);
+    }
+    // Filter company if defined, keeping the users working for any of the given companies
     if (queryParams.containsKey("company")) {
-      String targetCompany = queryParams.get("company").get(0);
-      filteredUsers = filterUsersByCompany(filteredUsers, targetCompany);
+      int rowsExamined = rows(candidates);
+      candidates = PostingLists.narrow(candidates, companyIndex.matches(queryParams.get("company")));
+      plan.stage(QueryPlan.FILTER, "company", "company index", rowsExamined, candidates.length);
     }
     // Process other query parameters here...
 
+    if (candidates == null) {
+      plan.stage(QueryPlan.FILTER, "all", "scan", allUsers.length, allUsers.length);
+      return allUsers;
+    }
+    User[] filteredUsers = usersAt(candidates);
+    plan.stage(QueryPlan.FILTER, "fetch", "ordinals", candidates.length, filteredUsers.length);
     return filteredUsers;
   }
 
+  private int rows(int[] candidates) {
+    return candidates == null ? allUsers.length : candidates.length;
+  }
+
+  /**
+   * Get the users at the given ordinals (positions in `allUsers`).
+   *
+   * @param ordinals the positions of the users to get
+   * @return an array of the users at those positions, in the same order
+   */
+  private User[] usersAt(int[] ordinals) {
+    return Arrays.stream(ordinals).mapToObj(i -> allUsers[i]).toArray(User[]::new);
+  }
+
   /**
    * Get an array of all the users having the target age.
    *
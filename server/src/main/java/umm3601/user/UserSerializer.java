@@ -0,0 +1,85 @@
+package umm3601.user;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import umm3601.EncodedValues;
+
+/**
+ * Writes a user straight to a Jackson generator, rather than having
+ * Jackson find and read its fields by reflection.
+ * <p>
+ * The field names are encoded (and escaped) once, up front, as is each
+ * company, since many users work for the same ones. As with
+ * `TodoSerializer`, a serializer can be built to write just some of the
+ * fields.
+ */
+public class UserSerializer extends StdSerializer<User> {
+
+  // The names of a user's fields, in the order they're written
+  public static final List<String> FIELDS = List.of("_id", "name", "age", "company", "email");
+
+  private static final SerializedString ID = new SerializedString("_id");
+  private static final SerializedString NAME = new SerializedString("name");
+  private static final SerializedString AGE = new SerializedString("age");
+  private static final SerializedString COMPANY = new SerializedString("company");
+  private static final SerializedString EMAIL = new SerializedString("email");
+
+  private EncodedValues companies = new EncodedValues();
+  private final boolean writeId;
+  private final boolean writeName;
+  private final boolean writeAge;
+  private final boolean writeCompany;
+  private final boolean writeEmail;
+
+  public UserSerializer() {
+    this(FIELDS);
+  }
+
+  /**
+   * Construct a serializer that writes only the given fields of each
+   * user, in the usual order.
+   *
+   * @param fields the names of the fields to write (see `FIELDS`)
+   */
+  public UserSerializer(Collection<String> fields) {
+    super(User.class);
+    writeId = fields.contains("_id");
+    writeName = fields.contains("name");
+    writeAge = fields.contains("age");
+    writeCompany = fields.contains("company");
+    writeEmail = fields.contains("email");
+  }
+
+  @Override
+  public void serialize(User user, JsonGenerator gen, SerializerProvider provider) throws IOException {
+    gen.writeStartObject(user);
+    if (writeId) {
+      gen.writeFieldName(ID);
+      gen.writeString(user._id);
+    }
+    if (writeName) {
+      gen.writeFieldName(NAME);
+      gen.writeString(user.name);
+    }
+    if (writeAge) {
+      gen.writeFieldName(AGE);
+      gen.writeNumber(user.age);
+    }
+    if (writeCompany) {
+      gen.writeFieldName(COMPANY);
+      companies.write(gen, user.company);
+    }
+    if (writeEmail) {
+      gen.writeFieldName(EMAIL);
+      gen.writeString(user.email);
+    }
+    gen.writeEndObject();
+  }
+}
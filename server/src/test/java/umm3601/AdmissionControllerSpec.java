@@ -0,0 +1,120 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Tests that the AdmissionController runs cheap requests directly,
+ * defers expensive ones, and sheds load when it's saturated.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class AdmissionControllerSpec {
+
+  // Requests costing more than 10 go to a pool of 1 thread, with room
+  // for 1 more request to wait in its queue.
+  private AdmissionController admission = new AdmissionController(10, 1, 1, 3);
+
+  @Test
+  public void runsCheapRequestsDirectly() throws Exception {
+    Context ctx = mock(Context.class);
+    admission.admit(c -> c.result("cheap"), c -> 10).handle(ctx);
+
+    verify(ctx).result("cheap");
+    verify(ctx, never()).future(any());
+    assertEquals(0, admission.getDeferred());
+  }
+
+  @Test
+  public void defersExpensiveRequests() throws Exception {
+    Context ctx = mock(Context.class);
+    admission.admit(c -> c.result("expensive"), c -> 11).handle(ctx);
+
+    CompletableFuture<?> result = capturedFuture(ctx);
+    result.get(5, TimeUnit.SECONDS);
+    verify(ctx).result("expensive");
+    assertEquals(1, admission.getDeferred());
+  }
+
+  @Test
+  public void passesOnExceptionsFromExpensiveRequests() throws Exception {
+    Context ctx = mock(Context.class);
+    admission.admit(c -> {
+      throw new BadRequestResponse("Bad query");
+    }, c -> 11).handle(ctx);
+
+    ExecutionException exception = Assertions.assertThrows(ExecutionException.class, () -> {
+      capturedFuture(ctx).get(5, TimeUnit.SECONDS);
+    });
+    assertEquals("Bad query", exception.getCause().getMessage());
+  }
+
+  @Test
+  public void passesOnErrorsFromExpensiveRequests() throws Exception {
+    Context ctx = mock(Context.class);
+    admission.admit(c -> {
+      throw new StackOverflowError("Too deep");
+    }, c -> 11).handle(ctx);
+
+    // The request still gets its (failed) result, rather than hanging
+    ExecutionException exception = Assertions.assertThrows(ExecutionException.class, () -> {
+      capturedFuture(ctx).get(5, TimeUnit.SECONDS);
+    });
+    assertEquals(StackOverflowError.class, exception.getCause().getClass());
+  }
+
+  @Test
+  public void rejectsExpensiveRequestsWhenSaturated() throws Exception {
+    CountDownLatch finish = new CountDownLatch(1);
+    Handler slowHandler = c -> finish.await(5, TimeUnit.SECONDS);
+
+    // One request to keep the thread busy, and one to fill the queue
+    Context running = mock(Context.class);
+    admission.admit(slowHandler, c -> 100).handle(running);
+    Context waiting = mock(Context.class);
+    admission.admit(slowHandler, c -> 100).handle(waiting);
+
+    // There's no room for a third expensive request...
+    Context rejected = mock(Context.class);
+    Assertions.assertThrows(ServiceUnavailableResponse.class, () -> {
+      admission.admit(slowHandler, c -> 100).handle(rejected);
+    });
+    verify(rejected).header(Header.RETRY_AFTER, "3");
+    assertEquals(1, admission.getRejected());
+
+    // ...but cheap requests still go straight through
+    Context cheap = mock(Context.class);
+    admission.admit(c -> c.result("cheap"), c -> 1).handle(cheap);
+    verify(cheap).result("cheap");
+
+    finish.countDown();
+    capturedFuture(running).get(5, TimeUnit.SECONDS);
+    capturedFuture(waiting).get(5, TimeUnit.SECONDS);
+    assertEquals(2, admission.getDeferred());
+  }
+
+  @SuppressWarnings("unchecked")
+  private CompletableFuture<?> capturedFuture(Context ctx) {
+    ArgumentCaptor<Supplier<CompletableFuture<?>>> argument = ArgumentCaptor.forClass(Supplier.class);
+    verify(ctx).future(argument.capture());
+    return argument.getValue().get();
+  }
+}
@@ -0,0 +1,93 @@
+package umm3601;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import umm3601.todo.Todo;
+import umm3601.todo.TodoDatabase;
+
+/**
+ * Helpers shared by the micro-benchmarks (the `*Benchmark` classes other
+ * than `StartupBenchmark`).
+ * <p>
+ * Like `StartupBenchmark`, these aren't tests, since their numbers depend
+ * so much on the machine they run on, so each one has a Gradle task of
+ * its own that runs its `main`. Each measurement first runs the code for
+ * a while so that the JIT compiles it, and then reports the median of
+ * several timed runs, which the odd GC pause doesn't throw off the way
+ * it would the mean.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public final class Benchmarks {
+
+  private static final long WARMUP_NANOS = Long.getLong("benchmark.warmupMillis", 1000) * 1_000_000;
+  private static final long MIN_RUN_NANOS = 50_000_000;
+  private static final int RUNS = Integer.getInteger("benchmark.runs", 15);
+
+  // Every result is written here, so the JIT can't skip the work that
+  // produced it
+  private static volatile Object sink;
+
+  private Benchmarks() {
+  }
+
+  /**
+   * Measure how long one call of the given operation takes once it has
+   * been compiled.
+   *
+   * @param operation the operation to measure
+   * @return the median time per call, in nanoseconds
+   */
+  public static double nanosPerCall(Supplier<?> operation) {
+    // Warm up, while finding how many calls make a run long enough to
+    // time accurately
+    int calls = 1;
+    long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+    long took = time(operation, calls);
+    while (took < MIN_RUN_NANOS || System.nanoTime() < warmupEnd) {
+      if (took < MIN_RUN_NANOS) {
+        calls *= 2;
+      }
+      took = time(operation, calls);
+    }
+    double[] runs = new double[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      runs[i] = (double) time(operation, calls) / calls;
+    }
+    Arrays.sort(runs);
+    return runs[RUNS / 2];
+  }
+
+  private static long time(Supplier<?> operation, int calls) {
+    long start = System.nanoTime();
+    for (int i = 0; i < calls; i++) {
+      sink = operation.get();
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Make the given number of todos by copying the todos in the todo data
+   * file over and over, giving each copy an ID of its own.
+   *
+   * @param count the number of todos to make
+   * @return the todos
+   * @throws IOException if there are problems reading the todo data file
+   */
+  public static Todo[] manyTodos(int count) throws IOException {
+    Todo[] originals = new TodoDatabase(Server.TODO_DATA_FILE).listTodos(Map.of());
+    Todo[] todos = new Todo[count];
+    for (int i = 0; i < count; i++) {
+      Todo original = originals[i % originals.length];
+      todos[i] = new Todo();
+      todos[i]._id = original._id + "-" + i / originals.length;
+      todos[i].owner = original.owner;
+      todos[i].status = original.status;
+      todos[i].body = original.body;
+      todos[i].category = original.category;
+    }
+    return todos;
+  }
+}
@@ -0,0 +1,61 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+import umm3601.todo.Todo;
+
+/**
+ * Measures how big lists of todos are, and how long they take to encode
+ * and decode, as JSON and as Smile (see `ContentNegotiation`). Run it
+ * with `./gradlew encodingBenchmark`.
+ * <p>
+ * The todos are encoded by `ContentNegotiation`, just as they are for a
+ * response, and decoded the way a client using Jackson would decode
+ * them.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public final class EncodingBenchmark {
+
+  private static final int[] SIZES = {1, 30, 300, 10_000, 100_000};
+  private static final ObjectReader JSON_READER = new ObjectMapper().readerFor(Todo[].class);
+  private static final ObjectReader SMILE_READER = new SmileMapper().readerFor(Todo[].class);
+
+  private EncodingBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    System.out.printf("%-9s%-22s%-24s%s%n", "todos", "size (JSON/Smile)", "encode (JSON/Smile)", "decode (JSON/Smile)");
+    for (int size : SIZES) {
+      Todo[] todos = Benchmarks.manyTodos(size);
+      byte[] json = ContentNegotiation.encode(todos, null, false);
+      byte[] smile = ContentNegotiation.encode(todos, null, true);
+      if (JSON_READER.<Todo[]>readValue(json).length != size
+          || SMILE_READER.<Todo[]>readValue(smile).length != size) {
+        throw new IllegalStateException("The todos didn't survive encoding and decoding");
+      }
+      double encodeJson = Benchmarks.nanosPerCall(() -> ContentNegotiation.encode(todos, null, false)) / 1e3;
+      double encodeSmile = Benchmarks.nanosPerCall(() -> ContentNegotiation.encode(todos, null, true)) / 1e3;
+      double decodeJson = Benchmarks.nanosPerCall(() -> decode(JSON_READER, json)) / 1e3;
+      double decodeSmile = Benchmarks.nanosPerCall(() -> decode(SMILE_READER, smile)) / 1e3;
+      System.out.printf("%-8d %10s %10s %8.1f us %8.1f us %8.1f us %8.1f us%n", size,
+          kilobytes(json.length), kilobytes(smile.length), encodeJson, encodeSmile, decodeJson, decodeSmile);
+    }
+  }
+
+  private static Todo[] decode(ObjectReader reader, byte[] bytes) {
+    try {
+      return reader.readValue(bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String kilobytes(int bytes) {
+    return String.format("%.1f kB", bytes / 1e3);
+  }
+}
@@ -0,0 +1,124 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.todo.Todo;
+import umm3601.todo.TodoDatabase;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests that exports write one record per line, and only write a new
+ * snapshot when the records change (and then only once).
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class NdjsonExportSpec {
+
+  private Todo[] todos;
+
+  @BeforeEach
+  public void setupEach() throws IOException {
+    todos = new TodoDatabase(Server.TODO_DATA_FILE).listTodos(new HashMap<>());
+  }
+
+  private static String export(NdjsonExport export, long version, Object[] records) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    export.transferTo(version, () -> records, Channels.newChannel(out));
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void writesOneTodoPerLine() throws IOException {
+    String ndjson = export(new NdjsonExport("todos"), 0, todos);
+    assertTrue(ndjson.endsWith("\n"));
+    String[] lines = ndjson.split("\n");
+    assertEquals(300, lines.length);
+    ObjectMapper mapper = new ObjectMapper();
+    assertEquals(mapper.readTree(mapper.writeValueAsString(todos[0])), mapper.readTree(lines[0]));
+    assertEquals(todos[299]._id, mapper.readValue(lines[299], Todo.class)._id);
+  }
+
+  @Test
+  public void writesOneUserPerLine() throws IOException {
+    User[] users = new UserDatabase(Server.USER_DATA_FILE).listUsers(new HashMap<>());
+    String[] lines = export(new NdjsonExport("users"), 0, users).split("\n");
+    assertEquals(users.length, lines.length);
+    assertEquals(users[0].email, new ObjectMapper().readValue(lines[0], User.class).email);
+  }
+
+  @Test
+  public void rewritesTheSnapshotWhenTheRecordsChange() throws IOException {
+    NdjsonExport export = new NdjsonExport("todos");
+    String first = export(export, 0, todos);
+    // Until the version changes the snapshot is sent as it is, without
+    // even getting the records
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    export.transferTo(0, () -> {
+      throw new AssertionError("The records shouldn't be needed");
+    }, Channels.newChannel(out));
+    assertEquals(first, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    // A "database" has a new version number whenever its todos change
+    Todo[] fewerTodos = Arrays.copyOf(todos, 10);
+    String second = export(export, 1, fewerTodos);
+    assertEquals(10, second.split("\n").length);
+    assertTrue(first.startsWith(second));
+  }
+
+  @Test
+  public void writesEachVersionsSnapshotOnce() throws Exception {
+    NdjsonExport export = new NdjsonExport("todos");
+    AtomicInteger gets = new AtomicInteger();
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService threads = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> exports = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        exports.add(threads.submit(() -> {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          export.transferTo(0, () -> {
+            gets.incrementAndGet();
+            writing.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            return todos;
+          }, Channels.newChannel(out));
+          return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }));
+      }
+      writing.await();
+      // Another version doesn't wait for the snapshot being written
+      assertEquals(10, export(export, 1, Arrays.copyOf(todos, 10)).split("\n").length);
+      release.countDown();
+      for (Future<String> ndjson : exports) {
+        assertEquals(300, ndjson.get().split("\n").length);
+      }
+      assertEquals(1, gets.get());
+    } finally {
+      threads.shutdown();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import umm3601.todo.TodoDatabase;
+import umm3601.user.UserDatabase;
+
+/**
+ * Runs a synthetic workload of queries against the todo and user
+ * "databases" while Java Flight Recorder is recording, checking that
+ * each query's stages show up as `QueryStageEvent`s and that no query
+ * allocates more memory than its budget, going by the recording's
+ * allocation samples.
+ * <p>
+ * The budgets are a few times what the queries allocate now (with the
+ * flight recorder running), so they leave room for the JVM being a
+ * little different from run to run but will catch, e.g., a filter that
+ * starts copying every todo.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class QueryProfilingSpec {
+
+  // Enough runs of each query for the JIT to have compiled it
+  private static final int WARMUP_RUNS = 5_000;
+  // Enough measured runs that the allocations from before them that
+  // their first sample counts are a small part of what they allocate
+  private static final int MEASURED_RUNS = 10_000;
+  private static final String ALLOCATION_SAMPLE = "jdk.ObjectAllocationSample";
+
+  private static TodoDatabase todoDb;
+  private static UserDatabase userDb;
+
+  @BeforeAll
+  public static void loadDatabases() throws IOException {
+    todoDb = new TodoDatabase(Server.TODO_DATA_FILE);
+    userDb = new UserDatabase(Server.USER_DATA_FILE);
+  }
+
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], Arrays.asList(keysAndValues[i + 1].split(",")));
+    }
+    return queryParams;
+  }
+
+  /**
+   * Get the average number of bytes the current thread allocates to run
+   * the given query once it's warmed up, from a flight recording of the
+   * runs.
+   * <p>
+   * Each `jdk.ObjectAllocationSample` event's weight is what its thread
+   * allocated since the thread's last sample, so with the sampling
+   * unthrottled the weights add up to what the thread allocated. The
+   * samples are already being taken while the query warms up, so the
+   * first sample of the measured runs only counts (at most a TLAB of)
+   * allocations from before them. The runs are counted from their
+   * "parse" `QueryStageEvent`s, which also checks that they were all
+   * recorded.
+   */
+  private static long allocatedBytesPerRun(Path recordingFile, Supplier<Object> query) throws IOException {
+    try (Recording warmup = new Recording()) {
+      warmup.enable(ALLOCATION_SAMPLE).with("throttle", "off");
+      warmup.start();
+      for (int i = 0; i < WARMUP_RUNS; i++) {
+        query.get();
+      }
+      try (Recording recording = new Recording()) {
+        recording.enable(ALLOCATION_SAMPLE).with("throttle", "off");
+        recording.enable("umm3601.QueryStage");
+        recording.start();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+          query.get();
+        }
+        recording.stop();
+        recording.dump(recordingFile);
+      }
+    }
+
+    long thread = Thread.currentThread().getId();
+    long allocated = 0;
+    int runs = 0;
+    for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile)) {
+      if (event.getEventType().getName().equals(ALLOCATION_SAMPLE)) {
+        if (event.getThread("eventThread").getJavaThreadId() == thread) {
+          allocated += event.getLong("weight");
+        }
+      } else if (event.getString("kind").equals(QueryPlan.PARSE)) {
+        runs++;
+      }
+    }
+    assertEquals(MEASURED_RUNS, runs);
+    return allocated / runs;
+  }
+
+  private static void assertWithinBudget(Path directory, long budget, Supplier<Object> query, String description)
+      throws IOException {
+    long allocated = allocatedBytesPerRun(directory.resolve(description.replace(' ', '-') + ".jfr"), query);
+    assertTrue(allocated <= budget,
+        description + " allocated " + allocated + " bytes per run, over its budget of " + budget);
+  }
+
+  @Test
+  public void recordsEveryStageOfTheWorkload(@TempDir Path directory) throws IOException {
+    Path recordingFile = directory.resolve("queries.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("umm3601.QueryStage");
+      recording.start();
+      todoDb.listTodos(query("owner", "Fry", "status", "complete", "orderBy", "body", "limit", "5"));
+      userDb.listUsers(query("company", "OHMNET,VINCH"));
+      recording.stop();
+      recording.dump(recordingFile);
+    }
+
+    Set<String> kinds = new HashSet<>();
+    Set<String> shapes = new HashSet<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile)) {
+      kinds.add(event.getString("kind"));
+      shapes.add(event.getString("shape"));
+      if (event.getString("stage").equals("owner")) {
+        assertEquals("owner index", event.getString("access"));
+        assertEquals(todoDb.size(), event.getInt("rowsExamined"));
+        assertEquals(61, event.getInt("rowsProduced"));
+      }
+    }
+    assertEquals(Set.of("parse", "filter", "sort", "limit"), kinds);
+    // The shapes have the names of the parameters but not their values
+    assertEquals(Set.of("limit,orderBy,owner,status", "company"), shapes);
+  }
+
+  @Test
+  public void staysWithinAllocationBudgets(@TempDir Path directory) throws IOException {
+    // (The allocation samples are only recorded on Java 16 and up.)
+    Assumptions.assumeTrue(FlightRecorder.getFlightRecorder().getEventTypes().stream()
+        .anyMatch(type -> type.getName().equals(ALLOCATION_SAMPLE)));
+
+    // The queries are built up front so that building them isn't
+    // counted against their budgets
+    Map<String, List<String>> owner = query("owner", "Fry");
+    assertWithinBudget(directory, 8 * 1024, () -> todoDb.listTodos(owner), "an owner query");
+    Map<String, List<String>> categories = query("category", "homework,groceries");
+    assertWithinBudget(directory, 16 * 1024, () -> todoDb.listTodos(categories), "a query for two categories");
+    Map<String, List<String>> body = query("contains", "reprehenderit");
+    assertWithinBudget(directory, 16 * 1024, () -> todoDb.listTodos(body), "a body search");
+    Map<String, List<String>> everything = query("owner", "Fry", "status", "complete", "orderBy", "body",
+        "limit", "5");
+    assertWithinBudget(directory, 16 * 1024, () -> todoDb.listTodos(everything),
+        "a filtered, sorted, and limited query");
+    Map<String, List<String>> sort = query("orderBy", "owner");
+    assertWithinBudget(directory, 16 * 1024, () -> todoDb.listTodos(sort), "sorting all the todos");
+    Map<String, List<String>> users = query("company", "OHMNET", "age", "25");
+    assertWithinBudget(directory, 8 * 1024, () -> userDb.listUsers(users), "a user query");
+  }
+}
@@ -0,0 +1,120 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+import umm3601.todo.Todo;
+import umm3601.todo.TodoDatabase;
+import umm3601.todo.TodoOwnerJoin;
+import umm3601.todo.TodoWithOwner;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
+
+/**
+ * Checks that the hand-written serializers write exactly what Jackson's
+ * own reflective serializers would have.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class RecordsModuleSpec {
+
+  private Todo[] todos;
+  private User[] users;
+  private UserDatabase userDb;
+
+  @BeforeEach
+  public void setupEach() throws IOException {
+    todos = new TodoDatabase(Server.TODO_DATA_FILE).listTodos(new HashMap<>());
+    userDb = new UserDatabase(Server.USER_DATA_FILE);
+    users = userDb.listUsers(new HashMap<>());
+  }
+
+  private static void assertSameJson(Object value) throws IOException {
+    byte[] expected = new ObjectMapper().writeValueAsBytes(value);
+    byte[] actual = new ObjectMapper().registerModule(new RecordsModule()).writeValueAsBytes(value);
+    assertEquals(new String(expected, StandardCharsets.UTF_8), new String(actual, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void writesTodosLikeJackson() throws IOException {
+    assertSameJson(todos);
+    assertSameJson(todos[0]);
+  }
+
+  @Test
+  public void writesUsersLikeJackson() throws IOException {
+    assertSameJson(users);
+    assertSameJson(users[0]);
+  }
+
+  @Test
+  public void writesTodosWithOwnersLikeJackson() throws IOException {
+    // The owners in the todo data file aren't the names of users, so
+    // give each todo a user as its owner for the join to find
+    Todo[] ownedTodos = new Todo[todos.length];
+    for (int i = 0; i < todos.length; i++) {
+      ownedTodos[i] = new Todo();
+      ownedTodos[i]._id = todos[i]._id;
+      ownedTodos[i].owner = users[i % users.length].name;
+      ownedTodos[i].status = todos[i].status;
+      ownedTodos[i].body = todos[i].body;
+      ownedTodos[i].category = todos[i].category;
+    }
+    TodoWithOwner[] joined = new TodoOwnerJoin(userDb).join(ownedTodos);
+    for (TodoWithOwner todo : joined) {
+      assertNotNull(todo.user);
+    }
+    // The todos are written by `TodoWithOwnerSerializer`, and their
+    // owners by `UserSerializer`.
+    assertSameJson(joined);
+  }
+
+  @Test
+  public void writesOnlyTheProjectedFields() throws IOException {
+    ObjectMapper projecting = new ObjectMapper()
+        .registerModule(new RecordsModule(Todo.class, List.of("status", "_id")));
+    JsonNode written = projecting.readTree(projecting.writeValueAsBytes(todos));
+    assertEquals(todos.length, written.size());
+    for (int i = 0; i < todos.length; i++) {
+      // Just the requested fields, in the usual order
+      List<String> fieldNames = new ArrayList<>();
+      written.get(i).fieldNames().forEachRemaining(fieldNames::add);
+      assertEquals(List.of("_id", "status"), fieldNames);
+      assertEquals(todos[i]._id, written.get(i).get("_id").asText());
+      assertEquals(todos[i].status, written.get(i).get("status").asBoolean());
+    }
+    // Only the projected type is cut down, so users are still written in full
+    assertEquals(new ObjectMapper().writeValueAsString(users[0]), projecting.writeValueAsString(users[0]));
+  }
+
+  @Test
+  public void writesMissingAndUnusualValues() throws IOException {
+    Todo todo = new Todo();
+    todo._id = "an \"odd\" id";
+    todo.owner = null;
+    todo.body = "tab\there, newline\nhere, and \u00e9\u2603";
+    todo.category = "caf\u00e9 \\ \u0001";
+    assertSameJson(new Todo[] {todo, todo});
+    assertSameJson(new User());
+  }
+
+  @Test
+  public void writesSmileLikeJackson() throws IOException {
+    ObjectMapper smileMapper = new SmileMapper();
+    byte[] expected = smileMapper.writeValueAsBytes(todos);
+    byte[] actual = new SmileMapper().registerModule(new RecordsModule()).writeValueAsBytes(todos);
+    assertEquals(smileMapper.readTree(expected), smileMapper.readTree(actual));
+  }
+}
@@ -0,0 +1,93 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+import umm3601.todo.Todo;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
+
+/**
+ * Measures how long lists of todos and users take to write with the
+ * hand-written serializers (see `RecordsModule`) and with Jackson's own
+ * reflective ("databind") serializers, as JSON and as Smile. Run it with
+ * `./gradlew serializerBenchmark`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public final class SerializerBenchmark {
+
+  private static final int[] SIZES = {30, 300, 10_000, 100_000};
+
+  private SerializerBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    User[] originalUsers = new UserDatabase(Server.USER_DATA_FILE).listUsers(Map.of());
+    System.out.printf("%-16s%-8s%14s%16s%10s%n", "records", "format", "databind", "hand-written", "speedup");
+    for (int size : SIZES) {
+      Todo[] todos = Benchmarks.manyTodos(size);
+      User[] users = manyUsers(originalUsers, size);
+      compare(size + " todos", "json", ObjectMapper::new, todos);
+      compare(size + " todos", "smile", SmileMapper::new, todos);
+      compare(size + " users", "json", ObjectMapper::new, users);
+      compare(size + " users", "smile", SmileMapper::new, users);
+    }
+  }
+
+  private static void compare(String records, String format, Supplier<ObjectMapper> mappers, Object value) {
+    ObjectMapper mapper = mappers.get();
+    ObjectWriter databind = mapper.writer();
+    ObjectWriter handWritten = mappers.get().registerModule(new RecordsModule()).writer();
+    // (Smile can differ byte for byte, e.g., in which strings it shares
+    // back-references to, so the two are compared as trees.)
+    if (!readTree(mapper, write(databind, value)).equals(readTree(mapper, write(handWritten, value)))) {
+      throw new IllegalStateException("The serializers wrote different " + format + " for " + records);
+    }
+    double databindMicros = Benchmarks.nanosPerCall(() -> write(databind, value)) / 1e3;
+    double handWrittenMicros = Benchmarks.nanosPerCall(() -> write(handWritten, value)) / 1e3;
+    System.out.printf("%-16s%-8s%11.1f us%13.1f us%9.2fx%n",
+        records, format, databindMicros, handWrittenMicros, databindMicros / handWrittenMicros);
+  }
+
+  private static byte[] write(ObjectWriter writer, Object value) {
+    try {
+      return writer.writeValueAsBytes(value);
+    } catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static JsonNode readTree(ObjectMapper mapper, byte[] bytes) {
+    try {
+      return mapper.readTree(bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Make the given number of users by copying the given users over and
+   * over, giving each copy an ID of its own.
+   */
+  private static User[] manyUsers(User[] originals, int count) {
+    User[] users = new User[count];
+    for (int i = 0; i < count; i++) {
+      User original = originals[i % originals.length];
+      users[i] = new User();
+      users[i]._id = original._id + "-" + i / originals.length;
+      users[i].name = original.name;
+      users[i].age = original.age;
+      users[i].company = original.company;
+      users[i].email = original.email;
+    }
+    return users;
+  }
+}
@@ -0,0 +1,121 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Tests that the SingleFlight layer coalesces concurrent identical
+ * computations.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SingleFlightSpec {
+
+  private SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+
+  @Test
+  public void sequentialRequestsAreNotCoalesced() {
+    Object first = singleFlight.run("key", Object::new);
+    Object second = singleFlight.run("key", Object::new);
+
+    // Once a computation is done it's forgotten, so the second request
+    // computes its own value.
+    Assertions.assertNotSame(first, second);
+    assertEquals(2, singleFlight.getRequests());
+    assertEquals(0, singleFlight.getCoalesced());
+  }
+
+  @Test
+  public void concurrentIdenticalRequestsShareOneComputation() throws Exception {
+    CountDownLatch computing = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    Object value = new Object();
+
+    // The first request blocks in the middle of its computation...
+    CompletableFuture<Object> first = CompletableFuture.supplyAsync(() -> singleFlight.run("key", () -> {
+      computing.countDown();
+      await(finish);
+      return value;
+    }));
+    computing.await(5, TimeUnit.SECONDS);
+
+    // ...so the second one, for the same key, has to wait for it
+    CompletableFuture<Object> second = CompletableFuture.supplyAsync(
+        () -> singleFlight.run("key", () -> {
+          throw new AssertionError("The computation shouldn't run twice");
+        }));
+    // A request for a different key isn't held up
+    assertEquals("other", singleFlight.run("other", () -> "other"));
+
+    waitUntilCoalesced(1);
+    finish.countDown();
+    assertSame(value, first.get(5, TimeUnit.SECONDS));
+    assertSame(value, second.get(5, TimeUnit.SECONDS));
+    assertEquals(3, singleFlight.getRequests());
+    assertEquals(1, singleFlight.getCoalesced());
+  }
+
+  @Test
+  public void waitingRequestsGetTheSameException() throws Exception {
+    CountDownLatch computing = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+
+    CompletableFuture<Object> first = CompletableFuture.supplyAsync(() -> singleFlight.run("key", () -> {
+      computing.countDown();
+      await(finish);
+      throw new BadRequestResponse("Bad key");
+    }));
+    computing.await(5, TimeUnit.SECONDS);
+    CompletableFuture<Object> second = CompletableFuture.supplyAsync(() -> singleFlight.run("key", Object::new));
+
+    waitUntilCoalesced(1);
+    finish.countDown();
+    for (CompletableFuture<Object> request : List.of(first, second)) {
+      ExecutionException exception = Assertions.assertThrows(ExecutionException.class, () -> {
+        request.get(5, TimeUnit.SECONDS);
+      });
+      assertEquals(BadRequestResponse.class, exception.getCause().getClass());
+      assertEquals("Bad key", exception.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void queriesWithTheSameResultsHaveTheSameKey() {
+    Set<String> multiValued = Set.of("owner");
+    // Any of several owners matches, whatever order they're in...
+    assertEquals(QueryPlan.normalize(Map.of("owner", List.of("Fry", "Blanche")), multiValued),
+        QueryPlan.normalize(Map.of("owner", List.of("Blanche", "Fry")), multiValued));
+    // ...but only the first field to order by is used
+    assertEquals(QueryPlan.normalize(Map.of("orderBy", List.of("owner", "body")), multiValued),
+        QueryPlan.normalize(Map.of("orderBy", List.of("owner", "status")), multiValued));
+    assertNotEquals(QueryPlan.normalize(Map.of("orderBy", List.of("owner", "body")), multiValued),
+        QueryPlan.normalize(Map.of("orderBy", List.of("body", "owner")), multiValued));
+  }
+
+  private void waitUntilCoalesced(long count) throws InterruptedException {
+    while (singleFlight.getCoalesced() < count) {
+      Thread.sleep(1);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import io.javalin.http.Header;
+import umm3601.todo.TodoDatabase;
+import umm3601.user.UserDatabase;
+
+/**
+ * Measures how quickly a freshly started server gets up to speed, with
+ * and without the AppCDS archive and the warmup phase. Run it with
+ * `./gradlew startupBenchmark`, which builds the archive first.
+ * <p>
+ * For each setup this starts the server in a new JVM and reports
+ * <ul>
+ * <li>the time from launching the JVM to the first successful response,
+ * <li>the steady-state p99 latency (the median of the p99s of the last
+ * few windows of requests), and
+ * <li>the time from launching the JVM until the end of the first window
+ * whose p99 was within 25% of the steady-state p99.
+ * </ul>
+ * This isn't a test, since the numbers depend so much on the machine it
+ * runs on.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public final class StartupBenchmark {
+
+  private static final int PORT = 4567;
+  private static final int WINDOWS = 60;
+  private static final int STEADY_WINDOWS = 10;
+  private static final int REQUESTS_PER_WINDOW = 200;
+  private static final double STEADY_MARGIN = 1.25;
+
+  private static HttpClient client = HttpClient.newHttpClient();
+  private static List<String> log;
+
+  private StartupBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    log = Warmup.syntheticLog(new TodoDatabase(Server.TODO_DATA_FILE).listTodos(Map.of()),
+        new UserDatabase(Server.USER_DATA_FILE).listUsers(Map.of()));
+    String archive = "-XX:SharedArchiveFile=" + System.getProperty("benchmark.cdsArchive");
+    String warmup = "-Dwarmup.rounds=" + System.getProperty("benchmark.warmupRounds", "200");
+
+    System.out.printf("%-18s %14s %12s %18s%n", "setup", "first request", "steady p99", "time to steady");
+    measure("cold");
+    measure("AppCDS", archive);
+    measure("warmup", warmup);
+    measure("AppCDS + warmup", archive, warmup);
+  }
+
+  private static void measure(String setup, String... jvmArgs) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(Arrays.asList(jvmArgs));
+    command.add("-cp");
+    command.add(System.getProperty("benchmark.classpath"));
+    command.add(Server.class.getName());
+    long launched = System.nanoTime();
+    Process server = new ProcessBuilder(command)
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        .redirectError(ProcessBuilder.Redirect.DISCARD)
+        .start();
+    try {
+      // Keep trying until the port is open and the server answers
+      long firstResponse = 0;
+      while (firstResponse == 0) {
+        try {
+          if (send(log.get(0)) == 200) {
+            firstResponse = System.nanoTime();
+          }
+        } catch (ConnectException e) {
+          Thread.sleep(5);
+        }
+      }
+
+      double[] windowP99s = new double[WINDOWS];
+      long[] windowEnds = new long[WINDOWS];
+      long[] latencies = new long[REQUESTS_PER_WINDOW];
+      int next = 0;
+      for (int window = 0; window < WINDOWS; window++) {
+        for (int i = 0; i < REQUESTS_PER_WINDOW; i++) {
+          long start = System.nanoTime();
+          send(log.get(next));
+          latencies[i] = System.nanoTime() - start;
+          next = (next + 1) % log.size();
+        }
+        Arrays.sort(latencies);
+        windowP99s[window] = latencies[(int) (REQUESTS_PER_WINDOW * 0.99) - 1] / 1e6;
+        windowEnds[window] = System.nanoTime();
+      }
+
+      double[] lastP99s = Arrays.copyOfRange(windowP99s, WINDOWS - STEADY_WINDOWS, WINDOWS);
+      Arrays.sort(lastP99s);
+      double steadyP99 = lastP99s[STEADY_WINDOWS / 2];
+      int steadyWindow = 0;
+      while (windowP99s[steadyWindow] > steadyP99 * STEADY_MARGIN) {
+        steadyWindow++;
+      }
+      System.out.printf("%-18s %11d ms %9.2f ms %15d ms%n", setup,
+          (firstResponse - launched) / 1_000_000, steadyP99, (windowEnds[steadyWindow] - launched) / 1_000_000);
+    } finally {
+      server.destroy();
+      server.waitFor();
+    }
+  }
+
+  private static int send(String request) throws IOException, InterruptedException {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create("http://localhost:" + PORT + request));
+    if (request.contains("smile=true")) {
+      builder.header(Header.ACCEPT, ContentNegotiation.SMILE);
+    }
+    return client.send(builder.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+  }
+}
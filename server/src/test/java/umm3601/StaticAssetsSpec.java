@@ -0,0 +1,161 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+
+/**
+ * Tests serving the client files from memory.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class StaticAssetsSpec {
+
+  private Context ctx = mock(Context.class);
+  private StaticAssets staticAssets;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    // The tests run in the `server` directory, just like the server does
+    staticAssets = new StaticAssets(Paths.get(Server.CLIENT_DIRECTORY));
+  }
+
+  @Test
+  public void servesIndexForRoot() throws IOException {
+    when(ctx.path()).thenReturn("/");
+
+    staticAssets.handle(ctx);
+
+    byte[] index = Files.readAllBytes(Paths.get(Server.CLIENT_DIRECTORY, "index.html"));
+    verify(ctx).result(index);
+    verify(ctx).contentType("text/html; charset=utf-8");
+    verify(ctx).header(Header.CACHE_CONTROL, StaticAssets.CACHE_CONTROL);
+  }
+
+  @Test
+  public void servesGzippedFilesWhenAccepted() throws IOException {
+    when(ctx.path()).thenReturn("/javascript/util.js");
+    when(ctx.header(Header.ACCEPT_ENCODING)).thenReturn("gzip, deflate");
+
+    staticAssets.handle(ctx);
+
+    verify(ctx).header(Header.CONTENT_ENCODING, "gzip");
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    byte[] util = Files.readAllBytes(Paths.get(Server.CLIENT_DIRECTORY, "javascript", "util.js"));
+    byte[] unzipped = new GZIPInputStream(new ByteArrayInputStream(argument.getValue())).readAllBytes();
+    Assertions.assertArrayEquals(util, unzipped);
+    verify(ctx).header(Header.VARY, Header.ACCEPT_ENCODING);
+  }
+
+  @Test
+  public void givesGzippedFilesTheirOwnEtag() {
+    when(ctx.path()).thenReturn("/javascript/util.js");
+    staticAssets.handle(ctx);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(eq(Header.ETAG), etag.capture());
+
+    Context gzipCtx = mock(Context.class);
+    when(gzipCtx.path()).thenReturn("/javascript/util.js");
+    when(gzipCtx.header(Header.ACCEPT_ENCODING)).thenReturn("gzip");
+    staticAssets.handle(gzipCtx);
+    ArgumentCaptor<String> gzipEtag = ArgumentCaptor.forClass(String.class);
+    verify(gzipCtx).header(eq(Header.ETAG), gzipEtag.capture());
+    Assertions.assertNotEquals(etag.getValue(), gzipEtag.getValue());
+
+    // Having the uncompressed file doesn't mean having the compressed one...
+    Context staleCtx = mock(Context.class);
+    when(staleCtx.path()).thenReturn("/javascript/util.js");
+    when(staleCtx.header(Header.ACCEPT_ENCODING)).thenReturn("gzip");
+    when(staleCtx.header(Header.IF_NONE_MATCH)).thenReturn(etag.getValue());
+    staticAssets.handle(staleCtx);
+    verify(staleCtx, never()).status(HttpStatus.NOT_MODIFIED);
+    verify(staleCtx).header(Header.CONTENT_ENCODING, "gzip");
+
+    // ...but either one in a list of ETags is enough for its own encoding
+    Context cachedCtx = mock(Context.class);
+    when(cachedCtx.path()).thenReturn("/javascript/util.js");
+    when(cachedCtx.header(Header.ACCEPT_ENCODING)).thenReturn("gzip");
+    when(cachedCtx.header(Header.IF_NONE_MATCH)).thenReturn(etag.getValue() + ", " + gzipEtag.getValue());
+    staticAssets.handle(cachedCtx);
+    verify(cachedCtx).status(HttpStatus.NOT_MODIFIED);
+    verify(cachedCtx, never()).result(any(byte[].class));
+  }
+
+  @Test
+  public void respondsNotModifiedForCurrentEtag() {
+    when(ctx.path()).thenReturn("/todos.html");
+    staticAssets.handle(ctx);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(eq(Header.ETAG), etag.capture());
+
+    // Ask again, saying we already have that version
+    Context cachedCtx = mock(Context.class);
+    when(cachedCtx.path()).thenReturn("/todos.html");
+    when(cachedCtx.header(Header.IF_NONE_MATCH)).thenReturn(etag.getValue());
+    staticAssets.handle(cachedCtx);
+
+    verify(cachedCtx).status(HttpStatus.NOT_MODIFIED);
+    verify(cachedCtx, never()).result(any(byte[].class));
+  }
+
+  @Test
+  public void respondsAppropriatelyToMissingFile() {
+    when(ctx.path()).thenReturn("/nope.html");
+    Throwable exception = Assertions.assertThrows(NotFoundResponse.class, () -> {
+      staticAssets.handle(ctx);
+    });
+    assertEquals("No file /nope.html was found.", exception.getMessage());
+    verify(ctx, never()).header(anyString(), anyString());
+  }
+
+  @Test
+  public void reloadsChangedFiles(@TempDir Path directory) throws Exception {
+    Path page = directory.resolve("page.html");
+    Files.write(page, "<p>Old</p>".getBytes(StandardCharsets.UTF_8));
+    StaticAssets assets = new StaticAssets(directory);
+    assets.watch();
+    assertEquals("<p>Old</p>", serve(assets, "/page.html"));
+
+    Files.write(page, "<p>New</p>".getBytes(StandardCharsets.UTF_8));
+    // Give the watcher (up to 20 seconds) to notice the change
+    String served = serve(assets, "/page.html");
+    for (int i = 0; i < 200 && !served.equals("<p>New</p>"); i++) {
+      Thread.sleep(100);
+      served = serve(assets, "/page.html");
+    }
+    assertEquals("<p>New</p>", served);
+  }
+
+  private String serve(StaticAssets assets, String path) {
+    Context pageCtx = mock(Context.class);
+    when(pageCtx.path()).thenReturn(path);
+    assets.handle(pageCtx);
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(pageCtx).result(argument.capture());
+    return new String(argument.getValue(), StandardCharsets.UTF_8);
+  }
+}
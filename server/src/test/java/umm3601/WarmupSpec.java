@@ -0,0 +1,70 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.todo.TodoController;
+import umm3601.todo.TodoDatabase;
+import umm3601.todo.TodoOwnerJoin;
+import umm3601.user.UserController;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests the warmup phase that replays a query log before the server
+ * starts taking requests.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class WarmupSpec {
+
+  private TodoDatabase todoDb;
+  private UserDatabase userDb;
+  private Warmup warmup;
+
+  @BeforeEach
+  public void setupEach() throws IOException {
+    todoDb = new TodoDatabase(Server.TODO_DATA_FILE);
+    userDb = new UserDatabase(Server.USER_DATA_FILE);
+    warmup = new Warmup(new TodoController(todoDb, new TodoOwnerJoin(userDb)), new UserController(userDb));
+  }
+
+  @Test
+  public void makesUpALogFromTheData() {
+    List<String> log = Warmup.syntheticLog(todoDb.listTodos(Map.of()), userDb.listUsers(Map.of()));
+    assertTrue(log.contains("/api/todos?owner=Fry"));
+    assertTrue(log.contains("/api/todos?category=video+games&status=incomplete"));
+    assertTrue(log.contains("/api/users?company=OHMNET"));
+    assertTrue(log.contains("/api/todos?include=owner&limit=25"));
+  }
+
+  @Test
+  public void replaysEveryQueryInTheLog() {
+    List<String> log = Warmup.syntheticLog(todoDb.listTodos(Map.of()), userDb.listUsers(Map.of()));
+    assertEquals(3 * log.size(), warmup.replay(log, 3));
+  }
+
+  @Test
+  public void skipsRequestsItCantReplay(@TempDir Path directory) throws IOException {
+    Path logFile = directory.resolve("queries.log");
+    Files.write(logFile, List.of(
+        "/api/todos?owner=Fry&owner=Blanche",
+        "",
+        "  /api/users?age=25&fields=name  ",
+        "/api/todos?limit=abc",
+        "/api/todos/58895985a22c04e761776d54",
+        "/hello"));
+    List<String> log = Warmup.readLog(logFile);
+    assertEquals(5, log.size());
+    // Only the first two are list queries the server would have answered
+    assertEquals(4, warmup.replay(log, 2));
+  }
+}
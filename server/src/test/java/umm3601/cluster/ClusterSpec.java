@@ -0,0 +1,255 @@
+package umm3601.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+import io.javalin.Javalin;
+import io.javalin.http.Header;
+import umm3601.ContentNegotiation;
+import umm3601.NdjsonExport;
+import umm3601.Server;
+import umm3601.todo.Todo;
+import umm3601.todo.TodoDatabase;
+import umm3601.user.User;
+
+/**
+ * Tests a whole cluster: three nodes, each holding a partition of the
+ * data, and a router in front of them, all running on localhost.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ClusterSpec {
+
+  private static final int NODE_COUNT = 3;
+
+  private static List<Javalin> nodes = new ArrayList<>();
+  private static Javalin router;
+  private static String routerUrl;
+  private static HttpClient client = HttpClient.newHttpClient();
+  private static ObjectMapper objectMapper = new ObjectMapper();
+  private static TodoDatabase db;
+
+  @BeforeAll
+  public static void startCluster() throws IOException {
+    List<String> nodeUrls = new ArrayList<>();
+    for (int i = 0; i < NODE_COUNT; i++) {
+      // Port 0 lets each node pick any free port
+      Javalin node = Server.startServer(0, ClusterRouter.partition(i, NODE_COUNT));
+      nodes.add(node);
+      nodeUrls.add("http://localhost:" + node.port());
+    }
+    router = Server.startRouter(0, nodeUrls);
+    routerUrl = "http://localhost:" + router.port();
+    db = new TodoDatabase(Server.TODO_DATA_FILE);
+  }
+
+  @AfterAll
+  public static void stopCluster() {
+    router.stop();
+    for (Javalin node : nodes) {
+      node.stop();
+    }
+  }
+
+  private static HttpResponse<String> get(String url) throws IOException, InterruptedException {
+    return client.send(HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  private static Todo[] getTodos(String url) throws IOException, InterruptedException {
+    HttpResponse<String> response = get(url);
+    assertEquals(200, response.statusCode());
+    return objectMapper.readValue(response.body(), Todo[].class);
+  }
+
+  @Test
+  public void ringSpreadsKeysOverAllNodes() {
+    ConsistentHashRing ring = new ConsistentHashRing(NODE_COUNT);
+    int[] counts = new int[NODE_COUNT];
+    for (Todo todo : db.listTodos(new HashMap<>())) {
+      counts[ring.nodeFor(todo._id)]++;
+      // The same key always goes to the same node
+      assertEquals(ring.nodeFor(todo._id), ring.nodeFor(todo._id));
+    }
+    for (int count : counts) {
+      assertTrue(count > 50, "Too few todos on a node: " + Arrays.toString(counts));
+    }
+  }
+
+  @Test
+  public void eachNodeHoldsOnePartition() throws Exception {
+    Set<String> ids = new HashSet<>();
+    for (Javalin node : nodes) {
+      Todo[] todos = getTodos("http://localhost:" + node.port() + "/api/todos");
+      assertTrue(todos.length < db.size());
+      for (Todo todo : todos) {
+        // No todo is on more than one node
+        assertTrue(ids.add(todo._id));
+      }
+    }
+    assertEquals(db.size(), ids.size());
+  }
+
+  @Test
+  public void routerFindsTodosOnTheirNodes() throws Exception {
+    for (Todo todo : db.listTodos(new HashMap<>())) {
+      HttpResponse<String> response = get(routerUrl + "/api/todos/" + todo._id);
+      assertEquals(200, response.statusCode());
+      assertEquals(todo.body, objectMapper.readValue(response.body(), Todo.class).body);
+    }
+    assertEquals(404, get(routerUrl + "/api/todos/nope").statusCode());
+  }
+
+  @Test
+  public void routerFindsUsers() throws Exception {
+    HttpResponse<String> response = get(routerUrl + "/api/users?company=OHMNET");
+    assertEquals(200, response.statusCode());
+    User[] users = objectMapper.readValue(response.body(), User[].class);
+    assertTrue(users.length > 0);
+    for (User user : users) {
+      HttpResponse<String> userResponse = get(routerUrl + "/api/users/" + user._id);
+      assertEquals("OHMNET", objectMapper.readValue(userResponse.body(), User.class).company);
+    }
+  }
+
+  @Test
+  public void routerMergesListsFromAllNodes() throws Exception {
+    Todo[] todos = getTodos(routerUrl + "/api/todos?category=homework&status=incomplete");
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("category", Arrays.asList(new String[] {"homework"}));
+    queryParams.put("status", Arrays.asList(new String[] {"incomplete"}));
+    assertEquals(db.listTodos(queryParams).length, todos.length);
+  }
+
+  @Test
+  public void routerMergesSortedListsAndLimitsThem() throws Exception {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"body"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"25"}));
+    Todo[] expected = db.listTodos(queryParams);
+
+    Todo[] todos = getTodos(routerUrl + "/api/todos?orderBy=body&limit=25");
+    assertEquals(25, todos.length);
+    for (int i = 0; i < todos.length; i++) {
+      assertEquals(expected[i].body, todos[i].body);
+    }
+
+    // Ties (there are lots of todos per owner) can come back in any
+    // order, but the owners themselves have to be in order
+    todos = getTodos(routerUrl + "/api/todos?orderBy=owner");
+    assertEquals(db.size(), todos.length);
+    for (int i = 1; i < todos.length; i++) {
+      assertTrue(todos[i - 1].owner.compareTo(todos[i].owner) <= 0);
+    }
+  }
+
+  @Test
+  public void routerMergesUnsortedListsInDataFileOrder() throws Exception {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"25"}));
+    Todo[] expected = db.listTodos(queryParams);
+
+    Todo[] todos = getTodos(routerUrl + "/api/todos?limit=25");
+    assertEquals(25, todos.length);
+    for (int i = 0; i < todos.length; i++) {
+      assertEquals(expected[i]._id, todos[i]._id);
+    }
+  }
+
+  @Test
+  public void routerSendsOnlyTheRequestedFields() throws Exception {
+    HttpResponse<String> response = get(routerUrl + "/api/todos?orderBy=body&fields=owner&limit=5");
+    assertEquals(200, response.statusCode());
+    JsonNode todos = objectMapper.readTree(response.body());
+    assertEquals(5, todos.size());
+    for (JsonNode todo : todos) {
+      // Not even the ID or body the router needed for the merge
+      assertEquals(1, todo.size());
+      assertTrue(todo.has("owner"));
+    }
+  }
+
+  @Test
+  public void routerSendsSmileToClientsThatAskForIt() throws Exception {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(routerUrl + "/api/todos?orderBy=owner&limit=10"))
+        .header(Header.ACCEPT, ContentNegotiation.SMILE).build();
+    HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    assertEquals(200, response.statusCode());
+    assertTrue(response.headers().firstValue(Header.CONTENT_TYPE).orElse("").startsWith(ContentNegotiation.SMILE));
+    Todo[] todos = new SmileMapper().readValue(response.body(), Todo[].class);
+    assertEquals(10, todos.length);
+  }
+
+  @Test
+  public void routerRejectsIncludingOwners() throws Exception {
+    HttpResponse<String> response = get(routerUrl + "/api/todos?include=owner");
+    assertEquals(400, response.statusCode());
+  }
+
+  @Test
+  public void routerSendsBackThePlanOfEachNode() throws Exception {
+    HttpResponse<String> response = get(routerUrl + "/api/todos?status=complete&explain=true");
+    assertEquals(200, response.statusCode());
+    JsonNode plans = objectMapper.readTree(response.body());
+    assertEquals(NODE_COUNT, plans.size());
+    int complete = 0;
+    for (JsonNode plan : plans) {
+      assertEquals("status", plan.path("stages").get(1).path("name").asText());
+      complete += plan.path("stages").get(1).path("rowsProduced").asInt();
+    }
+    assertEquals(143, complete);
+  }
+
+  @Test
+  public void routerPassesOnBadRequests() throws Exception {
+    HttpResponse<String> response = get(routerUrl + "/api/todos?limit=abc");
+    assertEquals(400, response.statusCode());
+    assertTrue(response.body().contains("can't be parsed to an integer"));
+    // The node's own error response, content type and all
+    HttpResponse<String> nodeResponse = get("http://localhost:" + nodes.get(0).port() + "/api/todos?limit=abc");
+    assertEquals(nodeResponse.headers().firstValue(Header.CONTENT_TYPE),
+        response.headers().firstValue(Header.CONTENT_TYPE));
+  }
+
+  @Test
+  public void routerExportsEveryNodesTodos() throws Exception {
+    HttpResponse<String> response = get(routerUrl + "/api/todos/_export");
+    assertEquals(200, response.statusCode());
+    assertTrue(response.headers().firstValue(Header.CONTENT_TYPE).orElse("").startsWith(NdjsonExport.NDJSON));
+    Set<String> ids = new HashSet<>();
+    for (String line : response.body().split("\n")) {
+      assertTrue(ids.add(objectMapper.readValue(line, Todo.class)._id));
+    }
+    assertEquals(db.size(), ids.size());
+  }
+
+  @Test
+  public void routerRejectsImportedTodosWithoutIds() throws Exception {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(routerUrl + "/api/todos/_import"))
+        .header(Header.CONTENT_TYPE, NdjsonExport.NDJSON)
+        .POST(HttpRequest.BodyPublishers.ofString("{\"owner\":\"Fry\",\"status\":true}\n"))
+        .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    assertEquals(400, response.statusCode());
+    assertTrue(response.body().contains("has no _id"));
+  }
+}
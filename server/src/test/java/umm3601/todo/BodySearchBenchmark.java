@@ -0,0 +1,144 @@
+package umm3601.todo;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import umm3601.Benchmarks;
+
+/**
+ * Measures the throughput of body searches, in gigabytes of todo bodies
+ * searched per second. Run it with `./gradlew bodySearchBenchmark`.
+ * <p>
+ * This compares three ways to search the bodies:
+ * <ul>
+ * <li>filtering the todos one at a time (`filterTodosByBody`, with the
+ * parallel scan turned off),
+ * <li>the body search kernel (`TodoBodySearch`), which calls `indexOf`
+ * on one lower-cased heap string, and
+ * <li>a SWAR ("SIMD within a register") scan of a lower-cased UTF-8 byte
+ * heap (`SwarSearch`), which is what we'd use if the JVM didn't already
+ * vectorize `indexOf`.
+ * </ul>
+ * The targets are a word in about a third of the bodies (so most
+ * searches stop early in each body), phrases in a few of them, and a
+ * string in none of them (so every byte is looked at).
+ */
+@SuppressWarnings({ "MagicNumber" })
+public final class BodySearchBenchmark {
+
+  private static final int ROWS = Integer.getInteger("benchmark.rows", 1_000_000);
+  private static final String[] TARGETS = {"sunt", "Laboris nisi", "dolore magna", "zyzzyva"};
+
+  private BodySearchBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Todo[] todos = Benchmarks.manyTodos(ROWS);
+    TodoDatabase db = new TodoDatabase(todos);
+    db.setParallelThreshold(Integer.MAX_VALUE);
+    TodoBodySearch bodySearch = new TodoBodySearch(todos);
+    SwarSearch swarSearch = new SwarSearch(todos);
+    long bytes = 0;
+    for (Todo todo : todos) {
+      bytes += todo.body.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    System.out.printf("%d todos, %.1f MB of bodies%n", ROWS, bytes / 1e6);
+    System.out.printf("%-14s %8s %20s %20s %20s%n", "target", "matches", "one at a time", "indexOf heap", "SWAR heap");
+    for (String target : TARGETS) {
+      int matches = db.filterTodosByBody(todos, target).length;
+      if (bodySearch.search(target).length != matches || swarSearch.search(target).length != matches) {
+        throw new IllegalStateException("A body search found the wrong todos for '" + target + "'");
+      }
+      System.out.printf("%-14s %8d%s%s%s%n", "'" + target + "'", matches,
+          measure(bytes, x -> db.filterTodosByBody(todos, x), target),
+          measure(bytes, bodySearch::search, target),
+          measure(bytes, swarSearch::search, target));
+    }
+  }
+
+  private static String measure(long bytes, Function<String, Object> search, String target) {
+    double nanos = Benchmarks.nanosPerCall(() -> search.apply(target));
+    return String.format(" %7.1f ms %5.2f GB/s", nanos / 1e6, bytes / nanos);
+  }
+
+  /**
+   * A body search over the lower-cased bodies encoded as UTF-8 in one
+   * byte array, each followed by a zero byte.
+   * <p>
+   * It looks at eight offsets of the heap at a time: for each offset in
+   * one `long`, it checks at once whether the first byte of the target is
+   * at that offset and the last byte of the target is where it would
+   * end. Only the offsets where both are true are compared with the whole
+   * target. (Unlike `TodoBodySearch`, this doesn't handle unpaired
+   * surrogates, which UTF-8 can't encode.)
+   */
+  private static final class SwarSearch {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_SEVEN_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+    private final byte[] heap;
+    private final int[] bodyStarts;
+
+    private SwarSearch(Todo[] todos) {
+      byte[][] bodies = new byte[todos.length][];
+      int heapSize = 0;
+      for (int i = 0; i < todos.length; i++) {
+        bodies[i] = todos[i].body.toLowerCase().getBytes(StandardCharsets.UTF_8);
+        heapSize += bodies[i].length + 1;
+      }
+      // Padding, so we can always read a whole `long`
+      heap = new byte[heapSize + Long.BYTES];
+      bodyStarts = new int[todos.length];
+      int offset = 0;
+      for (int i = 0; i < todos.length; i++) {
+        bodyStarts[i] = offset;
+        System.arraycopy(bodies[i], 0, heap, offset, bodies[i].length);
+        offset += bodies[i].length + 1;
+      }
+    }
+
+    private int[] search(String targetString) {
+      byte[] target = targetString.toLowerCase().getBytes(StandardCharsets.UTF_8);
+      int[] matches = new int[bodyStarts.length];
+      int matchCount = 0;
+      int lastByte = target.length - 1;
+      long firstBytes = ONES * Byte.toUnsignedLong(target[0]);
+      long lastBytes = ONES * Byte.toUnsignedLong(target[lastByte]);
+      int end = heap.length - Long.BYTES - lastByte;
+      int offset = 0;
+      while (offset <= end) {
+        int next = offset + Long.BYTES;
+        long candidates = zeroBytes(((long) LONGS.get(heap, offset) ^ firstBytes)
+            | ((long) LONGS.get(heap, offset + lastByte) ^ lastBytes));
+        while (candidates != 0) {
+          int start = offset + Long.numberOfTrailingZeros(candidates) / Byte.SIZE;
+          candidates &= candidates - 1;
+          if (Arrays.equals(heap, start, start + target.length, target, 0, target.length)) {
+            int ordinal = Arrays.binarySearch(bodyStarts, start);
+            ordinal = ordinal >= 0 ? ordinal : -ordinal - 2;
+            matches[matchCount++] = ordinal;
+            // Skip the rest of this body
+            next = ordinal + 1 < bodyStarts.length ? bodyStarts[ordinal + 1] : heap.length;
+            break;
+          }
+        }
+        offset = next;
+      }
+      return Arrays.copyOf(matches, matchCount);
+    }
+
+    /**
+     * Get a mask with the top bit of each zero byte of the given `long`
+     * set, and every other bit clear.
+     */
+    private static long zeroBytes(long bytes) {
+      return ~((bytes & LOW_SEVEN_BITS) + LOW_SEVEN_BITS | bytes | LOW_SEVEN_BITS);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package umm3601.todo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import umm3601.Benchmarks;
+
+/**
+ * Measures how the parallel scan of the todos (see `filterTodos` in
+ * `TodoDatabase`) speeds up with more cores. Run it with
+ * `./gradlew scanBenchmark`.
+ * <p>
+ * For 1, 2, 4, ... cores, up to all of this machine's, this starts a new
+ * JVM that only uses that many (`-XX:ActiveProcessorCount` also sizes
+ * `SCAN_POOL`), and times the two filters that have to look at every
+ * todo, status and (for strings the body search can't handle) body, over
+ * `benchmark.rows` todos. Each filter is timed with the parallel scan
+ * turned off and then on, and the speedup is relative to the parallel
+ * scan on one core.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public final class ScanBenchmark {
+
+  private static final int ROWS = Integer.getInteger("benchmark.rows", 2_000_000);
+  private static final String TARGET = "sunt";
+
+  private ScanBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0) {
+      measure();
+      return;
+    }
+    int maxCores = Runtime.getRuntime().availableProcessors();
+    System.out.printf("%d todos, parallel above %d, chunks of %d%n",
+        ROWS, TodoDatabase.DEFAULT_PARALLEL_THRESHOLD, TodoDatabase.PARALLEL_CHUNK_SIZE);
+    System.out.printf("%-8s %29s %29s%n", "", "status (sequential/parallel)", "body (sequential/parallel)");
+    List<Integer> coreCounts = new ArrayList<>();
+    for (int cores = 1; cores < maxCores; cores *= 2) {
+      coreCounts.add(cores);
+    }
+    coreCounts.add(maxCores);
+    double[] oneCore = null;
+    for (int cores : coreCounts) {
+      double[] millis = measureWith(cores);
+      if (oneCore == null) {
+        oneCore = millis;
+      }
+      System.out.printf("%2d core%s %8.1f ms %8.1f ms %4.1fx %8.1f ms %8.1f ms %4.1fx%n",
+          cores, cores == 1 ? " " : "s",
+          millis[0], millis[1], oneCore[1] / millis[1],
+          millis[2], millis[3], oneCore[3] / millis[3]);
+    }
+  }
+
+  /**
+   * Run the measurements in a new JVM using the given number of cores.
+   */
+  private static double[] measureWith(int cores) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-XX:ActiveProcessorCount=" + cores);
+    command.add("-Xmx" + Runtime.getRuntime().maxMemory());
+    command.add("-Dbenchmark.rows=" + ROWS);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(ScanBenchmark.class.getName());
+    command.add("measure");
+    Process child = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    String line;
+    try (BufferedReader output = new BufferedReader(new InputStreamReader(child.getInputStream()))) {
+      line = output.readLine();
+    }
+    if (child.waitFor() != 0 || line == null) {
+      throw new IllegalStateException("The measurements with " + cores + " cores failed");
+    }
+    String[] fields = line.trim().split(" ");
+    double[] millis = new double[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      millis[i] = Double.parseDouble(fields[i]);
+    }
+    return millis;
+  }
+
+  /**
+   * Print the sequential and parallel times of each filter, in
+   * milliseconds, on one line.
+   */
+  private static void measure() throws IOException {
+    TodoDatabase db = new TodoDatabase(Benchmarks.manyTodos(ROWS));
+    Todo[] todos = db.allTodos();
+    double[] millis = new double[4];
+    for (int parallel = 0; parallel < 2; parallel++) {
+      db.setParallelThreshold(parallel == 0 ? Integer.MAX_VALUE : TodoDatabase.DEFAULT_PARALLEL_THRESHOLD);
+      millis[parallel] = Benchmarks.nanosPerCall(() -> db.filterTodosByStatus(todos, true)) / 1e6;
+      millis[2 + parallel] = Benchmarks.nanosPerCall(() -> db.filterTodosByBody(todos, TARGET)) / 1e6;
+    }
+    // Locale.ROOT so the parent's `Double.parseDouble` can read the
+    // numbers back whatever the default locale's decimal separator is
+    System.out.printf(Locale.ROOT, "%f %f %f %f%n", millis[0], millis[1], millis[2], millis[3]);
+  }
+}
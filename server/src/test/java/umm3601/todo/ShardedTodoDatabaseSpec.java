@@ -0,0 +1,205 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.BadRequestResponse;
+import umm3601.Server;
+
+/**
+ * Tests that a sharded todo "database" answers queries exactly the
+ * same way as an unsharded one.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ShardedTodoDatabaseSpec {
+
+  private TodoDatabase db;
+  private ShardedTodoDatabase shardedDb;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    db = new TodoDatabase(Server.TODO_DATA_FILE);
+    shardedDb = new ShardedTodoDatabase(Server.TODO_DATA_FILE, 4);
+  }
+
+  private Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], Arrays.asList(new String[] {keysAndValues[i + 1]}));
+    }
+    return queryParams;
+  }
+
+  private void assertSameTodos(Map<String, List<String>> queryParams) {
+    // The two "databases" loaded their own copies of the todos, so
+    // compare the IDs rather than the todos themselves.
+    Object[] expected = Arrays.stream(db.listTodos(queryParams)).map(x -> x._id).toArray();
+    Object[] actual = Arrays.stream(shardedDb.listTodos(queryParams)).map(x -> x._id).toArray();
+    Assertions.assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void holdsAllTheTodos() {
+    assertEquals(4, shardedDb.shardCount());
+    assertEquals(db.size(), shardedDb.size());
+    assertSameTodos(query());
+  }
+
+  @Test
+  public void answersOwnerQueriesFromOneShard() {
+    assertSameTodos(query("owner", "Fry"));
+    assertSameTodos(query("owner", "Workman", "orderBy", "body", "limit", "5"));
+    assertEquals(49, shardedDb.listTodos(query("owner", "Workman")).length);
+  }
+
+  @Test
+  public void answersQueriesForSeveralOwnersFromTheirShards() {
+    Map<String, List<String>> queryParams = query("orderBy", "body");
+    queryParams.put("owner", Arrays.asList("Fry", "Workman", "Dawn"));
+    assertSameTodos(queryParams);
+    assertEquals(61 + 49 + 50, shardedDb.listTodos(queryParams).length);
+  }
+
+  @Test
+  public void mergesShardsInOrder() {
+    assertSameTodos(query("category", "homework", "status", "incomplete", "limit", "7"));
+    assertSameTodos(query("contains", "reprehenderit"));
+    assertSameTodos(query("orderBy", "owner"));
+    assertSameTodos(query("orderBy", "status", "limit", "200"));
+    assertSameTodos(query("orderBy", "Category", "limit", "50"));
+    assertSameTodos(query("orderBy", "body", "limit", "0"));
+  }
+
+  @Test
+  public void mergesShardsInParallel() {
+    shardedDb.setParallelThreshold(0);
+    assertSameTodos(query("contains", "ipsum", "orderBy", "body"));
+  }
+
+  private static Todo todo(String id, String owner, String category) {
+    Todo todo = new Todo();
+    todo._id = id;
+    todo.owner = owner;
+    todo.body = "Imported todo " + id;
+    todo.category = category;
+    return todo;
+  }
+
+  @Test
+  public void insertsTodosIntoTheirShards() {
+    Todo[] newTodos = {
+      todo("new1", "Ada", "homework"),
+      todo("new2", "Fry", "groceries"),
+      todo("new3", "Ada", "video games")
+    };
+    db.insertTodos(newTodos);
+    shardedDb.insertTodos(newTodos);
+    assertEquals(303, shardedDb.size());
+    assertEquals(2, shardedDb.listTodos(query("owner", "Ada")).length);
+    assertSameTodos(query("owner", "Fry"));
+    assertSameTodos(query());
+    assertSameTodos(query("category", "homework", "orderBy", "owner"));
+  }
+
+  @Test
+  public void keepsTheShardsUpToDate() {
+    for (TodoDatabase database : List.of(db, shardedDb)) {
+      database.setMergeExecutor(Runnable::run);
+      database.setMergeThreshold(2);
+    }
+    String fryId = db.listTodos(query("owner", "Fry"))[3]._id;
+    String blancheId = db.listTodos(query("owner", "Blanche"))[2]._id;
+    Todo[] newTodos = {
+      todo("new1", "Ada", "homework"),
+      todo("new2", "Fry", "groceries"),
+    };
+    for (TodoDatabase database : List.of(db, shardedDb)) {
+      database.insertTodos(newTodos);
+      // A new owner can mean a new shard
+      database.updateTodo(todo(fryId, "Workman", "homework"));
+      database.deleteTodo(blancheId);
+      database.updateTodo(todo("new2", "Fry", "homework"));
+    }
+    assertEquals(301, shardedDb.size());
+    assertEquals("Workman", shardedDb.getTodo(fryId).owner);
+    assertSameTodos(query());
+    assertSameTodos(query("owner", "Fry"));
+    assertSameTodos(query("owner", "Workman"));
+    assertSameTodos(query("orderBy", "owner"));
+    assertSameTodos(query("category", "homework", "limit", "20"));
+    Map<String, List<String>> queryParams = query("orderBy", "body");
+    queryParams.put("owner", Arrays.asList("Fry", "Blanche", "Workman"));
+    assertSameTodos(queryParams);
+  }
+
+  @Test
+  public void changesItsVersionNumberWithEveryWrite() {
+    shardedDb.setMergeExecutor(Runnable::run);
+    shardedDb.setMergeThreshold(2);
+    String fryId = db.listTodos(query("owner", "Fry"))[0]._id;
+    List<Runnable> writes = List.of(
+        () -> shardedDb.insertTodos(new Todo[] {todo("new1", "Ada", "homework")}),
+        () -> shardedDb.updateTodo(todo(fryId, "Workman", "homework")),
+        () -> shardedDb.updateTodo(todo("new1", "Ada", "groceries")),
+        () -> shardedDb.deleteTodo(fryId));
+    long versionNumber = shardedDb.versionNumber();
+    for (Runnable write : writes) {
+      write.run();
+      assertTrue(shardedDb.versionNumber() > versionNumber);
+      versionNumber = shardedDb.versionNumber();
+    }
+  }
+
+  @Test
+  public void rejectsBatchesWithTakenIds() {
+    String fryId = db.listTodos(query("owner", "Fry"))[0]._id;
+    for (TodoDatabase database : List.of(db, shardedDb)) {
+      // Taken by a todo in the "database"...
+      DuplicateIdException exception = Assertions.assertThrows(DuplicateIdException.class, () -> {
+        database.insertTodos(new Todo[] {todo("new1", "Ada", "homework"), todo(fryId, "Ada", "homework")});
+      });
+      assertEquals(1, exception.getIndex());
+      // ...or by an earlier todo in the batch, even one that would go in
+      // another shard
+      exception = Assertions.assertThrows(DuplicateIdException.class, () -> {
+        database.insertTodos(new Todo[] {todo("new1", "Ada", "homework"), todo("new1", "Fry", "homework")});
+      });
+      assertEquals("new1", exception.getId());
+      // None of either batch was added
+      assertEquals(300, database.size());
+      assertNull(database.getTodo("new1"));
+    }
+  }
+
+  @Test
+  public void estimatesQueryCostsFromTheShardsIndexes() {
+    for (Map<String, List<String>> queryParams : List.of(
+        query(), query("owner", "Fry"), query("category", "homework", "contains", "ipsum"))) {
+      assertEquals(db.estimateCost(queryParams), shardedDb.estimateCost(queryParams));
+    }
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalQueries() {
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      shardedDb.listTodos(query("limit", "abc"));
+    });
+    assertEquals("Specified limit 'abc' can't be parsed to an integer", exception.getMessage());
+
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      shardedDb.listTodos(query("orderBy", "abc"));
+    });
+    assertEquals("Specified value to order by 'abc' is an invalid value", exception.getMessage());
+  }
+}
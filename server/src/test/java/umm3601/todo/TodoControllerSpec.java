@@ -1,29 +1,48 @@
 package umm3601.todo;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import io.javalin.http.Context;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import umm3601.ContentNegotiation;
+import umm3601.QueryPlan;
 import umm3601.Server;
+import umm3601.SlowQueryLog;
+import umm3601.user.UserDatabase;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.Assertions;
 //import org.junit.jupiter.api.BeforeEach;
 //import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.sse.SseClient;
 
 
 /**
@@ -52,6 +71,15 @@ public class TodoControllerSpec {
     todoController = new TodoController(db);
   }
 
+  /**
+   * Decode the todos that were sent back (as JSON) in the response.
+   */
+  private Todo[] sentTodos() throws IOException {
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    return new ObjectMapper().readValue(argument.getValue(), Todo[].class);
+  }
+
   /**
    * Confirms that we can get all the todos.
    *
@@ -64,10 +92,9 @@ public class TodoControllerSpec {
     // back.
     todoController.getTodos(ctx);
 
-    // Confirm that `json` was called with all the users.
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
-    assertEquals(db.size(), argument.getValue().length);
+    // Confirm that all the users were sent back.
+    Todo[] sentTodos = sentTodos();
+    assertEquals(db.size(), sentTodos.length);
   }
 
   /**
@@ -88,14 +115,13 @@ public class TodoControllerSpec {
     // owner Workman.
     todoController.getTodos(ctx);
 
-    // Confirm that all the users passed to `json` have owner Workman.
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
-    for (Todo todo : argument.getValue()) {
+    // Confirm that all the users sent back have owner Workman.
+    Todo[] sentTodos = sentTodos();
+    for (Todo todo : sentTodos) {
       assertEquals("Workman", todo.owner);
     }
     // Confirm that there are 49 todos with owner "Workman" (thank you, Ctrl+F)
-    assertEquals(49, argument.getValue().length);
+    assertEquals(49, sentTodos.length);
   }
 
   /**
@@ -116,14 +142,95 @@ public class TodoControllerSpec {
     // category "video games".
     todoController.getTodos(ctx);
 
-    // Confirm that all the users passed to `json` have category "video games".
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
-    for (Todo todo : argument.getValue()) {
+    // Confirm that all the users sent back have category "video games".
+    Todo[] sentTodos = sentTodos();
+    for (Todo todo : sentTodos) {
       assertEquals("video games", todo.category);
     }
     // Confirm that there are 71 todos with category "video games"
-    assertEquals(71, argument.getValue().length);
+    assertEquals(71, sentTodos.length);
+  }
+
+  @Test
+  public void canGetTodosWithAnyOfSeveralOwners() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry", "Blanche"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    // Confirm that all of Fry's and Blanche's todos are sent back.
+    Todo[] sentTodos = sentTodos();
+    assertEquals(61 + 43, sentTodos.length);
+    for (Todo todo : sentTodos) {
+      assertTrue(todo.owner.equals("Fry") || todo.owner.equals("Blanche"));
+    }
+  }
+
+  @Test
+  public void canGetTodosWithSeveralOwnersAndCategories() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry", "Blanche", "Nobody"}));
+    queryParams.put("category", Arrays.asList(new String[] {"homework", "groceries"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    // Confirm that the todos sent back have one of the owners
+    // *and* one of the categories.
+    Todo[] sentTodos = sentTodos();
+    assertEquals(52, sentTodos.length);
+    for (Todo todo : sentTodos) {
+      assertTrue(todo.owner.equals("Fry") || todo.owner.equals("Blanche"));
+      assertTrue(todo.category.equals("homework") || todo.category.equals("groceries"));
+    }
+  }
+
+  @Test
+  public void canGetTodosWithOwnerPrefix() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("ownerPrefix", Arrays.asList(new String[] {"bL"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    // Confirm that all of Blanche's todos (and only hers) are sent back.
+    Todo[] sentTodos = sentTodos();
+    assertEquals(43, sentTodos.length);
+    for (Todo todo : sentTodos) {
+      assertEquals("Blanche", todo.owner);
+    }
+  }
+
+  @Test
+  public void canGetTodosWithOwnerPrefixAndBody() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("ownerPrefix", Arrays.asList(new String[] {"b"}));
+    queryParams.put("contains", Arrays.asList(new String[] {"reprehenderit"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    // Confirm that the todos sent back belong to Barry or Blanche
+    // and mention "reprehenderit".
+    Todo[] sentTodos = sentTodos();
+    assertTrue(sentTodos.length > 0);
+    for (Todo todo : sentTodos) {
+      assertTrue(todo.owner.startsWith("B"));
+      assertTrue(todo.body.toLowerCase().contains("reprehenderit"));
+    }
+  }
+
+  @Test
+  public void canGetNoTodosWithUnknownOwnerPrefix() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("ownerPrefix", Arrays.asList(new String[] {"zz"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    Todo[] sentTodos = sentTodos();
+    assertEquals(0, sentTodos.length);
   }
 
   @Test
@@ -135,15 +242,14 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    // Confirm that all the todos passed to `json` are owned by Dawn
+    // Confirm that all the todos sent back are owned by Dawn
     // and have category "video games".
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
-    for (Todo todo : argument.getValue()) {
+    Todo[] sentTodos = sentTodos();
+    for (Todo todo : sentTodos) {
       assertEquals("Dawn", todo.owner);
       assertEquals("software design", todo.category);
     }
-    assertEquals(10, argument.getValue().length);
+    assertEquals(10, sentTodos.length);
   }
 
   @Test
@@ -183,14 +289,13 @@ public class TodoControllerSpec {
     // a complete status
     todoController.getTodos(ctx);
 
-    // Confirm that all the users passed to `json` have status "complete"
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
-    for (Todo todo : argument.getValue()) {
+    // Confirm that all the users sent back have status "complete"
+    Todo[] sentTodos = sentTodos();
+    for (Todo todo : sentTodos) {
       assertEquals(true, todo.status);
     }
     // Confirm that there are 143 todos with complete status
-    assertEquals(143, argument.getValue().length);
+    assertEquals(143, sentTodos.length);
   }
 
   @Test
@@ -202,12 +307,11 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
-    for (Todo todo : argument.getValue()) {
+    Todo[] sentTodos = sentTodos();
+    for (Todo todo : sentTodos) {
       assertEquals(false, todo.status);
     }
-    assertEquals(157, argument.getValue().length);
+    assertEquals(157, sentTodos.length);
   }
 
   @Test
@@ -234,12 +338,11 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
-    for (Todo todo : argument.getValue()) {
+    Todo[] sentTodos = sentTodos();
+    for (Todo todo : sentTodos) {
       assertTrue(todo.body.toLowerCase().contains("reprehenderit"));
     }
-    assertEquals(96 - 12, argument.getValue().length);
+    assertEquals(96 - 12, sentTodos.length);
     // ctrl+f reprehenderit -12 duplicates
   }
 
@@ -254,13 +357,12 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
+    Todo[] sentTodos = sentTodos();
 
-    assertEquals(7, argument.getValue().length);
+    assertEquals(7, sentTodos.length);
     // Make sure the order of items hasn't changed either. Check the id of first and last returned items
-    assertEquals("5889598585bda42fb8388ba1", argument.getValue()[0]._id);
-    assertEquals("58895985ea08e3fe6f31e42e", argument.getValue()[argument.getValue().length - 1]._id);
+    assertEquals("5889598585bda42fb8388ba1", sentTodos[0]._id);
+    assertEquals("58895985ea08e3fe6f31e42e", sentTodos[sentTodos.length - 1]._id);
   }
   /* The limit parameter could be tested more thoroughly by ensuring that no limit is actually applied when
    * we request a limit larger than the total number of todos returned after filtering the list.
@@ -285,71 +387,67 @@ public class TodoControllerSpec {
   }
 
   @Test
-  public void canOrderTodosByOwner() {
+  public void canOrderTodosByOwner() throws IOException {
     Map<String, List<String>> queryParams = new HashMap<>();
     queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
     when(ctx.queryParamMap()).thenReturn(queryParams);
 
     todoController.getTodos(ctx);
 
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
+    Todo[] sentTodos = sentTodos();
 
-    assertEquals(db.size(), argument.getValue().length);
+    assertEquals(db.size(), sentTodos.length);
     // Make sure the first name in the alphabet appears first, and same idea with the last.
-    assertEquals("Barry", argument.getValue()[0].owner);
-    assertEquals("Workman", argument.getValue()[argument.getValue().length - 1].owner);
+    assertEquals("Barry", sentTodos[0].owner);
+    assertEquals("Workman", sentTodos[sentTodos.length - 1].owner);
   }
 
   @Test
-  public void canOrderTodosByBody() {
+  public void canOrderTodosByBody() throws IOException {
     Map<String, List<String>> queryParams = new HashMap<>();
     queryParams.put("orderBy", Arrays.asList(new String[] {"body"}));
     when(ctx.queryParamMap()).thenReturn(queryParams);
 
     todoController.getTodos(ctx);
 
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
+    Todo[] sentTodos = sentTodos();
 
-    assertEquals(db.size(), argument.getValue().length);
+    assertEquals(db.size(), sentTodos.length);
     // Check that the list items are sorted by body
-    assertTrue(argument.getValue()[0].body.startsWith("Ad "));
-    assertTrue(argument.getValue()[argument.getValue().length - 1].body.startsWith("Volu"));
+    assertTrue(sentTodos[0].body.startsWith("Ad "));
+    assertTrue(sentTodos[sentTodos.length - 1].body.startsWith("Volu"));
   }
 
   @Test
-  public void canOrderTodosByStatus() {
+  public void canOrderTodosByStatus() throws IOException {
     Map<String, List<String>> queryParams = new HashMap<>();
     queryParams.put("orderBy", Arrays.asList(new String[] {"status"}));
     when(ctx.queryParamMap()).thenReturn(queryParams);
 
     todoController.getTodos(ctx);
 
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
+    Todo[] sentTodos = sentTodos();
 
-    assertEquals(db.size(), argument.getValue().length);
+    assertEquals(db.size(), sentTodos.length);
     // You get the gist by now
-    assertEquals(false, argument.getValue()[0].status);
-    assertEquals(true, argument.getValue()[argument.getValue().length - 1].status);
+    assertEquals(false, sentTodos[0].status);
+    assertEquals(true, sentTodos[sentTodos.length - 1].status);
   }
 
   @Test
-  public void canOrderTodosByCategory() {
+  public void canOrderTodosByCategory() throws IOException {
     Map<String, List<String>> queryParams = new HashMap<>();
     queryParams.put("orderBy", Arrays.asList(new String[] {"category"}));
     when(ctx.queryParamMap()).thenReturn(queryParams);
 
     todoController.getTodos(ctx);
 
-    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
-    verify(ctx).json(argument.capture());
+    Todo[] sentTodos = sentTodos();
 
-    assertEquals(db.size(), argument.getValue().length);
+    assertEquals(db.size(), sentTodos.length);
 
-    assertEquals("groceries", argument.getValue()[0].category);
-    assertEquals("video games", argument.getValue()[argument.getValue().length - 1].category);
+    assertEquals("groceries", sentTodos[0].category);
+    assertEquals("video games", sentTodos[sentTodos.length - 1].category);
   }
 
   @Test
@@ -367,4 +465,623 @@ public class TodoControllerSpec {
     assertEquals("Specified value to order by '" + "abc" + "' is an invalid value", exception.getMessage());
   }
 
+  @Test
+  public void canIncludeOwners() throws IOException {
+    todoController = new TodoController(db, new TodoOwnerJoin(new UserDatabase("/owners.json")));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("include", Arrays.asList(new String[] {"owner"}));
+    queryParams.put("category", Arrays.asList(new String[] {"video games"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    JsonNode todos = new ObjectMapper().readTree(argument.getValue());
+    // Including owners shouldn't change which todos we get back
+    assertEquals(71, todos.size());
+    for (JsonNode todo : todos) {
+      assertEquals("video games", todo.get("category").asText());
+      String owner = todo.get("owner").asText();
+      // Only Fry and Blanche are in the test owners; everyone else's
+      // todos come back with a null user
+      if (owner.equals("Fry") || owner.equals("Blanche")) {
+        assertEquals(owner, todo.get("user").get("name").asText());
+      } else {
+        assertTrue(todo.get("user").isNull());
+      }
+      if (owner.equals("Fry")) {
+        assertEquals("PLANET EXPRESS", todo.get("user").get("company").asText());
+      }
+    }
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalInclude() throws IOException {
+    todoController = new TodoController(db, new TodoOwnerJoin(new UserDatabase("/owners.json")));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("include", Arrays.asList(new String[] {"abc"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified value to include 'abc' is an invalid value", exception.getMessage());
+  }
+
+  @Test
+  public void respondsAppropriatelyToIncludeWithoutUsers() {
+    // The controller built in `setUp` doesn't know about any users
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("include", Arrays.asList(new String[] {"owner"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Including the owner of todos is not supported", exception.getMessage());
+  }
+
+  @Test
+  public void parallelFilteringMatchesSequentialFiltering() {
+    // Make an array big enough to be split into several chunks by
+    // repeating all the todos a bunch of times.
+    Todo[] allTodos = db.listTodos(new HashMap<>());
+    Todo[] manyTodos = new Todo[allTodos.length * 50];
+    for (int i = 0; i < manyTodos.length; i++) {
+      manyTodos[i] = allTodos[i % allTodos.length];
+    }
+    assertTrue(manyTodos.length > 2 * TodoDatabase.PARALLEL_CHUNK_SIZE);
+
+    Todo[] sequentialByBody = db.filterTodosByBody(manyTodos, "reprehenderit");
+    Todo[] sequentialByOwner = db.filterTodosByOwner(manyTodos, "Fry");
+
+    // Make every filter run in parallel, no matter how small
+    db.setParallelThreshold(0);
+    Assertions.assertArrayEquals(sequentialByBody, db.filterTodosByBody(manyTodos, "reprehenderit"));
+    Assertions.assertArrayEquals(sequentialByOwner, db.filterTodosByOwner(manyTodos, "Fry"));
+    assertEquals(84 * 50, sequentialByBody.length);
+  }
+
+  @Test
+  public void canGetTodosWithParallelFiltering() throws IOException {
+    db.setParallelThreshold(0);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Dawn"}));
+    queryParams.put("category", Arrays.asList(new String[] {"software design"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    Todo[] sentTodos = sentTodos();
+    assertEquals(10, sentTodos.length);
+  }
+
+  @Test
+  public void bodySearchMatchesFilteringByBody() {
+    Todo[] allTodos = db.listTodos(new HashMap<>());
+    TodoBodySearch bodySearch = new TodoBodySearch(allTodos);
+    // A mix of case, a word at the end of bodies, one that doesn't
+    // occur anywhere, and the empty string (which matches everything).
+    String[] targets = {"reprehenderit", "REPREHENDERIT", "Ipsum esse", "laborum.", "xyzzy", ""};
+    for (String target : targets) {
+      int[] ordinals = bodySearch.search(target);
+      Todo[] found = new Todo[ordinals.length];
+      for (int i = 0; i < ordinals.length; i++) {
+        found[i] = allTodos[ordinals[i]];
+      }
+      Assertions.assertArrayEquals(db.filterTodosByBody(allTodos, target), found);
+    }
+    assertEquals(0, bodySearch.search("xyzzy").length);
+    assertEquals(allTodos.length, bodySearch.search("").length);
+  }
+
+  @Test
+  public void bodySearchMatchesFilteringByBodyForAnyText() {
+    // Bodies with accents, characters from outside the Basic Multilingual
+    // Plane (surrogate pairs), an unpaired surrogate, a separator inside a
+    // body, and matches right at the start and end of the heap
+    String[] bodies = {
+      "\u00C4rger \u00FCber \u00D6l", "na\u00EFve caf\u00E9", "emoji \uD83D\uDE00 here", "lone \uD800 surrogate",
+      "with\0nul", "\u03A3\u038A\u03A3\u03A5\u03A6\u039F\u03A3", "x", "", "aaaaaaaaaaaaaaaaab", "the end is near y",
+    };
+    Todo[] todos = new Todo[bodies.length];
+    for (int i = 0; i < bodies.length; i++) {
+      todos[i] = new Todo();
+      todos[i].body = bodies[i];
+    }
+    TodoBodySearch bodySearch = new TodoBodySearch(todos);
+    String[] targets = {
+      "\u00E4rger", "\u00DCBER", "\u00EF", "e", "\uD83D\uDE00", "\uD83D", "\uDE00", "\uD800", "nul",
+      "\u03C3\u03AF\u03C3\u03C5\u03C6\u03BF\u03C2", "x", "y", "ab", "aaaaaaaab", "r y", "\u00C9", "xyzzy", "q",
+    };
+    for (String target : targets) {
+      int[] ordinals = bodySearch.search(target);
+      Todo[] found = new Todo[ordinals.length];
+      for (int i = 0; i < ordinals.length; i++) {
+        found[i] = todos[ordinals[i]];
+      }
+      Assertions.assertArrayEquals(db.filterTodosByBody(todos, target), found);
+    }
+    // Half of a pair doesn't match an unpaired surrogate
+    Assertions.assertArrayEquals(new int[] {3}, bodySearch.search("\uD800"));
+    Assertions.assertArrayEquals(new int[] {2}, bodySearch.search("\uDE00"));
+    Assertions.assertArrayEquals(new int[] {9}, bodySearch.search("y"));
+  }
+
+  @Test
+  public void canGetTodosWithSeparatorInBodySearch() throws IOException {
+    // The body search can't handle the character it uses to separate
+    // bodies, so this falls back to filtering the todos one at a time.
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Arrays.asList(new String[] {"ipsum\0"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    Todo[] sentTodos = sentTodos();
+    assertEquals(0, sentTodos.length);
+  }
+
+  @Test
+  public void orderingAllTodosDoesNotReorderTheDatabase() {
+    Todo[] before = db.listTodos(new HashMap<>()).clone();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
+    db.listTodos(queryParams);
+    Assertions.assertArrayEquals(before, db.listTodos(new HashMap<>()));
+  }
+
+  @Test
+  public void changeFeedOnlySendsMatchingChanges() {
+    TodoChangeFeed changeFeed = db.getChangeFeed();
+    Todo fryTodo = db.getTodo("58895985140cca06def60d82");
+    Todo blancheTodo = db.getTodo("58895985a22c04e761776d54");
+
+    // One subscription of each kind: indexed by owner, indexed by
+    // category, and not indexed at all.
+    List<TodoChange> fryChanges = new ArrayList<>();
+    Map<String, List<String>> fryParams = new HashMap<>();
+    fryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    fryParams.put("status", Arrays.asList(new String[] {"incomplete"}));
+    changeFeed.subscribe(fryParams, fryChanges::add);
+
+    List<TodoChange> designChanges = new ArrayList<>();
+    Map<String, List<String>> designParams = new HashMap<>();
+    designParams.put("category", Arrays.asList(new String[] {"software design"}));
+    changeFeed.subscribe(designParams, designChanges::add);
+
+    List<TodoChange> bodyChanges = new ArrayList<>();
+    Map<String, List<String>> bodyParams = new HashMap<>();
+    bodyParams.put("contains", Arrays.asList(new String[] {"IN SUNT"}));
+    TodoChangeFeed.Subscription bodySubscription = changeFeed.subscribe(bodyParams, bodyChanges::add);
+
+    changeFeed.publish(new TodoChange(TodoChange.UPDATED, fryTodo));
+    changeFeed.publish(new TodoChange(TodoChange.INSERTED, blancheTodo));
+    changeFeed.unsubscribe(bodySubscription);
+    changeFeed.publish(new TodoChange(TodoChange.DELETED, blancheTodo));
+
+    assertEquals(1, fryChanges.size());
+    assertEquals(fryTodo, fryChanges.get(0).todo);
+    assertEquals(TodoChange.UPDATED, fryChanges.get(0).type);
+    // Blanche's todo is "software design", Fry's is "video games"
+    assertEquals(2, designChanges.size());
+    assertEquals(TodoChange.DELETED, designChanges.get(1).type);
+    // Only Blanche's todo body contains "in sunt", and we unsubscribed
+    // before it was deleted
+    assertEquals(1, bodyChanges.size());
+    assertEquals(blancheTodo, bodyChanges.get(0).todo);
+  }
+
+  @Test
+  public void changeFeedReadsFiltersLikeListTodos() {
+    TodoChangeFeed changeFeed = db.getChangeFeed();
+    Todo fryTodo = db.getTodo("58895985140cca06def60d82");
+    Todo blancheTodo = db.getTodo("58895985a22c04e761776d54");
+
+    // Any one of several owners, just as for `listTodos`
+    List<TodoChange> ownersChanges = new ArrayList<>();
+    Map<String, List<String>> ownersParams = new HashMap<>();
+    ownersParams.put("owner", Arrays.asList(new String[] {"Fry", "Blanche"}));
+    changeFeed.subscribe(ownersParams, ownersChanges::add);
+
+    // Owners starting with "bl", ignoring case
+    List<TodoChange> prefixChanges = new ArrayList<>();
+    Map<String, List<String>> prefixParams = new HashMap<>();
+    prefixParams.put("ownerPrefix", Arrays.asList(new String[] {"bL"}));
+    changeFeed.subscribe(prefixParams, prefixChanges::add);
+
+    changeFeed.publish(new TodoChange(TodoChange.UPDATED, fryTodo));
+    changeFeed.publish(new TodoChange(TodoChange.UPDATED, blancheTodo));
+
+    assertEquals(2, ownersChanges.size());
+    assertEquals(fryTodo, ownersChanges.get(0).todo);
+    assertEquals(blancheTodo, ownersChanges.get(1).todo);
+    assertEquals(1, prefixChanges.size());
+    assertEquals(blancheTodo, prefixChanges.get(0).todo);
+  }
+
+  @Test
+  public void changeFeedTellsSubscriptionsWhenTodosLeaveTheirFilters() {
+    TodoChangeFeed changeFeed = db.getChangeFeed();
+    Todo fryTodo = db.getTodo("58895985140cca06def60d82");
+
+    List<TodoChange> fryChanges = new ArrayList<>();
+    Map<String, List<String>> fryParams = new HashMap<>();
+    fryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    changeFeed.subscribe(fryParams, fryChanges::add);
+
+    List<TodoChange> blancheChanges = new ArrayList<>();
+    Map<String, List<String>> blancheParams = new HashMap<>();
+    blancheParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    changeFeed.subscribe(blancheParams, blancheChanges::add);
+
+    List<TodoChange> ownersChanges = new ArrayList<>();
+    Map<String, List<String>> ownersParams = new HashMap<>();
+    ownersParams.put("owner", Arrays.asList(new String[] {"Fry", "Blanche"}));
+    changeFeed.subscribe(ownersParams, ownersChanges::add);
+
+    List<TodoChange> incompleteChanges = new ArrayList<>();
+    Map<String, List<String>> incompleteParams = new HashMap<>();
+    incompleteParams.put("status", Arrays.asList(new String[] {"incomplete"}));
+    changeFeed.subscribe(incompleteParams, incompleteChanges::add);
+
+    // Give Fry's (incomplete) todo to Blanche...
+    Todo blancheTodo = copy(fryTodo);
+    blancheTodo.owner = "Blanche";
+    db.updateTodo(blancheTodo);
+    // ...and then mark it complete
+    Todo completeTodo = copy(blancheTodo);
+    completeTodo.status = true;
+    db.updateTodo(completeTodo);
+
+    // Fry's subscription loses the todo
+    assertEquals(1, fryChanges.size());
+    assertEquals(TodoChange.DELETED, fryChanges.get(0).type);
+    assertEquals(fryTodo, fryChanges.get(0).todo);
+    // Blanche's gains it, and then sees it completed
+    assertEquals(2, blancheChanges.size());
+    assertEquals(TodoChange.UPDATED, blancheChanges.get(0).type);
+    assertEquals(blancheTodo, blancheChanges.get(0).todo);
+    assertEquals(completeTodo, blancheChanges.get(1).todo);
+    // A subscription to both owners hears of each update just once
+    assertEquals(2, ownersChanges.size());
+    assertEquals(TodoChange.UPDATED, ownersChanges.get(0).type);
+    assertEquals(TodoChange.UPDATED, ownersChanges.get(1).type);
+    // Completing the todo takes it out of the incomplete todos
+    assertEquals(2, incompleteChanges.size());
+    assertEquals(TodoChange.UPDATED, incompleteChanges.get(0).type);
+    assertEquals(TodoChange.DELETED, incompleteChanges.get(1).type);
+    assertEquals(blancheTodo, incompleteChanges.get(1).todo);
+  }
+
+  private static Todo copy(Todo todo) {
+    Todo copy = new Todo();
+    copy._id = todo._id;
+    copy.owner = todo.owner;
+    copy.status = todo.status;
+    copy.body = todo.body;
+    copy.category = todo.category;
+    return copy;
+  }
+
+  @Test
+  public void canStreamChanges() {
+    SseClient client = mock(SseClient.class);
+    when(client.ctx()).thenReturn(ctx);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.streamChanges(client);
+    verify(client).keepAlive();
+
+    Todo fryTodo = db.getTodo("58895985140cca06def60d82");
+    db.getChangeFeed().publish(new TodoChange(TodoChange.UPDATED, fryTodo));
+    verify(client).sendEvent(TodoChange.UPDATED, fryTodo);
+
+    // Once the client goes away it shouldn't get any more changes
+    ArgumentCaptor<Runnable> onClose = ArgumentCaptor.forClass(Runnable.class);
+    verify(client).onClose(onClose.capture());
+    onClose.getValue().run();
+    db.getChangeFeed().publish(new TodoChange(TodoChange.DELETED, fryTodo));
+    verify(client, never()).sendEvent(TodoChange.DELETED, fryTodo);
+  }
+
+  @Test
+  public void exportsTheTodosAsTheyAreNow() throws IOException {
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(first);
+    todoController.exportTodos(ctx);
+    assertEquals(300, first.toString(StandardCharsets.UTF_8).split("\n").length);
+
+    db.insertTodos(new Todo[] {new ObjectMapper().readValue(importedTodo("new1", "Ada", "homework"), Todo.class)});
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(second);
+    todoController.exportTodos(ctx);
+    String[] lines = second.toString(StandardCharsets.UTF_8).split("\n");
+    assertEquals(301, lines.length);
+    assertTrue(lines[300].contains("\"new1\""));
+  }
+
+  private static String importedTodo(String id, String owner, String category) {
+    return "{\"_id\":\"" + id + "\",\"owner\":\"" + owner + "\",\"status\":false,"
+        + "\"body\":\"Imported todo " + id + "\",\"category\":\"" + category + "\"}\n";
+  }
+
+  @Test
+  public void importsTodosInBatches() throws IOException {
+    String ndjson = importedTodo("new1", "Ada", "homework")
+        + importedTodo("new2", "Ada", "groceries")
+        + "\n"
+        + importedTodo("new3", "Grace", "homework");
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)));
+    // Each insertion is published once its whole batch is in the
+    // "database", so this records how many todos there were by then
+    List<Integer> sizes = new ArrayList<>();
+    db.getChangeFeed().subscribe(new HashMap<>(), change -> {
+      assertEquals(TodoChange.INSERTED, change.type);
+      // ...and after the "database" has let go of its lock
+      assertFalse(Thread.holdsLock(db));
+      sizes.add(db.size());
+    });
+
+    todoController.setImportBatchSize(2);
+    todoController.importTodos(ctx);
+
+    verify(ctx).json(Map.of("imported", 3));
+    verify(ctx).status(HttpStatus.CREATED);
+    assertEquals(List.of(302, 302, 303), sizes);
+    assertEquals("Grace", db.getTodo("new3").owner);
+    // The new todos are in the indexes too
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Ada"}));
+    assertEquals(2, db.listTodos(queryParams).length);
+    queryParams.put("ownerPrefix", Arrays.asList(new String[] {"a"}));
+    queryParams.put("contains", Arrays.asList(new String[] {"new2"}));
+    assertEquals("new2", db.listTodos(queryParams)[0]._id);
+    queryParams.clear();
+    queryParams.put("category", Arrays.asList(new String[] {"homework"}));
+    assertEquals(81, db.listTodos(queryParams).length);
+  }
+
+  @Test
+  public void importStopsAtABadTodo() {
+    String ndjson = importedTodo("new1", "Ada", "homework")
+        + "{\"_id\":\"new2\",\"body\":\"No owner\",\"category\":\"homework\"}\n"
+        + importedTodo("new3", "Grace", "homework");
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)));
+    todoController.setImportBatchSize(1);
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.importTodos(ctx);
+    });
+    assertEquals("Imported todo 2 has no owner (imported 1 before it)", exception.getMessage());
+    assertEquals(301, db.size());
+
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(
+        "{\"_id\": \"new4\", \"owner\": }\n".getBytes(StandardCharsets.UTF_8)));
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.importTodos(ctx);
+    });
+    assertEquals("Imported todo 1 isn't a valid todo (imported 0 before it)", exception.getMessage());
+    assertEquals(301, db.size());
+
+    // IDs have to be unique, both in the "database" and in the import
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(
+        (importedTodo("new3", "Grace", "homework") + importedTodo("new1", "Ada", "homework"))
+            .getBytes(StandardCharsets.UTF_8)));
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.importTodos(ctx);
+    });
+    assertEquals("Imported todo 2 has the _id 'new1', which is already taken (imported 1 before it)",
+        exception.getMessage());
+    todoController.setImportBatchSize(2);
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(
+        (importedTodo("new4", "Grace", "homework") + importedTodo("new4", "Ada", "homework"))
+            .getBytes(StandardCharsets.UTF_8)));
+    exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.importTodos(ctx);
+    });
+    assertEquals("Imported todo 2 has the _id 'new4', which is already taken (imported 0 before it)",
+        exception.getMessage());
+    assertEquals(302, db.size());
+  }
+
+  @Test
+  public void estimatesQueryCosts() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    long filterCost = db.estimateCost(queryParams);
+    // The owner index means only Fry's todos are looked at
+    assertEquals(db.listTodos(queryParams).length, filterCost);
+    assertTrue(filterCost < db.size());
+
+    // So do the category index and the owner dictionary
+    Map<String, List<String>> categoryParams = new HashMap<>();
+    categoryParams.put("category", Arrays.asList(new String[] {"video games"}));
+    assertEquals(71, db.estimateCost(categoryParams));
+    categoryParams.put("ownerPrefix", Arrays.asList(new String[] {"fr"}));
+    assertEquals(db.listTodos(Map.of("ownerPrefix", List.of("fr"))).length, db.estimateCost(categoryParams));
+
+    // Searching the bodies and sorting both make queries more expensive
+    queryParams.put("contains", Arrays.asList(new String[] {"ipsum"}));
+    long searchCost = db.estimateCost(queryParams);
+    assertTrue(searchCost > filterCost);
+    queryParams.put("orderBy", Arrays.asList(new String[] {"body"}));
+    assertTrue(db.estimateCost(queryParams) > searchCost);
+  }
+
+  @Test
+  public void canExplainTodoQueries() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"body"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    queryParams.put("explain", Arrays.asList(new String[] {"true"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    // Confirm that the plan, rather than the todos, is passed to `json`,
+    // and that it lists each stage in the order it ran.
+    ArgumentCaptor<QueryPlan> argument = ArgumentCaptor.forClass(QueryPlan.class);
+    verify(ctx).json(argument.capture());
+    QueryPlan plan = argument.getValue();
+    assertEquals(List.of("parse", "owner", "fetch", "status", "orderBy body", "limit", "serialize"),
+        plan.stages.stream().map(stage -> stage.name).collect(Collectors.toList()));
+    assertEquals(List.of("parse", "filter", "filter", "filter", "sort", "limit", "serialize"),
+        plan.stages.stream().map(stage -> stage.kind).collect(Collectors.toList()));
+    assertEquals("owner index", plan.stages.get(1).access);
+    assertEquals(db.size(), plan.stages.get(1).rowsExamined);
+    assertEquals(61, plan.stages.get(1).rowsProduced);
+    assertEquals(5, plan.rowsProduced());
+    assertTrue(plan.totalMillis >= plan.stages.get(1).millis);
+    assertFalse(plan.query.containsKey("explain"));
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalExplain() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("explain", Arrays.asList(new String[] {"maybe"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified value to explain 'maybe' is an invalid value", exception.getMessage());
+  }
+
+  @Test
+  public void logsSlowQueries() throws IOException {
+    // With a threshold of 0 ms, every query is slow
+    SlowQueryLog slowQueryLog = new SlowQueryLog(0);
+    todoController.setSlowQueryLog(slowQueryLog);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Arrays.asList(new String[] {"ipsum"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+    todoController.getTodos(ctx);
+    assertEquals(2, slowQueryLog.getSlowQueries());
+
+    // ...but nothing takes a whole minute
+    slowQueryLog = new SlowQueryLog(60_000);
+    todoController.setSlowQueryLog(slowQueryLog);
+    todoController.getTodos(ctx);
+    assertEquals(0, slowQueryLog.getSlowQueries());
+  }
+
+  @Test
+  public void recordsTheSerializeStageOfQueries() throws IOException {
+    List<QueryPlan> recorded = new ArrayList<>();
+    todoController.setSlowQueryLog(new SlowQueryLog(0) {
+      @Override
+      public void record(String endpoint, QueryPlan plan) {
+        recorded.add(plan);
+      }
+    });
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    // Encoding the todos is part of the query, so the plan the log gets
+    // ends with it
+    assertEquals(1, recorded.size());
+    List<QueryPlan.Stage> stages = recorded.get(0).stages;
+    assertEquals(QueryPlan.SERIALIZE, stages.get(stages.size() - 1).kind);
+    assertEquals(61, stages.get(stages.size() - 1).rowsProduced);
+  }
+
+  @Test
+  public void canGetTodosAsSmile() throws IOException {
+    when(ctx.header(Header.ACCEPT)).thenReturn(ContentNegotiation.SMILE);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).contentType(ContentNegotiation.SMILE);
+    verify(ctx).header(Header.VARY, Header.ACCEPT);
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    // The Smile response decodes to the same todos...
+    Todo[] allTodos = db.listTodos(new HashMap<>());
+    Todo[] decoded = new SmileMapper().readValue(argument.getValue(), Todo[].class);
+    assertEquals(allTodos.length, decoded.length);
+    for (int i = 0; i < allTodos.length; i++) {
+      assertEquals(allTodos[i]._id, decoded[i]._id);
+      assertEquals(allTodos[i].body, decoded[i].body);
+    }
+    // ...but takes fewer bytes than JSON would
+    assertTrue(argument.getValue().length < new ObjectMapper().writeValueAsBytes(allTodos).length);
+  }
+
+  @Test
+  public void honoursAcceptQualities() {
+    Map<String, Boolean> smileByAccept = Map.of(
+        ContentNegotiation.SMILE, true,
+        ContentNegotiation.SMILE + ";q=0, application/json", false,
+        ContentNegotiation.SMILE + "; q=0", false,
+        "application/json;q=0.5, " + ContentNegotiation.SMILE + ";version=2", true,
+        ContentNegotiation.SMILE + ";q=0.4, application/json;q=0.8", false,
+        "application/x-jackson-smile-extra", false,
+        "*/*", false);
+    for (Map.Entry<String, Boolean> accept : smileByAccept.entrySet()) {
+      when(ctx.header(Header.ACCEPT)).thenReturn(accept.getKey());
+      assertEquals(accept.getValue(), ContentNegotiation.acceptsSmile(ctx), accept.getKey());
+    }
+  }
+
+  @Test
+  public void canGetOnlySomeFieldsOfTodos() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("fields", Arrays.asList(new String[] {"status,_id,owner"}));
+    queryParams.put("owner", Arrays.asList(new String[] {"Workman"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    List<Map<String, Object>> todos = new ObjectMapper().readValue(argument.getValue(),
+        new TypeReference<List<Map<String, Object>>>() { });
+    assertEquals(49, todos.size());
+    for (Map<String, Object> todo : todos) {
+      // Only the fields we asked for, and not the (big) bodies
+      assertEquals(3, todo.size());
+      assertEquals("Workman", todo.get("owner"));
+      assertTrue(todo.containsKey("_id"));
+      assertTrue(todo.containsKey("status"));
+    }
+  }
+
+  @Test
+  public void canGetOnlySomeFieldsOfTodosAsSmile() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("fields", Arrays.asList(new String[] {"_id"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.header(Header.ACCEPT)).thenReturn(ContentNegotiation.SMILE);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).contentType(ContentNegotiation.SMILE);
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    Todo[] todos = new SmileMapper().readValue(argument.getValue(), Todo[].class);
+    assertEquals(db.size(), todos.length);
+    assertNull(todos[0].body);
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalField() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("fields", Arrays.asList(new String[] {"_id,abc"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified field 'abc' is an invalid field", exception.getMessage());
+  }
 }
@@ -0,0 +1,212 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.PostingLists;
+import umm3601.QueryPlan;
+import umm3601.Server;
+
+/**
+ * Tests that writes to a todo "database" make new versions without
+ * changing the ones queries have already pinned, and that merging the
+ * deltas into the base doesn't change what the queries find.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoVersionSpec {
+
+  private TodoDatabase db;
+  // Merges that have been started but not run yet
+  private List<Runnable> merges = new ArrayList<>();
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    db = new TodoDatabase(Server.TODO_DATA_FILE);
+    db.setMergeExecutor(merges::add);
+  }
+
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], Arrays.asList(keysAndValues[i + 1].split(",")));
+    }
+    return queryParams;
+  }
+
+  private static Todo todo(String id, String owner, String category) {
+    Todo todo = new Todo();
+    todo._id = id;
+    todo.owner = owner;
+    todo.body = "Written todo " + id;
+    todo.category = category;
+    return todo;
+  }
+
+  private static Object[] ids(Todo[] todos) {
+    return Arrays.stream(todos).map(x -> x._id).toArray();
+  }
+
+  @Test
+  public void pinnedVersionsDontChange() {
+    TodoVersion pinned = db.currentVersion();
+    Todo fryTodo = db.listTodos(query("owner", "Fry"))[0];
+    db.updateTodo(todo(fryTodo._id, "Ada", "homework"));
+    db.deleteTodo(db.listTodos(query("owner", "Fry"))[0]._id);
+    db.insertTodos(new Todo[] {todo("new1", "Fry", "homework")});
+
+    assertEquals(60, db.listTodos(query("owner", "Fry")).length);
+    Map<String, List<String>> queryParams = query("owner", "Fry");
+    Todo[] pinnedTodos = db.listTodos(queryParams, new QueryPlan(queryParams), pinned);
+    assertEquals(61, pinnedTodos.length);
+    assertSame(fryTodo, pinnedTodos[0]);
+    assertEquals(300, pinned.size());
+    assertEquals(300, db.size());
+  }
+
+  @Test
+  public void updatesAndDeletesTodos() {
+    List<TodoChange> changes = new ArrayList<>();
+    db.getChangeFeed().subscribe(new HashMap<>(), changes::add);
+    Todo fryTodo = db.getTodo("58895985140cca06def60d82");
+    Todo updated = todo(fryTodo._id, "Ada", "homework");
+
+    assertSame(fryTodo, db.updateTodo(updated));
+    assertSame(updated, db.getTodo(fryTodo._id));
+    assertEquals(60, db.listTodos(query("owner", "Fry")).length);
+    assertEquals(1, db.listTodos(query("ownerPrefix", "ad")).length);
+    assertEquals(80, db.listTodos(query("category", "homework")).length);
+    // An updated todo moves to the end, like a new one
+    Todo[] allTodos = db.listTodos(query());
+    assertEquals(300, allTodos.length);
+    assertSame(updated, allTodos[299]);
+
+    assertSame(updated, db.deleteTodo(fryTodo._id));
+    assertNull(db.getTodo(fryTodo._id));
+    assertEquals(299, db.size());
+    assertEquals(0, db.listTodos(query("owner", "Ada")).length);
+    assertEquals(0, db.listTodos(query("contains", "written todo")).length);
+
+    // There's nothing left to update or delete
+    assertNull(db.updateTodo(updated));
+    assertNull(db.deleteTodo(fryTodo._id));
+
+    assertEquals(2, changes.size());
+    assertEquals(TodoChange.UPDATED, changes.get(0).type);
+    assertSame(updated, changes.get(0).todo);
+    assertEquals(TodoChange.DELETED, changes.get(1).type);
+  }
+
+  @Test
+  public void keepsOnlyAFewDeltas() {
+    for (int i = 0; i < 1000; i++) {
+      db.insertTodos(new Todo[] {todo("new" + i, i % 2 == 0 ? "Ada" : "Grace", "homework")});
+    }
+    // The deltas get combined like the digits of a binary counter
+    assertTrue(db.currentVersion().segments().length <= 1 + 10);
+    assertEquals(500, db.listTodos(query("owner", "Ada")).length);
+    assertEquals(1, db.listTodos(query("contains", "todo new999")).length);
+    assertEquals("Grace", db.getTodo("new999").owner);
+    // There are fewer than 1024 todos in the deltas, so no merge yet
+    assertTrue(merges.isEmpty());
+  }
+
+  @Test
+  public void mergesDeltasWithoutChangingWhatQueriesFind() {
+    db.setMergeThreshold(1);
+    for (int i = 0; i < 50; i++) {
+      db.insertTodos(new Todo[] {todo("new" + i, "Ada", i % 2 == 0 ? "homework" : "groceries")});
+    }
+    assertEquals(1, merges.size());
+
+    // These are written while the merge is running, so their deletions
+    // have to be renumbered when it's done
+    db.deleteTodo("new3");
+    db.deleteTodo(db.listTodos(query())[1]._id);
+    db.updateTodo(todo("new7", "Fry", "video games"));
+    db.insertTodos(new Todo[] {todo("late", "Grace", "homework")});
+
+    List<Map<String, List<String>>> queries = List.of(
+        query(),
+        query("owner", "Ada,Fry"),
+        query("ownerPrefix", "gr"),
+        query("contains", "todo new1"),
+        query("category", "homework", "orderBy", "owner"),
+        query("status", "complete", "limit", "20"));
+    List<Object[]> before = new ArrayList<>();
+    for (Map<String, List<String>> queryParams : queries) {
+      before.add(ids(db.listTodos(queryParams)));
+    }
+    long number = db.currentVersion().number();
+    int segments = db.currentVersion().segments().length;
+
+    merges.remove(0).run();
+
+    assertEquals(number, db.currentVersion().number());
+    assertTrue(db.currentVersion().segments().length < segments);
+    for (int i = 0; i < queries.size(); i++) {
+      Assertions.assertArrayEquals(before.get(i), ids(db.listTodos(queries.get(i))));
+    }
+    assertNull(db.getTodo("new3"));
+    assertEquals("Fry", db.getTodo("new7").owner);
+    assertEquals(349, db.size());
+  }
+
+  @Test
+  public void queriesNeverSeeHalfAWrite() throws Exception {
+    db.setMergeExecutor(TodoDatabase.MERGE_POOL);
+    db.setMergeThreshold(64);
+    AtomicBoolean writing = new AtomicBoolean(true);
+    ExecutorService readers = Executors.newFixedThreadPool(2);
+    List<Future<?>> reads = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      reads.add(readers.submit(() -> {
+        while (writing.get()) {
+          // Todos are only ever written ten at a time
+          assertEquals(0, db.listTodos(query("owner", "Ada")).length % 10);
+          assertEquals(0, db.listTodos(query("category", "batched", "status", "incomplete")).length % 10);
+        }
+      }));
+    }
+    for (int batch = 0; batch < 500; batch++) {
+      Todo[] todos = new Todo[10];
+      for (int i = 0; i < todos.length; i++) {
+        todos[i] = todo("new" + batch + "-" + i, "Ada", "batched");
+      }
+      db.insertTodos(todos);
+      // Replacing a todo with a copy of itself takes one away and adds one
+      Todo replaced = db.getTodo("new" + (batch / 2) + "-0");
+      db.updateTodo(todo(replaced._id, "Ada", "batched"));
+    }
+    writing.set(false);
+    for (Future<?> read : reads) {
+      read.get();
+    }
+    readers.shutdown();
+    assertEquals(5000, db.listTodos(query("owner", "Ada")).length);
+  }
+
+  @Test
+  public void canSubtractPostingLists() {
+    Assertions.assertArrayEquals(new int[] {1, 4, 9},
+        PostingLists.difference(new int[] {1, 2, 4, 7, 9}, new int[] {0, 2, 3, 7, 10}));
+    Assertions.assertArrayEquals(new int[] {}, PostingLists.difference(new int[] {}, new int[] {1}));
+    Assertions.assertArrayEquals(new int[] {5}, PostingLists.difference(new int[] {5}, new int[] {}));
+  }
+}
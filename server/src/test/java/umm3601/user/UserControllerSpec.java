@@ -16,11 +16,17 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Header;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 
+import umm3601.ContentNegotiation;
+import umm3601.QueryPlan;
 import umm3601.Server;
 
 /**
@@ -49,6 +55,15 @@ public class UserControllerSpec {
     userController = new UserController(db);
   }
 
+  /**
+   * Decode the users that were sent back (as JSON) in the response.
+   */
+  private User[] sentUsers() throws IOException {
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    return new ObjectMapper().readValue(argument.getValue(), User[].class);
+  }
+
   /**
    * Confirms that we can get all the users.
    *
@@ -61,10 +76,9 @@ public class UserControllerSpec {
     // back.
     userController.getUsers(ctx);
 
-    // Confirm that `json` was called with all the users.
-    ArgumentCaptor<User[]> argument = ArgumentCaptor.forClass(User[].class);
-    verify(ctx).json(argument.capture());
-    assertEquals(db.size(), argument.getValue().length);
+    // Confirm that all the users were sent back.
+    User[] sentUsers = sentUsers();
+    assertEquals(db.size(), sentUsers.length);
   }
 
   @Test
@@ -80,14 +94,13 @@ public class UserControllerSpec {
     // age 25.
     userController.getUsers(ctx);
 
-    // Confirm that all the users passed to `json` have age 25.
-    ArgumentCaptor<User[]> argument = ArgumentCaptor.forClass(User[].class);
-    verify(ctx).json(argument.capture());
-    for (User user : argument.getValue()) {
+    // Confirm that all the users sent back have age 25.
+    User[] sentUsers = sentUsers();
+    for (User user : sentUsers) {
       assertEquals(25, user.age);
     }
     // Confirm that there are 2 users with age 25
-    assertEquals(2, argument.getValue().length);
+    assertEquals(2, sentUsers.length);
   }
 
   /**
@@ -119,14 +132,99 @@ public class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    // Confirm that all the users passed to `json` work for OHMNET.
-    ArgumentCaptor<User[]> argument = ArgumentCaptor.forClass(User[].class);
+    // Confirm that all the users sent back work for OHMNET.
+    User[] sentUsers = sentUsers();
+    for (User user : sentUsers) {
+      assertEquals("OHMNET", user.company);
+    }
+  }
+
+  @Test
+  public void canGetUsersWithAnyOfSeveralCompaniesAndAges() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET", "NIQUENT", "VINCH"}));
+    queryParams.put("age", Arrays.asList(new String[] {"25", "27"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUsers(ctx);
+
+    // Confirm that Connie Stewart (25, OHMNET), Lynn Ferguson (25, NIQUENT)
+    // and Bolton Monroe (27, VINCH) are sent back, in that order.
+    User[] sentUsers = sentUsers();
+    assertEquals(3, sentUsers.length);
+    assertEquals("Connie Stewart", sentUsers[0].name);
+    assertEquals("Lynn Ferguson", sentUsers[1].name);
+    assertEquals("Bolton Monroe", sentUsers[2].name);
+  }
+
+  @Test
+  public void respondsAppropriatelyToAnIllegalAgeAmongSeveral() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("age", Arrays.asList(new String[] {"25", "abc"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+    assertEquals("Specified age 'abc' can't be parsed to an integer", exception.getMessage());
+  }
+
+  @Test
+  public void canExplainUserQueries() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    queryParams.put("age", Arrays.asList(new String[] {"25"}));
+    queryParams.put("explain", Arrays.asList(new String[] {"true"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUsers(ctx);
+
+    // Confirm that the plan, rather than the users, is passed to `json`
+    ArgumentCaptor<QueryPlan> argument = ArgumentCaptor.forClass(QueryPlan.class);
     verify(ctx).json(argument.capture());
-    for (User user : argument.getValue()) {
+    QueryPlan plan = argument.getValue();
+    assertEquals(5, plan.stages.size());
+    assertEquals(QueryPlan.PARSE, plan.stages.get(0).kind);
+    assertEquals("age", plan.stages.get(1).name);
+    assertEquals("age index", plan.stages.get(1).access);
+    assertEquals(2, plan.stages.get(1).rowsProduced);
+    assertEquals("company", plan.stages.get(2).name);
+    assertEquals(1, plan.stages.get(2).rowsProduced);
+    assertEquals("serialize", plan.stages.get(4).name);
+    assertEquals(1, plan.rowsProduced());
+  }
+
+  @Test
+  public void canGetUsersWithCompanyPrefix() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("companyPrefix", Arrays.asList(new String[] {"ohm"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUsers(ctx);
+
+    // Confirm that the two users who work for OHMNET are sent back.
+    User[] sentUsers = sentUsers();
+    assertEquals(2, sentUsers.length);
+    for (User user : sentUsers) {
       assertEquals("OHMNET", user.company);
     }
   }
 
+  @Test
+  public void canGetUsersWithNameAndCompanyPrefixes() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("namePrefix", Arrays.asList(new String[] {"CO"}));
+    queryParams.put("companyPrefix", Arrays.asList(new String[] {"o"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUsers(ctx);
+
+    // Confirm that Connie Stewart is the only user sent back.
+    User[] sentUsers = sentUsers();
+    assertEquals(1, sentUsers.length);
+    assertEquals("Connie Stewart", sentUsers[0].name);
+  }
+
   @Test
   public void canGetUsersWithGivenAgeAndCompany() throws IOException {
     Map<String, List<String>> queryParams = new HashMap<>();
@@ -136,15 +234,14 @@ public class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    // Confirm that all the users passed to `json` work for OHMNET
+    // Confirm that all the users sent back work for OHMNET
     // and have age 25.
-    ArgumentCaptor<User[]> argument = ArgumentCaptor.forClass(User[].class);
-    verify(ctx).json(argument.capture());
-    for (User user : argument.getValue()) {
+    User[] sentUsers = sentUsers();
+    for (User user : sentUsers) {
       assertEquals(25, user.age);
       assertEquals("OHMNET", user.company);
     }
-    assertEquals(1, argument.getValue().length);
+    assertEquals(1, sentUsers.length);
   }
 
   @Test
@@ -169,4 +266,61 @@ public class UserControllerSpec {
     });
     assertEquals("No user with id " + null + " was found.", exception.getMessage());
   }
+
+  @Test
+  public void countsListRequests() throws IOException {
+    userController.getUsers(ctx);
+    userController.getUsers(ctx);
+
+    // These weren't concurrent, so neither could be coalesced
+    assertEquals(2, userController.getListRequests().getRequests());
+    assertEquals(0, userController.getListRequests().getCoalesced());
+  }
+
+  @Test
+  public void estimatesQueryCosts() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    assertEquals(db.size(), db.estimateCost(queryParams));
+
+    // The indexes only look at the two users who work for OHMNET...
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    assertEquals(2, db.estimateCost(queryParams));
+    // ...or at the users of the given ages, if there are fewer of them
+    queryParams.put("age", Arrays.asList(new String[] {"23"}));
+    assertEquals(1, db.estimateCost(queryParams));
+  }
+
+  @Test
+  public void canGetUserAsSmile() throws IOException {
+    String id = "588935f5c668650dc77df581";
+    when(ctx.pathParam("id")).thenReturn(id);
+    when(ctx.header(Header.ACCEPT)).thenReturn("application/json;q=0.5, " + ContentNegotiation.SMILE);
+
+    userController.getUser(ctx);
+
+    verify(ctx).contentType(ContentNegotiation.SMILE);
+    verify(ctx).status(HttpStatus.OK);
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    User user = new SmileMapper().readValue(argument.getValue(), User.class);
+    assertEquals("Cervantes Morin", user.name);
+  }
+
+  @Test
+  public void canGetOnlySomeFieldsOfUsers() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("fields", Arrays.asList(new String[] {"name"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUsers(ctx);
+
+    verify(ctx).contentType("application/json");
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    User[] users = new ObjectMapper().readValue(argument.getValue(), User[].class);
+    assertEquals(db.size(), users.length);
+    assertEquals("Connie Stewart", users[0].name);
+    assertEquals(null, users[0].company);
+    assertEquals(0, users[0].age);
+  }
 }